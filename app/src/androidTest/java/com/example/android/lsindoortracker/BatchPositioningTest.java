@@ -0,0 +1,176 @@
+package com.example.android.lsindoortracker;
+
+import android.graphics.Point;
+import android.net.wifi.ScanResult;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that BatchPositioning gives the same positions than LSAlgorithm.locate: a walk of
+ * NUM_SCANS scans, with a gap longer than BatchPositioning.WARM_START_MAX_GAP_MS in the middle,
+ * is replayed through both, with the linearised approaches and NLLS, and both anchor selections.
+ *
+ *  The batch has no fallback chain, so locate runs with an empty one, with the closed form solver
+ *  (the one of the batch) and without NLLS time budget. Each chunk of the batch starts with new
+ *  solvers and anchor selector, so each chunk is replayed through a new LSAlgorithm. The
+ *  strongest RSS of every AP is unique in each scan, so both keep the same candidates whatever
+ *  their tie-breaking.
+ */
+public class BatchPositioningTest extends AndroidTestCase {
+    private static final int NUM_APS = 40;
+    private static final int SSIDS_PER_AP = 4;
+    private static final int NUM_SCANS = 600;
+    private static final long SCAN_PERIOD_MS = 1000;
+    /* Scan after the gap */
+    private static final int GAP_SCAN = 300;
+    private static final int ID_BSSID_AP_SELECTED = 1;
+    /* Pathloss model of every AP: d = -40 - RSS */
+    private static final double[] COEFFICIENTS = {-40, -1, 0, 0};
+    /* Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2, Weighted Circular = 3 */
+    private static final int[] APPROACHES = {0, 1, 2, 3, LSAlgorithm.NLLS_ALGORITHM};
+    private static final long SEED = 20150610L;
+
+    private final List<List<ScanResult>> mScans = new ArrayList<List<ScanResult>>();
+    private ScanBatch mBatch;
+    private BatchPositioning mBatchPositioning;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(SEED);
+        int[] ids = new int[NUM_APS];
+        String[] bssids = new String[NUM_APS];
+        Point[] positions = new Point[NUM_APS];
+        // Batch arrays are indexed by AP id, id 0 is not an AP
+        double[] apPosX = new double[NUM_APS + 1];
+        double[] apPosY = new double[NUM_APS + 1];
+        apPosX[0] = apPosY[0] = Double.NaN;
+        Map<Integer, PathLossModel> modelsById = new HashMap<Integer, PathLossModel>();
+        PathLossModel model = new PathLossModel(COEFFICIENTS);
+        for (int i = 0; i < NUM_APS; i++) {
+            ids[i] = i + 1;
+            bssids[i] = String.format(Locale.US, "00:1a:2b:3c:%02x:5", i);
+            positions[i] = new Point(random.nextInt(61), random.nextInt(151));
+            apPosX[ids[i]] = positions[i].x;
+            apPosY[ids[i]] = positions[i].y;
+            modelsById.put(ids[i], model);
+        }
+        PathLossModelRegistry registry = new PathLossModelRegistry(modelsById);
+        APRegistry.publish(new APRegistry(ids, bssids, positions));
+        PathLossModelRegistry.publish(registry);
+        mBatchPositioning = new BatchPositioning(apPosX, apPosY, registry, ID_BSSID_AP_SELECTED,
+                LSAlgorithm.DEFAULT_MAX_ANCHORS);
+
+        int[] scanOffsets = new int[NUM_SCANS + 1];
+        int[] apIds = new int[NUM_SCANS * NUM_APS * SSIDS_PER_AP];
+        int[] levels = new int[apIds.length];
+        long[] timestamps = new long[NUM_SCANS];
+        double x = 30, y = 75;
+        int entries = 0;
+        for (int s = 0; s < NUM_SCANS; s++) {
+            x = Math.max(1, Math.min(59, x + 2 * random.nextDouble() - 1));
+            y = Math.max(1, Math.min(149, y + 2 * random.nextDouble() - 1));
+            timestamps[s] = s * SCAN_PERIOD_MS
+                    + (s >= GAP_SCAN ? 2 * BatchPositioning.WARM_START_MAX_GAP_MS : 0);
+            List<ScanResult> scan = new ArrayList<ScanResult>();
+            Set<Integer> strongest = new HashSet<Integer>();
+            for (int i = 0; i < NUM_APS; i++) {
+                double dist = Math.hypot(x - positions[i].x, y - positions[i].y);
+                int level = (int) Math.round(-40
+                        - dist * (1 + 0.3 * (random.nextDouble() - 0.5)));
+                while (!strongest.add(level))
+                    level--;
+                for (int k = 0; k < SSIDS_PER_AP; k++) {
+                    // First SSID is the strongest, the others are weaker
+                    int ssidLevel = level - 2 * k;
+                    scan.add(LSAlgorithmAllocationTest.newScanResult(bssids[i] + k, ssidLevel));
+                    apIds[entries] = ids[i];
+                    levels[entries] = ssidLevel;
+                    entries++;
+                }
+            }
+            mScans.add(scan);
+            scanOffsets[s + 1] = entries;
+        }
+        mBatch = new ScanBatch(scanOffsets, apIds, levels, timestamps);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBatchPositioning.shutdown();
+        APRegistry.publish(null);
+        PathLossModelRegistry.publish(null);
+        super.tearDown();
+    }
+
+    public void testGdopBatchMatchesLocate() throws InterruptedException {
+        checkBatch(LSAlgorithm.ANCHORS_GDOP);
+    }
+
+    public void testStrongestBatchMatchesLocate() throws InterruptedException {
+        checkBatch(LSAlgorithm.ANCHORS_STRONGEST);
+    }
+
+    private void checkBatch(int anchorSelection) throws InterruptedException {
+        mBatchPositioning.setAnchorSelection(anchorSelection);
+        double[] positions = new double[2 * NUM_SCANS];
+        PositionResult result = new PositionResult();
+        for (int approach : APPROACHES) {
+            mBatchPositioning.process(mBatch, approach, positions);
+            int fixes = 0;
+            LSAlgorithm lsAlgorithm = null;
+            try {
+                for (int s = 0; s < NUM_SCANS; s++) {
+                    if (isChunkStart(s)) {
+                        if (lsAlgorithm != null)
+                            lsAlgorithm.release();
+                        lsAlgorithm = newLSAlgorithm(anchorSelection);
+                    }
+                    lsAlgorithm.locate(mScans.get(s), ID_BSSID_AP_SELECTED, approach, result);
+                    String message = "Approach " + approach + ", scan " + s;
+                    if (!result.hasPosition()) {
+                        assertTrue(message, Double.isNaN(positions[2 * s]));
+                        continue;
+                    }
+                    assertEquals(message, result.x, positions[2 * s], 1e-9);
+                    assertEquals(message, result.y, positions[2 * s + 1], 1e-9);
+                    fixes++;
+                }
+            } finally {
+                if (lsAlgorithm != null)
+                    lsAlgorithm.release();
+            }
+            // Positions must have been compared, not only failures
+            assertTrue("Approach " + approach, fixes > NUM_SCANS / 2);
+        }
+    }
+
+    private LSAlgorithm newLSAlgorithm(int anchorSelection) {
+        LSAlgorithm lsAlgorithm = new LSAlgorithm(getContext());
+        lsAlgorithm.setSolverMode(LSAlgorithm.SOLVER_CLOSED_FORM);
+        lsAlgorithm.setAnchorSelection(anchorSelection);
+        lsAlgorithm.setFallbackChain(new int[0]);
+        // The batch has no NLLS time budget either
+        lsAlgorithm.getNLLSAlgorithm().setTimeBudgetNanos(0);
+        return lsAlgorithm;
+    }
+
+    /** @return true if a chunk of the batch starts at the scan (see BatchPositioning) */
+    private boolean isChunkStart(int scan) {
+        int start = 0;
+        for (int s = 1; s <= scan; s++) {
+            if (s - start == BatchPositioning.CHUNK_SIZE || mBatch.timestamps[s]
+                    - mBatch.timestamps[s - 1] > BatchPositioning.WARM_START_MAX_GAP_MS)
+                start = s;
+        }
+        return start == scan;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.android.lsindoortracker;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks BssidKey parsing and LongIntMap lookups, and benchmarks the ways a scanned BSSID can be
+ * matched with the known APs (results are logged, ns per lookup):
+ *      -substring: common BSSID name (without last digit) looked up in a HashMap
+ *      -key: group key (see BssidKey) looked up in a LongIntMap
+ *      -linear: common BSSID name compared with every known AP
+ *
+ *  Scans have SCAN_SIZE BSSIDs, half of them of known APs (any of their 4 SSIDs) and half
+ *  unknown. Times depend on the device, so only the results of each way are checked.
+ */
+public class BssidKeyTest extends TestCase {
+    private static final String TAG = "BssidKeyTest";
+    private static final int SCAN_SIZE = 250;
+    private static final int SCANS = 16;
+    private static final int WARM_UP_ROUNDS = 200;
+    private static final int ROUNDS = 200;
+    /* Lookup ways */
+    private static final int SUBSTRING = 0;
+    private static final int KEY = 1;
+    private static final int LINEAR = 2;
+    private static final int WAYS = 3;
+    private static final long SEED = 20150518L;
+
+    private final Random mRandom = new Random(SEED);
+
+    public void testParse() {
+        assertEquals(0xa1b2c3d4e5f6L, BssidKey.parse("a1:b2:c3:d4:e5:f6"));
+        assertEquals(0xa1b2c3d4e5f6L, BssidKey.parse("A1-B2-C3-D4-E5-F6"));
+        // Common BSSID names parse to their group key
+        assertEquals(0xa1b2c3d4e5f0L, BssidKey.parse("a1:b2:c3:d4:e5:f"));
+        assertEquals(BssidKey.parse("a1:b2:c3:d4:e5:f"), BssidKey.parseGroup("a1:b2:c3:d4:e5:f6"));
+        assertEquals(0xffffffffffffL, BssidKey.parse("ff:ff:ff:ff:ff:ff"));
+
+        assertEquals(BssidKey.INVALID, BssidKey.parse(null));
+        assertEquals(BssidKey.INVALID, BssidKey.parse(""));
+        assertEquals(BssidKey.INVALID, BssidKey.parse("a1:b2:c3:d4:e5"));
+        assertEquals(BssidKey.INVALID, BssidKey.parse("a1:b2:c3:d4:e5:f6:0"));
+        assertEquals(BssidKey.INVALID, BssidKey.parse("g1:b2:c3:d4:e5:f6"));
+        assertEquals(BssidKey.INVALID, BssidKey.parseGroup(null));
+    }
+
+    public void testLongIntMapMatchesHashMap() {
+        LongIntMap map = new LongIntMap(4);
+        HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int i = 0; i < 5000; i++) {
+            // Few distinct keys, so values are replaced too
+            long key = mRandom.nextInt(2000) * 0x10L + 0x001a2b000000L;
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0x001a2b000000L - 16; key < 0x001a2b000000L + 2000 * 0x10L; key += 8) {
+            Integer value = expected.get(key);
+            assertEquals(value != null, map.containsKey(key));
+            assertEquals(value != null ? value : -1, map.get(key, -1));
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(0x001a2b000000L));
+    }
+
+    public void testBenchmarkLookups() {
+        // First pass only warms up the runtime, it is not logged
+        benchmark(60, false);
+        benchmark(60, true);
+        benchmark(500, true);
+    }
+
+    private void benchmark(int numAPs, boolean isLogged) {
+        String[] known = new String[numAPs];
+        HashMap<String, Integer> byName = new HashMap<String, Integer>();
+        LongIntMap byKey = new LongIntMap(numAPs);
+        for (int ap = 0; ap < numAPs; ap++) {
+            // Names are unique, so every way finds the same slot
+            do {
+                known[ap] = randomBssid().substring(0, 16);
+            } while (byName.containsKey(known[ap]));
+            byName.put(known[ap], ap);
+            byKey.put(BssidKey.parse(known[ap]), ap);
+        }
+        String[][] scans = new String[SCANS][SCAN_SIZE];
+        for (String[] scan : scans) {
+            for (int i = 0; i < SCAN_SIZE; i++)
+                scan[i] = i % 2 == 0 ? known[mRandom.nextInt(numAPs)]
+                        + Integer.toHexString(mRandom.nextInt(4)) : randomBssid();
+        }
+
+        long[] sums = new long[WAYS];
+        double[] nanos = new double[WAYS];
+        for (int way = 0; way < WAYS; way++) {
+            for (int round = 0; round < WARM_UP_ROUNDS; round++)
+                lookUp(way, scans, byName, byKey, known);
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++)
+                sums[way] += lookUp(way, scans, byName, byKey, known);
+            nanos[way] = (double) (System.nanoTime() - start) / ROUNDS / SCANS / SCAN_SIZE;
+        }
+        assertEquals(numAPs + " APs", sums[SUBSTRING], sums[KEY]);
+        assertEquals(numAPs + " APs", sums[SUBSTRING], sums[LINEAR]);
+
+        if (isLogged)
+            Log.i(TAG, String.format(Locale.US, "%d APs, ns per lookup: substring %.1f,"
+                    + " key %.1f, linear %.1f", numAPs, nanos[SUBSTRING], nanos[KEY],
+                    nanos[LINEAR]));
+    }
+
+    /** @return sum of the slots of the known BSSIDs, so lookups are not optimised away */
+    private static long lookUp(int way, String[][] scans, HashMap<String, Integer> byName,
+                               LongIntMap byKey, String[] known) {
+        switch (way) {
+            case SUBSTRING:
+                return lookUpSubstring(scans, byName);
+            case KEY:
+                return lookUpKey(scans, byKey);
+            default:
+                return lookUpLinear(scans, known);
+        }
+    }
+
+    private static long lookUpSubstring(String[][] scans, HashMap<String, Integer> byName) {
+        long sum = 0;
+        for (String[] scan : scans) {
+            for (String bssid : scan) {
+                Integer ap = byName.get(bssid.substring(0, bssid.length() - 1));
+                if (ap != null)
+                    sum += ap;
+            }
+        }
+        return sum;
+    }
+
+    private static long lookUpKey(String[][] scans, LongIntMap byKey) {
+        long sum = 0;
+        for (String[] scan : scans) {
+            for (String bssid : scan) {
+                int ap = byKey.get(BssidKey.parseGroup(bssid), -1);
+                if (ap >= 0)
+                    sum += ap;
+            }
+        }
+        return sum;
+    }
+
+    private static long lookUpLinear(String[][] scans, String[] known) {
+        long sum = 0;
+        for (String[] scan : scans) {
+            for (String bssid : scan) {
+                String name = bssid.substring(0, bssid.length() - 1);
+                for (int ap = 0; ap < known.length; ap++) {
+                    if (known[ap].equals(name)) {
+                        sum += ap;
+                        break;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    /** @return random BSSID of the same vendor, lower case */
+    private String randomBssid() {
+        return String.format(Locale.US, "00:1a:2b:%02x:%02x:%02x", mRandom.nextInt(256),
+                mRandom.nextInt(256), mRandom.nextInt(256));
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.lsindoortracker;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks the vantage-point tree of FingerprintPositioning against its brute-force search, and
+ * benchmarks both, on synthetic radio maps: NUM_APS APs over a 60x150 m floor, reference points
+ * at random positions, RSS = -40 - 20 log10(d) plus noise, MISSING_RSS below -95 dBm.
+ *
+ *  Queries are scanned at random positions with the same model, so they are near, but not on,
+ *  the reference points. RSS values are whole dBm, as in real scans, so the k-th nearest
+ *  distance may be tied: those queries are skipped when results are compared, since each mode
+ *  may keep a different point of the tie.
+ */
+public class FingerprintPositioningTest extends TestCase {
+    private static final String TAG = "FingerprintPositioningTest";
+    private static final int NUM_APS = 18;
+    private static final int QUERIES = 500;
+    private static final int WARM_UP_QUERIES = 2000;
+    private static final long SEED = 20150420L;
+
+    private final Random mRandom = new Random(SEED);
+    private final double[] mApX = new double[NUM_APS];
+    private final double[] mApY = new double[NUM_APS];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int ap = 0; ap < NUM_APS; ap++) {
+            mApX[ap] = mRandom.nextDouble() * 60;
+            mApY[ap] = mRandom.nextDouble() * 150;
+        }
+    }
+
+    public void testVpTreeMatchesBruteForce() {
+        for (int numPoints : new int[] {1, 7, 1000, 20000}) {
+            FingerprintPositioning fingerprinting = new FingerprintPositioning(
+                    newRadioMap(numPoints), FingerprintPositioning.DEFAULT_K);
+            float[][] queries = newQueries(QUERIES);
+            double[] expected = new double[2];
+            double[] position = new double[2];
+            for (float[] query : queries) {
+                if (isTied(fingerprinting.getRadioMap(), query))
+                    continue;
+                fingerprinting.setSearchMode(FingerprintPositioning.SEARCH_BRUTE_FORCE);
+                int expectedCount = fingerprinting.estimate(query, expected);
+                fingerprinting.setSearchMode(FingerprintPositioning.SEARCH_VP_TREE);
+                assertEquals(numPoints + " points", expectedCount,
+                        fingerprinting.estimate(query, position));
+                // Same neighbours, maybe summed in another order
+                assertEquals(numPoints + " points", expected[0], position[0], 1e-9);
+                assertEquals(numPoints + " points", expected[1], position[1], 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Times both search modes with 1k, 20k and 50k reference points, and logs the mean time of a
+     * query and the distances computed by the tree. Times depend on the device, so only the
+     * distances are checked: the tree must compute fewer than brute force.
+     */
+    public void testBenchmarkVpTreeAgainstBruteForce() {
+        for (int numPoints : new int[] {1000, 20000, 50000}) {
+            FingerprintPositioning fingerprinting = new FingerprintPositioning(
+                    newRadioMap(numPoints), FingerprintPositioning.DEFAULT_K);
+            float[][] queries = newQueries(QUERIES);
+
+            fingerprinting.setSearchMode(FingerprintPositioning.SEARCH_BRUTE_FORCE);
+            double bruteForceNanos = timeQueries(fingerprinting, queries);
+            fingerprinting.setSearchMode(FingerprintPositioning.SEARCH_VP_TREE);
+            double vpTreeNanos = timeQueries(fingerprinting, queries);
+            long vpTreeDistances = 0;
+            for (float[] query : queries) {
+                fingerprinting.estimate(query, new double[2]);
+                vpTreeDistances += fingerprinting.getLastDistanceCount();
+            }
+
+            Log.i(TAG, String.format(Locale.US, "%d points: %.1f us/query, %d distances"
+                    + " (brute force %.1f us/query)", numPoints, vpTreeNanos / 1e3,
+                    vpTreeDistances / QUERIES, bruteForceNanos / 1e3));
+            assertTrue(numPoints + " points", vpTreeDistances < (long) numPoints * QUERIES);
+        }
+    }
+
+    /** @return mean time of a query (ns), after warming up the search mode */
+    private static double timeQueries(FingerprintPositioning fingerprinting, float[][] queries) {
+        double[] position = new double[2];
+        for (int i = 0; i < WARM_UP_QUERIES; i++)
+            fingerprinting.estimate(queries[i % queries.length], position);
+        long start = System.nanoTime();
+        for (float[] query : queries)
+            fingerprinting.estimate(query, position);
+        return (double) (System.nanoTime() - start) / queries.length;
+    }
+
+    /**
+     * @return true if the k-th and (k+1)-th nearest reference points are at the same distance,
+     *         then both modes may keep different neighbours
+     */
+    private static boolean isTied(RadioMap radioMap, float[] query) {
+        int k = FingerprintPositioning.DEFAULT_K;
+        if (radioMap.numPoints <= k)
+            return false;
+        double[] distances = new double[radioMap.numPoints];
+        for (int i = 0; i < radioMap.numPoints; i++) {
+            double sum = 0;
+            for (int c = 0; c < radioMap.numColumns; c++) {
+                double diff = query[c] - radioMap.rss[i * radioMap.numColumns + c];
+                sum += diff * diff;
+            }
+            distances[i] = Math.sqrt(sum);
+        }
+        Arrays.sort(distances);
+        return distances[k - 1] == distances[k];
+    }
+
+    private RadioMap newRadioMap(int numPoints) {
+        double[] posX = new double[numPoints];
+        double[] posY = new double[numPoints];
+        float[] rss = new float[numPoints * NUM_APS];
+        for (int i = 0; i < numPoints; i++) {
+            posX[i] = mRandom.nextDouble() * 60;
+            posY[i] = mRandom.nextDouble() * 150;
+            scan(posX[i], posY[i], rss, i * NUM_APS);
+        }
+        HashMap<String, Integer> columns = new HashMap<String, Integer>();
+        for (int ap = 0; ap < NUM_APS; ap++)
+            columns.put(String.format(Locale.US, "00:1a:2b:3c:%02x:5", ap), ap);
+        return new RadioMap(posX, posY, rss, columns);
+    }
+
+    private float[][] newQueries(int count) {
+        float[][] queries = new float[count][NUM_APS];
+        for (float[] query : queries)
+            scan(mRandom.nextDouble() * 60, mRandom.nextDouble() * 150, query, 0);
+        return queries;
+    }
+
+    /** Writes the RSS vector heard at (x, y) from offset */
+    private void scan(double x, double y, float[] rss, int offset) {
+        for (int ap = 0; ap < NUM_APS; ap++) {
+            double d = Math.max(1, Math.hypot(x - mApX[ap], y - mApY[ap]));
+            double level = Math.round(-40 - 20 * Math.log10(d) + 4 * mRandom.nextGaussian());
+            rss[offset + ap] = level < -95 ? RadioMap.MISSING_RSS : (float) level;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.lsindoortracker;
+
+import android.graphics.Point;
+import android.net.wifi.ScanResult;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that steady-state fixes allocate nothing (see FixContext and PositionResult): once
+ * every engine is warm and the anchor geometries are cached, replaying scans with the linearised
+ * approaches (also the best of them), NLLS and weighted centroid must not allocate any object
+ * on the fixing thread, with both solver modes and with both caller-owned and pooled results.
+ *
+ *  An allocation on the fix path shows up at least once per fix, so fewer objects than fixes
+ *  are tolerated: the runtime itself may allocate once in a while (e.g. when it compiles code).
+ *
+ *  APs and pathloss models are published in APRegistry and PathLossModelRegistry, so fixes do
+ *  not depend on the database of the device.
+ */
+public class LSAlgorithmAllocationTest extends AndroidTestCase {
+    /* 8x5 grid of APs over the map, each one with 4 SSIDs (last BSSID digit) */
+    private static final int NUM_APS = 40;
+    private static final int SSIDS_PER_AP = 4;
+    private static final int NUM_SCANS = 8;
+    private static final int WARM_UP_FIXES = 2000;
+    private static final int FIXES = 1000;
+    /* Pathloss model of every AP: d = -40 - RSS */
+    private static final double[] COEFFICIENTS = {-40, -1, 0, 0};
+
+    /* Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2, Weighted Circular = 3 */
+    private static final int[] APPROACHES = {0, 1, 2, 3, LSAlgorithm.NLLS_ALGORITHM,
+            LSAlgorithm.WEIGHTED_CENTROID, LSAlgorithm.LAST_KNOWN_POSITION,
+            LSAlgorithm.BEST_LINEAR};
+
+    private LSAlgorithm mLSAlgorithm;
+    private final List<List<ScanResult>> mScans = new ArrayList<List<ScanResult>>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int[] ids = new int[NUM_APS];
+        String[] bssids = new String[NUM_APS];
+        Point[] positions = new Point[NUM_APS];
+        Map<Integer, PathLossModel> modelsById = new HashMap<Integer, PathLossModel>();
+        PathLossModel model = new PathLossModel(COEFFICIENTS);
+        for (int i = 0; i < NUM_APS; i++) {
+            ids[i] = i + 1;
+            bssids[i] = bssid(i);
+            positions[i] = new Point((i % 5) * 14 + 2, (i / 5) * 20 + 5);
+            modelsById.put(ids[i], model);
+        }
+        APRegistry.publish(new APRegistry(ids, bssids, positions));
+        PathLossModelRegistry.publish(new PathLossModelRegistry(modelsById));
+        mLSAlgorithm = new LSAlgorithm(getContext());
+
+        Random random = new Random(7);
+        for (int s = 0; s < NUM_SCANS; s++) {
+            double x = 5 + random.nextDouble() * 50;
+            double y = 10 + random.nextDouble() * 130;
+            List<ScanResult> scan = new ArrayList<ScanResult>();
+            for (int i = 0; i < NUM_APS; i++) {
+                double dist = Math.hypot(x - positions[i].x, y - positions[i].y);
+                for (int k = 0; k < SSIDS_PER_AP; k++)
+                    scan.add(newScanResult(bssids[i] + k, (int) (-40 - dist)
+                            - random.nextInt(3)));
+            }
+            mScans.add(scan);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLSAlgorithm.release();
+        APRegistry.publish(null);
+        PathLossModelRegistry.publish(null);
+        super.tearDown();
+    }
+
+    public void testEjmlFixesDoNotAllocate() {
+        checkFixes(LSAlgorithm.SOLVER_EJML);
+    }
+
+    public void testClosedFormFixesDoNotAllocate() {
+        checkFixes(LSAlgorithm.SOLVER_CLOSED_FORM);
+    }
+
+    private void checkFixes(int solverMode) {
+        mLSAlgorithm.setSolverMode(solverMode);
+        PositionResult result = new PositionResult();
+        for (int approach : APPROACHES) {
+            for (int i = 0; i < WARM_UP_FIXES; i++)
+                mLSAlgorithm.locate(mScans.get(i % NUM_SCANS), 1, approach, result);
+            assertEquals("Approach " + approach, PositionResult.STATUS_OK, result.status);
+            // Pooled results are warmed up too
+            mLSAlgorithm.locate(mScans.get(0), 1, approach).recycle();
+
+            Debug.startAllocCounting();
+            try {
+                Debug.resetThreadAllocCount();
+                for (int i = 0; i < FIXES; i++)
+                    mLSAlgorithm.locate(mScans.get(i % NUM_SCANS), 1, approach, result);
+                assertNoAllocation("Approach " + approach + ", caller result",
+                        Debug.getThreadAllocCount());
+
+                Debug.resetThreadAllocCount();
+                for (int i = 0; i < FIXES; i++)
+                    mLSAlgorithm.locate(mScans.get(i % NUM_SCANS), 1, approach).recycle();
+                assertNoAllocation("Approach " + approach + ", pooled result",
+                        Debug.getThreadAllocCount());
+            } finally {
+                Debug.stopAllocCounting();
+            }
+        }
+    }
+
+    private static void assertNoAllocation(String message, int allocations) {
+        assertTrue(message + ": " + allocations + " objects allocated by " + FIXES + " fixes",
+                allocations < FIXES);
+    }
+
+    private static String bssid(int ap) {
+        return String.format("00:1a:2b:3c:%02x:5", ap);
+    }
+
+    /**
+     * ScanResult constructors are hidden, so one is called by reflection with default
+     * arguments, and then BSSID and level are set.
+     */
+    static ScanResult newScanResult(String bssid, int level) {
+        for (Constructor<?> constructor : ScanResult.class.getDeclaredConstructors()) {
+            Class<?>[] types = constructor.getParameterTypes();
+            Object[] args = new Object[types.length];
+            boolean isCopyConstructor = false;
+            for (int i = 0; i < types.length; i++) {
+                args[i] = defaultValue(types[i]);
+                isCopyConstructor |= types[i] == ScanResult.class;
+            }
+            if (isCopyConstructor)
+                continue;
+            try {
+                constructor.setAccessible(true);
+                ScanResult scanResult = (ScanResult) constructor.newInstance(args);
+                scanResult.BSSID = bssid;
+                scanResult.level = level;
+                return scanResult;
+            } catch (Exception e) {
+                // Try next constructor
+            }
+        }
+        throw new AssertionError("ScanResult can not be created");
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive())
+            return null;
+        if (type == boolean.class)
+            return false;
+        if (type == char.class)
+            return (char) 0;
+        if (type == long.class)
+            return 0L;
+        if (type == float.class)
+            return 0f;
+        if (type == double.class)
+            return 0d;
+        if (type == byte.class)
+            return (byte) 0;
+        if (type == short.class)
+            return (short) 0;
+        return 0;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.android.lsindoortracker;
+
+import junit.framework.TestCase;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.interfaces.linsol.LinearSolver;
+import org.ejml.ops.CommonOps;
+
+import java.util.Random;
+
+/**
+ * Checks LSClosedFormSolver against the EJML formulation of the four linearised approaches,
+ * with an explicit variance matrix S inverted by EJML for the weighted ones, on random floor
+ * geometries (AP coordinates in [0, 60]x[0, 150] m, 4 to 8 anchors, noisy distances).
+ *
+ *  Both solvers must reject the same singular systems and positions must match within
+ *  LSClosedFormSolver.SOLVER_TOLERANCE. Systems whose quality is within one decade of
+ *  QUALITY_THRESHOLD are skipped: rounding may put them on either side of the threshold in each
+ *  solver.
+ *
+ *  compareAll, which shares terms between the four approaches, must give the same positions as
+ *  each approach on its own.
+ */
+public class LSClosedFormSolverTest extends TestCase {
+    private static final int TRIALS = 20000;
+    private static final int MAX_ANCHORS = 8;
+    private static final long SEED = 20150301L;
+
+    private final LSClosedFormSolver mSolver = new LSClosedFormSolver(MAX_ANCHORS);
+    private final double[] mApX = new double[MAX_ANCHORS];
+    private final double[] mApY = new double[MAX_ANCHORS];
+    private final double[] mDist = new double[MAX_ANCHORS];
+    private final double[] mPosition = new double[2];
+    private final double[] mExpected = new double[2];
+
+    public void testHyperbolicMatchesEjml() {
+        compare(true, false);
+    }
+
+    public void testWeightedHyperbolicMatchesEjml() {
+        compare(true, true);
+    }
+
+    public void testCircularMatchesEjml() {
+        compare(false, false);
+    }
+
+    public void testWeightedCircularMatchesEjml() {
+        compare(false, true);
+    }
+
+    public void testCompareAllMatchesSingleApproaches() {
+        Random random = new Random(SEED);
+        double[] positions = new double[2 * AlgorithmComparison.NUM_APPROACHES];
+        double[] residuals = new double[AlgorithmComparison.NUM_APPROACHES];
+        int compared = 0;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            int numAnchors = 4 + random.nextInt(MAX_ANCHORS - 3);
+            randomFix(random, numAnchors);
+            AnchorGeometry geometry = new AnchorGeometry(mApX, mApY, numAnchors);
+            mSolver.compareAll(geometry, mApX, mApY, mDist, numAnchors, positions, residuals);
+
+            // Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2, Weighted Circular = 3
+            for (int approach = 0; approach < AlgorithmComparison.NUM_APPROACHES; approach++) {
+                boolean weighted = approach % 2 == 1;
+                int status = approach < 2
+                        ? mSolver.tryHyperbolic(mApX, mApY, mDist, numAnchors, weighted,
+                                mPosition)
+                        : mSolver.tryCircular(geometry, mDist, weighted, mPosition);
+                String fix = "trial " + trial + ", approach " + approach;
+                assertEquals(fix, status == PositionResult.STATUS_OK,
+                        !Double.isNaN(residuals[approach]));
+                if (status != PositionResult.STATUS_OK)
+                    continue;
+                assertEquals(fix + " x", mPosition[0], positions[2 * approach],
+                        LSClosedFormSolver.SOLVER_TOLERANCE);
+                assertEquals(fix + " y", mPosition[1], positions[2 * approach + 1],
+                        LSClosedFormSolver.SOLVER_TOLERANCE);
+                compared++;
+            }
+        }
+        assertTrue("Too few fixes compared", compared > TRIALS * 2);
+    }
+
+    private void compare(boolean hyperbolic, boolean weighted) {
+        Random random = new Random(SEED);
+        int compared = 0;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            int numAnchors = 4 + random.nextInt(MAX_ANCHORS - 3);
+            randomFix(random, numAnchors);
+
+            double quality = hyperbolic ? referenceHyperbolic(numAnchors, weighted)
+                    : referenceCircular(numAnchors, weighted);
+            if (Double.isNaN(quality))
+                continue;
+            int status;
+            if (hyperbolic) {
+                status = mSolver.tryHyperbolic(mApX, mApY, mDist, numAnchors, weighted,
+                        mPosition);
+            } else {
+                AnchorGeometry geometry = new AnchorGeometry(mApX, mApY, numAnchors);
+                status = mSolver.tryCircular(geometry, mDist, weighted, mPosition);
+            }
+
+            String fix = "trial " + trial + " (quality " + quality + ")";
+            if (quality <= LSClosedFormSolver.QUALITY_THRESHOLD) {
+                assertTrue(fix + " should be rejected", status != PositionResult.STATUS_OK);
+                continue;
+            }
+            assertEquals(fix, PositionResult.STATUS_OK, status);
+            assertEquals(fix + " x", mExpected[0], mPosition[0],
+                    LSClosedFormSolver.SOLVER_TOLERANCE);
+            assertEquals(fix + " y", mExpected[1], mPosition[1],
+                    LSClosedFormSolver.SOLVER_TOLERANCE);
+            compared++;
+        }
+        assertTrue("Too few fixes compared", compared > TRIALS / 2);
+    }
+
+    /**
+     * Random anchors (integer coordinates, like bssids table) and distances from a random user
+     * position with +-30% error, at least one meter.
+     */
+    private void randomFix(Random random, int numAnchors) {
+        double x = random.nextDouble() * 60;
+        double y = random.nextDouble() * 150;
+        for (int i = 0; i < numAnchors; i++) {
+            mApX[i] = random.nextInt(61);
+            mApY[i] = random.nextInt(151);
+            double dx = x - mApX[i];
+            double dy = y - mApY[i];
+            double error = 1 + 0.6 * (random.nextDouble() - 0.5);
+            mDist[i] = Math.max(1, Math.sqrt(dx * dx + dy * dy) * error);
+        }
+    }
+
+    /**
+     * EJML hyperbolic approach, solution is written in mExpected.
+     * @return quality of the solved system, NaN if the fix must be skipped
+     */
+    private double referenceHyperbolic(int numAnchors, boolean weighted) {
+        int rows = numAnchors - 1;
+        DenseMatrix64F A = new DenseMatrix64F(rows, 3);
+        DenseMatrix64F b = new DenseMatrix64F(rows, 1);
+        double K1 = mApX[0] * mApX[0] + mApY[0] * mApY[0];
+        for (int i = 0; i < rows; i++) {
+            int ap = i + 1;
+            double ri_1 = mDist[ap] - mDist[0];
+            double Ki = mApX[ap] * mApX[ap] + mApY[ap] * mApY[ap];
+            A.set(i, 0, -(mApX[ap] - mApX[0]));
+            A.set(i, 1, -(mApY[ap] - mApY[0]));
+            A.set(i, 2, -ri_1);
+            b.set(i, 0.5 * (ri_1 * ri_1 - Ki + K1));
+        }
+        return solve(A, b, weighted, numAnchors, 0, 0);
+    }
+
+    /**
+     * EJML circular approach, solution is written in mExpected.
+     * @return quality of the solved system, NaN if the fix must be skipped
+     */
+    private double referenceCircular(int numAnchors, boolean weighted) {
+        int rows = numAnchors - 1;
+        DenseMatrix64F A = new DenseMatrix64F(rows, 2);
+        DenseMatrix64F b = new DenseMatrix64F(rows, 1);
+        for (int i = 0; i < rows; i++) {
+            int ap = i + 1;
+            double dx = mApX[ap] - mApX[0];
+            double dy = mApY[ap] - mApY[0];
+            A.set(i, 0, dx);
+            A.set(i, 1, dy);
+            b.set(i, 0.5 * (mDist[0] * mDist[0] - mDist[ap] * mDist[ap] + dx * dx + dy * dy));
+        }
+        if (weighted) {
+            // Closed-form solver rejects singular geometries before weighting them
+            double geometryQuality = solve(A.copy(), b.copy(), false, numAnchors, 0, 0);
+            if (Double.isNaN(geometryQuality)
+                    || geometryQuality <= LSClosedFormSolver.QUALITY_THRESHOLD)
+                return geometryQuality;
+        }
+        return solve(A, b, weighted, numAnchors, mApX[0], mApY[0]);
+    }
+
+    /**
+     * Solves A*x = b (or S^-1*A*x = S^-1*b) with EJML least square solver.
+     * @return quality of the system, NaN if it is too close to the threshold to be compared
+     */
+    private double solve(DenseMatrix64F A, DenseMatrix64F b, boolean weighted, int numAnchors,
+                         double xOffset, double yOffset) {
+        int rows = A.numRows;
+        if (weighted) {
+            /* Explicit S = D + Var(r1²)*11', Var(ri²) = ri^4 */
+            DenseMatrix64F S = new DenseMatrix64F(rows, rows);
+            double v = Math.pow(mDist[0], 4);
+            for (int i = 0; i < rows; i++)
+                for (int j = 0; j < rows; j++)
+                    S.set(i, j, i == j ? v + Math.pow(mDist[i + 1], 4) : v);
+            DenseMatrix64F SInv = new DenseMatrix64F(rows, rows);
+            assertTrue(CommonOps.invert(S, SInv));
+            DenseMatrix64F APrime = new DenseMatrix64F(rows, A.numCols);
+            DenseMatrix64F bPrime = new DenseMatrix64F(rows, 1);
+            CommonOps.mult(SInv, A, APrime);
+            CommonOps.mult(SInv, b, bPrime);
+            A = APrime;
+            b = bPrime;
+        }
+        LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.leastSquares(rows, A.numCols);
+        if (!solver.setA(A))
+            return 0;
+        double quality = solver.quality();
+        if (quality > LSClosedFormSolver.QUALITY_THRESHOLD / 10
+                && quality <= LSClosedFormSolver.QUALITY_THRESHOLD * 10)
+            return Double.NaN;
+        if (quality > LSClosedFormSolver.QUALITY_THRESHOLD) {
+            DenseMatrix64F x = new DenseMatrix64F(A.numCols, 1);
+            solver.solve(b, x);
+            mExpected[0] = x.get(0) + xOffset;
+            mExpected[1] = x.get(1) + yOffset;
+        }
+        return quality;
+    }
+}
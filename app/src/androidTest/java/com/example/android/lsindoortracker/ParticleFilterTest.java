@@ -0,0 +1,122 @@
+package com.example.android.lsindoortracker;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmarks the particle filter with 1k, 10k and 100k particles (results are logged, fixes per
+ * second), on a synthetic floor: the 60x150 m map with its outer walls and a wall across it at
+ * half height with a door, NUM_APS APs at random positions, and a user walking at WALK_SPEED
+ * with one fix per second. Distances have +-RANGE_ERROR relative error.
+ *
+ *  Times depend on the device and the number of cores, so only the results are checked: every
+ *  fix must keep the track and give a position on the floor.
+ */
+public class ParticleFilterTest extends TestCase {
+    private static final String TAG = "ParticleFilterTest";
+    private static final int NUM_APS = 8;
+    private static final int WARM_UP_FIXES = 20;
+    private static final int FIXES = 50;
+    private static final long FIX_PERIOD_MS = 1000;
+    /* User speed (m/s) and relative error of distances */
+    private static final double WALK_SPEED = 1.0;
+    private static final double RANGE_ERROR = 0.15;
+    private static final double CELL_SIZE = FloorPlan.DEFAULT_CELL_SIZE;
+    private static final long SEED = 20150602L;
+
+    private final Random mRandom = new Random(SEED);
+    private final double[] mApX = new double[NUM_APS];
+    private final double[] mApY = new double[NUM_APS];
+    private final double[] mDist = new double[NUM_APS];
+    private FloorPlan mFloorPlan;
+    /* User position and heading */
+    private double mX, mY, mHeading;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int cols = (int) Math.round(FloorPlan.MAP_WIDTH / CELL_SIZE);
+        int rows = (int) Math.round(FloorPlan.MAP_HEIGHT / CELL_SIZE);
+        boolean[] walls = new boolean[cols * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                boolean isBorder = row == 0 || col == 0 || row == rows - 1 || col == cols - 1;
+                // Wall across the floor, with a 4 m door in the middle
+                boolean isWall = row == rows / 2 && Math.abs(col - cols / 2) * CELL_SIZE > 2;
+                walls[row * cols + col] = isBorder || isWall;
+            }
+        }
+        mFloorPlan = new FloorPlan(walls, cols, rows, CELL_SIZE);
+        for (int ap = 0; ap < NUM_APS; ap++) {
+            mApX[ap] = 1 + mRandom.nextDouble() * (FloorPlan.MAP_WIDTH - 2);
+            mApY[ap] = 1 + mRandom.nextDouble() * (FloorPlan.MAP_HEIGHT - 2);
+        }
+    }
+
+    public void testBenchmarkFixes() throws InterruptedException {
+        // First pass only warms up the runtime, it is not logged
+        benchmark(1000, false);
+        for (int numParticles : new int[] {1000, 10000, 100000})
+            benchmark(numParticles, true);
+    }
+
+    private void benchmark(int numParticles, boolean isLogged) throws InterruptedException {
+        ParticleFilter particleFilter = new ParticleFilter(mFloorPlan, numParticles);
+        try {
+            mX = FloorPlan.MAP_WIDTH / 2;
+            mY = FloorPlan.MAP_HEIGHT / 4;
+            mHeading = 0;
+            long timeMillis = 0;
+            double[] position = new double[2];
+            for (int fix = 0; fix < WARM_UP_FIXES; fix++) {
+                timeMillis += FIX_PERIOD_MS;
+                estimate(particleFilter, timeMillis, position);
+            }
+
+            long start = System.nanoTime();
+            for (int fix = 0; fix < FIXES; fix++) {
+                timeMillis += FIX_PERIOD_MS;
+                estimate(particleFilter, timeMillis, position);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            if (isLogged)
+                Log.i(TAG, String.format(Locale.US, "%d particles: %.1f fixes/s (%.2f ms/fix),"
+                        + " %d cores", numParticles, FIXES / seconds, seconds * 1e3 / FIXES,
+                        Runtime.getRuntime().availableProcessors()));
+        } finally {
+            particleFilter.shutdown();
+        }
+    }
+
+    /** Walks the user one fix period and estimates the position from the distances there */
+    private void estimate(ParticleFilter particleFilter, long timeMillis, double[] position)
+            throws InterruptedException {
+        walk(WALK_SPEED * FIX_PERIOD_MS / 1000.0);
+        for (int ap = 0; ap < NUM_APS; ap++)
+            mDist[ap] = Math.hypot(mX - mApX[ap], mY - mApY[ap])
+                    * (1 + RANGE_ERROR * (2 * mRandom.nextDouble() - 1));
+        assertTrue("track lost", particleFilter.estimate(mApX, mApY, mDist, NUM_APS, timeMillis,
+                position));
+        assertTrue(position[0] >= 0 && position[0] <= FloorPlan.MAP_WIDTH);
+        assertTrue(position[1] >= 0 && position[1] <= FloorPlan.MAP_HEIGHT);
+    }
+
+    /** Moves the user, turning randomly and never through walls */
+    private void walk(double step) {
+        for (int tries = 0; tries < 100; tries++) {
+            mHeading += 0.5 * mRandom.nextGaussian();
+            double x = mX + step * Math.cos(mHeading);
+            double y = mY + step * Math.sin(mHeading);
+            if (mFloorPlan.isFree(x, y) && mFloorPlan.isPathFree(mX, mY, x, y)) {
+                mX = x;
+                mY = y;
+                return;
+            }
+        }
+    }
+}
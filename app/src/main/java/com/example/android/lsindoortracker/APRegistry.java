@@ -0,0 +1,126 @@
+package com.example.android.lsindoortracker;
+
+import android.graphics.Point;
+
+/**
+ * Process-wide, read-mostly snapshot of bssids table: id, common BSSID (without last digit) and
+ * position of every known AP, indexed by AP key (see BssidKey), so positioning fixes never read
+ * AP data from SQLite.
+ *
+ *  Snapshots are immutable. The current one is loaded once, on first use, and published through
+ *  a volatile reference, like PathLossModelRegistry. When bssids table changes, the handler
+ *  which changed it reloads the snapshot (see IndoorTrackerDatabaseHandler.getData) and swaps
+ *  it atomically; readers holding the old one keep a complete, consistent view, and pick the
+ *  new one up on their next fix (compare instances with getInstance). While the table is being
+ *  upgraded it can not be read, so the snapshot is only invalidated and loaded again on next use.
+ *
+ *  APs are referred by their slot in the snapshot, 0 <= slot < size().
+ */
+public class APRegistry {
+    private static volatile APRegistry sInstance;
+
+    private final LongIntMap mIndex;
+    private final int[] mIds;
+    private final String[] mBssids;
+    private final Point[] mPositions;
+
+    /**
+     * @param ids AP id of each slot
+     * @param bssids common BSSID (without last digit) of each slot
+     * @param positions position of each slot. Points must not be modified afterwards
+     */
+    public APRegistry(int[] ids, String[] bssids, Point[] positions) {
+        if (ids.length != bssids.length || ids.length != positions.length)
+            throw new IllegalArgumentException("ids, bssids and positions must have the same"
+                    + " length");
+        mIds = ids;
+        mBssids = bssids;
+        mPositions = positions;
+        mIndex = new LongIntMap(ids.length);
+        for (int slot = 0; slot < ids.length; slot++) {
+            long key = BssidKey.parseGroup(bssids[slot]);
+            // Malformed BSSIDs can never be heard, their slot is left unreachable. A BSSID may
+            // be stored twice (BSSID11 and BSSID13 of the default table): the first slot keeps
+            // it, as the old lookup matched the first row, and the other one is unreachable
+            if (key != BssidKey.INVALID && !mIndex.containsKey(key))
+                mIndex.put(key, slot);
+        }
+    }
+
+    /**
+     * Gets current snapshot, loading it from database if there is none.
+     * @param dbHandler database handler, only used if the snapshot must be loaded
+     * @return current snapshot
+     */
+    public static APRegistry getInstance(IndoorTrackerDatabaseHandler dbHandler) {
+        APRegistry registry = sInstance;
+        if (registry == null) {
+            synchronized (APRegistry.class) {
+                registry = sInstance;
+                if (registry == null) {
+                    registry = dbHandler.loadAPRegistryDB();
+                    sInstance = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Loads a new snapshot from database and publishes it.
+     * @param dbHandler database handler
+     * @return new snapshot
+     */
+    public static APRegistry reload(IndoorTrackerDatabaseHandler dbHandler) {
+        synchronized (APRegistry.class) {
+            APRegistry registry = dbHandler.loadAPRegistryDB();
+            sInstance = registry;
+            return registry;
+        }
+    }
+
+    /** Drops current snapshot, next getInstance loads it again */
+    public static void invalidate() {
+        synchronized (APRegistry.class) {
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Publishes a snapshot which was not loaded from database (e.g. test fixtures).
+     * @param registry new snapshot, null to drop current one
+     */
+    static void publish(APRegistry registry) {
+        synchronized (APRegistry.class) {
+            sInstance = registry;
+        }
+    }
+
+    /** @return number of known APs */
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @param key AP key (see BssidKey.parseGroup)
+     * @return slot of the AP, -1 if it is not known
+     */
+    public int find(long key) {
+        return key == BssidKey.INVALID ? -1 : mIndex.get(key, -1);
+    }
+
+    /** @return AP id (bssids table) of a slot */
+    public int getId(int slot) {
+        return mIds[slot];
+    }
+
+    /** @return common BSSID (without last digit) of a slot */
+    public String getBssid(int slot) {
+        return mBssids[slot];
+    }
+
+    /** @return position of a slot. It must not be modified */
+    public Point getPosition(int slot) {
+        return mPositions[slot];
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.android.lsindoortracker;
+
+import android.graphics.Point;
+
+/**
+ * Estimates of the four linearised approaches for the same scan, as given by
+ * LSAlgorithm.compareAllAlgorithms. Approaches are indexed as posAlgSelected:
+ * Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2, Weighted Circular = 3.
+ *
+ * Each estimate comes with its RMS range residual (meters), so the approach which fits best the
+ * estimated distances can be picked per fix.
+ */
+public class AlgorithmComparison {
+    public static final int NUM_APPROACHES = 4;
+
+    /** [x, y] of each approach, NaN if it could not be estimated */
+    public final double[] positions = new double[2 * NUM_APPROACHES];
+    /** RMS range residual of each approach, NaN if it could not be estimated */
+    public final double[] residuals = new double[NUM_APPROACHES];
+    /** Number of APs used, less than LSAlgorithm.MIN_ANCHORS if no approach could be applied */
+    public int numAnchors;
+
+    public boolean isEstimated(int posAlg) {
+        return !Double.isNaN(residuals[posAlg]);
+    }
+
+    /**
+     * @param posAlg approach of interest
+     * @return position estimated by that approach, null if it could not be estimated
+     */
+    public Point getPosition(int posAlg) {
+        if (!isEstimated(posAlg))
+            return null;
+        return new Point((int) positions[2 * posAlg], (int) positions[2 * posAlg + 1]);
+    }
+
+    /**
+     * @return approach with the lowest residual, -1 if no approach could be estimated
+     */
+    public int getBestApproach() {
+        int best = -1;
+        for (int i = 0; i < NUM_APPROACHES; i++)
+            if (isEstimated(i) && (best < 0 || residuals[i] < residuals[best]))
+                best = i;
+        return best;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.android.lsindoortracker;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.interfaces.linsol.LinearSolver;
+import org.ejml.ops.CommonOps;
+
+/**
+ * Precomputed geometry of an ordered anchor tuple (AP1 first) for the circular approaches.
+ * Everything stored here depends only on AP coordinates, not on RSS:
+ *
+ *      A =   [(x2-x1) (y2-y1);
+ *             (x3-x1) (y3-y1);
+ *             (x4-x1) (y4-y1)]
+ *
+ *      di_1 = (xi-x1)^2 + (yi-y1)^2
+ *
+ *      A+ = (A'A)^-1*A'   (pseudo-inverse, obtained from QR decomposition of A)
+ *
+ * Therefore, circular approach is reduced to x = A+ * b once b has been formed.
+ */
+public class AnchorGeometry {
+    public final int numRows;
+    public final double x1;
+    public final double y1;
+    /** Matrix A, row-major (numRows x 2) */
+    public final double[] a;
+    /** di_1 terms, one for each row */
+    public final double[] dSq;
+    /** Pseudo-inverse of A, row-major (2 x numRows). Zero if A is nearly singular */
+    public final double[] pinv;
+    /** Quality of QR decomposition of A, same measure than EJML solvers */
+    public final double quality;
+
+    /**
+     * Computes geometry of the anchor tuple.
+     * @param apX AP x coordinates, AP1 first
+     * @param apY AP y coordinates, AP1 first
+     * @param numAnchors number of anchors of the tuple
+     */
+    public AnchorGeometry(double[] apX, double[] apY, int numAnchors) {
+        numRows = numAnchors - 1;
+        x1 = apX[0];
+        y1 = apY[0];
+        a = new double[numRows * 2];
+        dSq = new double[numRows];
+        pinv = new double[2 * numRows];
+        for (int i = 0; i < numRows; i++) {
+            double dx = apX[i + 1] - x1;
+            double dy = apY[i + 1] - y1;
+            a[i * 2] = dx;
+            a[i * 2 + 1] = dy;
+            dSq[i] = dx * dx + dy * dy;
+        }
+
+        /* A+ is the least square solution of A*X = I */
+        DenseMatrix64F A = new DenseMatrix64F(numRows, 2, true, a);
+        LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.leastSquares(numRows, 2);
+        if (!solver.setA(A)) {
+            quality = 0;
+            return;
+        }
+        quality = solver.quality();
+        if (quality > LSClosedFormSolver.QUALITY_THRESHOLD) {
+            DenseMatrix64F P = new DenseMatrix64F(2, numRows);
+            solver.solve(CommonOps.identity(numRows), P);
+            System.arraycopy(P.data, 0, pinv, 0, pinv.length);
+        }
+    }
+
+    public boolean isNearlySingular() {
+        return quality <= LSClosedFormSolver.QUALITY_THRESHOLD;
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.android.lsindoortracker;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of AnchorGeometry objects keyed by the ordered anchor tuple (AP coordinates, AP1
+ * first).
+ *
+ * A user standing still sees the same few anchor tuples scan after scan, hence most fixes only
+ * need to look their geometry up. Lookups use a reusable probe key, so a cache hit does not
+ * allocate anything; only misses create a new key and a new AnchorGeometry.
+ *
+ * NOTE: the cache is not synchronized. It is owned by one LSAlgorithm instance and must be used
+ * only by the thread running that algorithm. Counters can be read from any thread.
+ */
+public class AnchorGeometryCache {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final int mCapacity;
+    private final Map<TupleKey, AnchorGeometry> mCache;
+    private final TupleKey mProbe = new TupleKey();
+    private volatile long mHits = 0;
+    private volatile long mMisses = 0;
+
+    public AnchorGeometryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AnchorGeometryCache(int capacity) {
+        mCapacity = capacity;
+        // Access ordered LinkedHashMap: the eldest entry is the least recently used one
+        mCache = new LinkedHashMap<TupleKey, AnchorGeometry>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TupleKey, AnchorGeometry> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * Gets geometry of the anchor tuple, computing and storing it if it is not cached yet.
+     * @param apX AP x coordinates, AP1 first
+     * @param apY AP y coordinates, AP1 first
+     * @param numAnchors number of anchors of the tuple
+     * @return geometry of the tuple
+     */
+    public AnchorGeometry lookup(double[] apX, double[] apY, int numAnchors) {
+        mProbe.set(apX, apY, numAnchors);
+        AnchorGeometry geometry = mCache.get(mProbe);
+        if (geometry != null) {
+            mHits++;
+            return geometry;
+        }
+        mMisses++;
+        geometry = new AnchorGeometry(apX, apY, numAnchors);
+        mCache.put(mProbe.copy(), geometry);
+        return geometry;
+    }
+
+    public long getHitCount() {
+        return mHits;
+    }
+
+    public long getMissCount() {
+        return mMisses;
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    public void clear() {
+        mCache.clear();
+    }
+
+    /**
+     * Ordered anchor tuple: raw bits of (x, y) of each anchor.
+     */
+    private static class TupleKey {
+        long[] coords = new long[0];
+        int length;
+        int hash;
+
+        void set(double[] apX, double[] apY, int numAnchors) {
+            if (coords.length < numAnchors * 2)
+                coords = new long[numAnchors * 2];
+            length = numAnchors * 2;
+            int h = 1;
+            for (int i = 0; i < numAnchors; i++) {
+                long bitsX = Double.doubleToLongBits(apX[i]);
+                long bitsY = Double.doubleToLongBits(apY[i]);
+                coords[i * 2] = bitsX;
+                coords[i * 2 + 1] = bitsY;
+                h = 31 * h + (int) (bitsX ^ (bitsX >>> 32));
+                h = 31 * h + (int) (bitsY ^ (bitsY >>> 32));
+            }
+            hash = h;
+        }
+
+        TupleKey copy() {
+            TupleKey key = new TupleKey();
+            key.coords = Arrays.copyOf(coords, length);
+            key.length = length;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TupleKey))
+                return false;
+            TupleKey other = (TupleKey) o;
+            if (other.length != length || other.hash != hash)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (coords[i] != other.coords[i])
+                    return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.android.lsindoortracker;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Selects the K anchors of a fix among N candidates by geometric dilution of precision, instead
+ * of just taking the K strongest ones, which may be nearly collinear along a corridor.
+ *
+ *  Around the position estimate p (RSS-weighted centroid of the candidates), a range to anchor i
+ *  constrains p along the unit vector hi = (p - ai) / ||p - ai||. Its accuracy decays with the
+ *  distance (Var(ri) ~ ri^2, as in weighted approaches), which is the signal strength prior:
+ *
+ *      J = sum(wi * hi * hi'),   wi = 1 / max(ri, 1)^2
+ *
+ *      score = trace(J^-1) = (J00 + J11) / det(J)        (weighted GDOP^2)
+ *
+ *  Subsets are built greedily: AP1 is always the strongest candidate (reference of linearised
+ *  approaches), then the candidate whose rank-1 update of J gives the lowest score is added
+ *  until there are K. Each update of the 2x2 matrix and its determinant is O(1), so selection is
+ *  O(K*N), far cheaper than the solve. A tiny REGULARIZATION keeps J invertible while it has
+ *  rank 1 (first steps).
+ *
+ *  Selections are memoized in an LRU cache, so a user standing still does not run the greedy
+ *  search again. The score depends on the ranges and, through p, on the RSS, so the key is the
+ *  candidate tuple (AP ids in RSS order) plus both, quantised: each range to RANGE_BUCKET_RATIO
+ *  steps (log scale, as weights are relative to the range) and each RSS, relative to the
+ *  strongest one, to RSS_BUCKET_DB steps. This is an approximation: a memoized selection is the
+ *  greedy result of a geometry in the same buckets, not necessarily of the current one, but any
+ *  move which changes a weight or shifts p noticeably gives a new key.
+ *
+ *  NOTE: it is not thread-safe (LSAlgorithm owns one per instance).
+ */
+public class AnchorSelector {
+    public static final int DEFAULT_MEMO_CAPACITY = 32;
+    /** Added to the diagonal of J, far below the information of any anchor in the map */
+    private static final double REGULARIZATION = 1e-9;
+    /** Ranges below this (meters) do not give more weight */
+    private static final double MIN_RANGE = 1.0;
+    /** Ratio between consecutive range buckets of the memo key (25% of range, 44% of weight) */
+    private static final double RANGE_BUCKET_RATIO = 1.25;
+    private static final double LOG_RANGE_BUCKET = Math.log(RANGE_BUCKET_RATIO);
+    /** Width of RSS buckets of the memo key (dB), centroid weights halve every 3 dB */
+    private static final int RSS_BUCKET_DB = 3;
+
+    private final int mMemoCapacity;
+    private final Map<TupleKey, int[]> mMemo;
+    private final TupleKey mProbe = new TupleKey();
+    private long mMemoHits = 0;
+    private long mMemoMisses = 0;
+
+    /* Per candidate: unit vector and weight */
+    private double[] mHx = new double[0], mHy = new double[0], mW = new double[0];
+    private boolean[] mIsSelected = new boolean[0];
+
+    public AnchorSelector() {
+        this(DEFAULT_MEMO_CAPACITY);
+    }
+
+    public AnchorSelector(int memoCapacity) {
+        mMemoCapacity = memoCapacity;
+        // Access ordered LinkedHashMap: the eldest entry is the least recently used one
+        mMemo = new LinkedHashMap<TupleKey, int[]>(memoCapacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TupleKey, int[]> eldest) {
+                return size() > mMemoCapacity;
+            }
+        };
+    }
+
+    /**
+     * Selects k anchors among the candidates.
+     *
+     * @param ids AP id of each candidate (memo key)
+     * @param apX AP x coordinates
+     * @param apY AP y coordinates
+     * @param dist estimated distances (memo key, quantised)
+     * @param rss RSS of each candidate (memo key, quantised)
+     * @param numCandidates N, candidates sorted by RSS in descending order
+     * @param k number of anchors to select
+     * @param selected output: indices of the selected candidates, in ascending order (so AP1 is
+     *                 the strongest one). Modified.
+     * @return number of anchors selected, min(k, N)
+     */
+    public int select(int[] ids, double[] apX, double[] apY, double[] dist, int[] rss,
+                      int numCandidates, int k, int[] selected) {
+        if (numCandidates <= k) {
+            for (int i = 0; i < numCandidates; i++)
+                selected[i] = i;
+            return numCandidates;
+        }
+
+        mProbe.set(ids, dist, rss, numCandidates, k);
+        int[] memo = mMemo.get(mProbe);
+        if (memo != null) {
+            mMemoHits++;
+            System.arraycopy(memo, 0, selected, 0, k);
+            return k;
+        }
+        mMemoMisses++;
+        greedySelect(apX, apY, dist, rss, numCandidates, k, selected);
+        mMemo.put(mProbe.copy(), Arrays.copyOf(selected, k));
+        return k;
+    }
+
+    public long getMemoHitCount() {
+        return mMemoHits;
+    }
+
+    public long getMemoMissCount() {
+        return mMemoMisses;
+    }
+
+    public void clear() {
+        mMemo.clear();
+    }
+
+    private void greedySelect(double[] apX, double[] apY, double[] dist, int[] rss,
+                              int numCandidates, int k, int[] selected) {
+        ensureCapacity(numCandidates);
+
+        /* Position estimate: weighted centroid, wi = 10^((RSSi - RSSmax) / 10) */
+        double sumW = 0, px = 0, py = 0;
+        for (int i = 0; i < numCandidates; i++) {
+            double w = Math.pow(10, (rss[i] - rss[0]) / 10.0);
+            px += w * apX[i];
+            py += w * apY[i];
+            sumW += w;
+        }
+        px /= sumW;
+        py /= sumW;
+
+        /* Unit vectors and weights. An anchor at p gives no direction, hence no information */
+        for (int i = 0; i < numCandidates; i++) {
+            double dx = px - apX[i], dy = py - apY[i];
+            double norm = Math.sqrt(dx * dx + dy * dy);
+            if (norm > 0) {
+                mHx[i] = dx / norm;
+                mHy[i] = dy / norm;
+            } else {
+                mHx[i] = mHy[i] = 0;
+            }
+            double range = Math.max(dist[i], MIN_RANGE);
+            mW[i] = 1 / (range * range);
+            mIsSelected[i] = false;
+        }
+
+        /* AP1 is the strongest candidate */
+        double j00 = REGULARIZATION, j01 = 0, j11 = REGULARIZATION;
+        j00 += mW[0] * mHx[0] * mHx[0];
+        j01 += mW[0] * mHx[0] * mHy[0];
+        j11 += mW[0] * mHy[0] * mHy[0];
+        mIsSelected[0] = true;
+
+        /* Greedy rank-1 updates */
+        for (int step = 1; step < k; step++) {
+            int best = -1;
+            double bestScore = Double.POSITIVE_INFINITY;
+            for (int i = 1; i < numCandidates; i++) {
+                if (mIsSelected[i])
+                    continue;
+                double w = mW[i];
+                double a = j00 + w * mHx[i] * mHx[i];
+                double b = j01 + w * mHx[i] * mHy[i];
+                double c = j11 + w * mHy[i] * mHy[i];
+                double score = (a + c) / (a * c - b * b);
+                // Ties keep the stronger candidate
+                if (score < bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+            double w = mW[best];
+            j00 += w * mHx[best] * mHx[best];
+            j01 += w * mHx[best] * mHy[best];
+            j11 += w * mHy[best] * mHy[best];
+            mIsSelected[best] = true;
+        }
+
+        int count = 0;
+        for (int i = 0; i < numCandidates; i++)
+            if (mIsSelected[i])
+                selected[count++] = i;
+    }
+
+    private void ensureCapacity(int numCandidates) {
+        if (mHx.length >= numCandidates)
+            return;
+        mHx = new double[numCandidates];
+        mHy = new double[numCandidates];
+        mW = new double[numCandidates];
+        mIsSelected = new boolean[numCandidates];
+    }
+
+    /**
+     * Candidate tuple (AP ids in RSS order), bucket of each candidate (range and RSS, see
+     * select) and number of anchors selected. The probe instance is refilled for every lookup
+     * and copied only when stored.
+     */
+    private static class TupleKey {
+        int[] ids = new int[0];
+        int[] buckets = new int[0];
+        int length;
+        int k;
+        int hash;
+
+        void set(int[] candidateIds, double[] dist, int[] rss, int numCandidates,
+                 int numSelected) {
+            if (ids.length < numCandidates) {
+                ids = new int[numCandidates];
+                buckets = new int[numCandidates];
+            }
+            length = numCandidates;
+            k = numSelected;
+            int h = numSelected;
+            for (int i = 0; i < numCandidates; i++) {
+                int rangeBucket = (int) Math.floor(Math.log(Math.max(dist[i], MIN_RANGE))
+                        / LOG_RANGE_BUCKET);
+                int rssBucket = (rss[0] - rss[i]) / RSS_BUCKET_DB;
+                ids[i] = candidateIds[i];
+                buckets[i] = rangeBucket << 16 | rssBucket;
+                h = 31 * (31 * h + candidateIds[i]) + buckets[i];
+            }
+            hash = h;
+        }
+
+        TupleKey copy() {
+            TupleKey key = new TupleKey();
+            key.ids = Arrays.copyOf(ids, length);
+            key.buckets = Arrays.copyOf(buckets, length);
+            key.length = length;
+            key.k = k;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TupleKey))
+                return false;
+            TupleKey other = (TupleKey) o;
+            if (other.length != length || other.k != k || other.hash != hash)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (ids[i] != other.ids[i] || buckets[i] != other.buckets[i])
+                    return false;
+            return true;
+        }
+    }
+}
@@ -14,9 +14,9 @@ import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
 
 
 public class ApplyingRegressionActivity extends Activity {
+    // OLS needs more observations than coefficients
+    private static final int MIN_SAMPLES = 5;
     private int mIdBssidApSelected;
-    private double [] mRssValuesDB;
-    private double [] mDistanceValuesDB;
 
     private double [] mInputCoefficients;
     private EditText m_aCoeff, m_bCoeff, m_cCoeff, m_dCoeff;
@@ -58,7 +58,7 @@ public class ApplyingRegressionActivity extends Activity {
 
     private void initiateAndroid() {
         // Creation of MAC/BSSID database
-        measdbh = new IndoorTrackerDatabaseHandler(this);
+        measdbh = IndoorTrackerDatabaseHandler.getInstance(this);
 
         mInputCoefficients = new double[4];
 
@@ -111,44 +111,55 @@ public class ApplyingRegressionActivity extends Activity {
     }
 
     public void startPolynomialRegression(View view){
-        // We get set of data from database
-        mRssValuesDB = measdbh.getRSSValuesDB (getmIdBssidApSelected());
-        mDistanceValuesDB = measdbh.getDistanceValuesDB(getmIdBssidApSelected());
+        // We get set of data from database, RSS and distance aligned in a single query
+        SurveyData survey = measdbh.loadSurveyDataDB(getmIdBssidApSelected());
+        double[] coefficients = fitPathLossModel(survey, 0, survey.size);
+        // Show them in the screen
+        // Store them on database
+        measdbh.addCoefficientsDB(mIdBssidApSelected, coefficients);
+    }
+
+    /**
+     * Estimates the pathloss model of every AP with enough measurements, from a single fetch of
+     * measurements table
+     * @param view View
+     */
+    public void startPolynomialRegressionAllAPs(View view){
+        SurveyData survey = measdbh.loadSurveyDataDB(IndoorTrackerDatabaseHandler.ALL_APS);
+        for (int ap = 0; ap < survey.numAPs; ap++) {
+            int start = survey.getStart(ap), end = survey.getEnd(ap);
+            if (end - start < MIN_SAMPLES)
+                continue;
+            measdbh.addCoefficientsDB(survey.getApId(ap), fitPathLossModel(survey, start, end));
+        }
+    }
+
+    /**
+     * Fits distance = a + b*RSS + c*RSS² + d*RSS³ to the measurements of rows [start, end)
+     * @return coefficients [a b c d]
+     */
+    private static double[] fitPathLossModel(SurveyData survey, int start, int end) {
         /* Curve fitting using 4th order polynomial regression */
         // Creation of input data: y[] and X[][] - NOTE: I should consider using an external matrix
         // library
         int k = 4; // Polynomial degree is k - 1 = 3th degree
-        int n = mRssValuesDB.length; // n = number of observations
-        double y[] = mDistanceValuesDB;
-        double x0 [] = new double[n];
-        double x1 [] = new double[n];
-        double x2 [] = new double[n];
-        double x3 [] = new double[n];
-        for (int i = 0; i < n; i++){
-            x0[i] = Math.pow(mRssValuesDB[i], 0);
-            x1[i] = Math.pow(mRssValuesDB[i], 1);
-            x2[i] = Math.pow(mRssValuesDB[i], 2);
-            x3[i] = Math.pow(mRssValuesDB[i], 3);
-        }
+        int n = end - start; // n = number of observations
+        double y[] = new double[n];
         double X[][] = new double[n][k];
-        for(int j = 0; j < k; j++){
-            for (int i = 0; i < n; i++) {
-                X[i][0] = x0[i];
-                X[i][1] = x1[i];
-                X[i][2] = x2[i];
-                X[i][3] = x3[i];
-            }
+        for (int i = 0; i < n; i++) {
+            double rss = survey.rss[start + i];
+            y[i] = survey.distance[start + i];
+            X[i][0] = 1;
+            X[i][1] = rss;
+            X[i][2] = rss * rss;
+            X[i][3] = rss * rss * rss;
         }
         // Using OLSMultipleLinearRegression library
         OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
-        ols.newSampleData(y, X);
         ols.setNoIntercept(true);
         ols.newSampleData(y, X);
         // distance = a + bx + cx² + dx³ --> coefficients = [a b c d]
-        double[] coefficients = ols.estimateRegressionParameters();
-        // Show them in the screen
-        // Store them on database
-        measdbh.addCoefficientsDB(mIdBssidApSelected, coefficients);
+        return ols.estimateRegressionParameters();
     }
 
     public void inputCoeffManually (View view){
@@ -0,0 +1,325 @@
+package com.example.android.lsindoortracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch positioning of recorded scans (see ScanBatch), without Android Context or database
+ * access at fix time. AP positions (primitive arrays) and pathloss models (lookup tables, see
+ * PathLossModelRegistry) are given once, and every scan follows the same steps than
+ * LSAlgorithm:
+ *      1) Filters APs which are not in the AP table out
+ *      2) Keeps one entry per AP (the strongest one)
+ *      3) If less than 4 APs remain, position can not be estimated
+ *      4) Keeps the anchor candidates: the strongest APs (CANDIDATE_FACTOR * max anchors with
+ *         GDOP selection, max anchors otherwise)
+ *      5) Translates RSS to distance with the pathloss model of each AP
+ *      6) Selects the anchors among the candidates, with the same rule than LSAlgorithm
+ *         (ANCHORS_GDOP by default, see AnchorSelector)
+ *      7) Applies the selected approach with LSClosedFormSolver or NLLSAlgorithm
+ *
+ *  Unlike LSAlgorithm.locate, there is neither robust mode nor fallback chain: a scan whose
+ *  approach fails has no position (NaN), so statistics over a batch only count the fixes of the
+ *  approach itself. Hence each position matches the one given by locate for the same scans, in
+ *  the same order, with an empty fallback chain (see BatchPositioningTest).
+ *
+ *  Scans are split in chunks of consecutive scans, which end at a gap longer than
+ *  WARM_START_MAX_GAP_MS or after CHUNK_SIZE scans, whatever the number of cores, so results do
+ *  not depend on the device. Chunks are processed in parallel by a fixed pool with one thread
+ *  per core. Each chunk owns its solvers, anchor selector and buffers, so no state is shared
+ *  between threads and no object is allocated per scan. Inside each chunk, the NLLS approach is
+ *  warm-started from the previous scan; the first scan of a chunk starts from the circular
+ *  estimate (or from the AP centroid if it fails). NLLS iterations are bounded by count only,
+ *  not by time, for the same reason.
+ *
+ *  NOTE: java.util.concurrent.ForkJoinPool is only available from API 21 on, hence the split is
+ *  done by hand over an ExecutorService.
+ */
+public class BatchPositioning {
+    /** Maximum scans of a chunk */
+    public static final int CHUNK_SIZE = 256;
+    /** A chunk ends at a larger gap between scans (ms), so NLLS is not warm-started across it */
+    public static final long WARM_START_MAX_GAP_MS = 10000;
+
+    private final double[] mApPosX;
+    private final double[] mApPosY;
+    /* Pathloss model of each AP, indexed by AP id */
+    private final PathLossModel[] mPathLossModels;
+    private final int mMaxAnchors;
+    private final ExecutorService mExecutor;
+    private int mAnchorSelection = LSAlgorithm.ANCHORS_GDOP;
+
+    /**
+     * @param apPosX x coordinate of each AP, indexed by AP id (NaN if id is not an AP)
+     * @param apPosY y coordinate of each AP, indexed by AP id (NaN if id is not an AP)
+     * @param registry pathloss models of the APs
+     * @param idBssidApSelected AP whose model is used by APs without their own model
+     * @param maxAnchors maximum number of anchors of each fix
+     */
+    public BatchPositioning(double[] apPosX, double[] apPosY, PathLossModelRegistry registry,
+                            int idBssidApSelected, int maxAnchors) {
+        if (maxAnchors < LSAlgorithm.MIN_ANCHORS)
+            throw new IllegalArgumentException("At least " + LSAlgorithm.MIN_ANCHORS
+                    + " anchors are needed");
+        mApPosX = apPosX;
+        mApPosY = apPosY;
+        mPathLossModels = new PathLossModel[apPosX.length];
+        PathLossModel defaultModel = registry.getDefaultModel(idBssidApSelected);
+        for (int id = 0; id < apPosX.length; id++)
+            mPathLossModels[id] = registry.getModel(id, defaultModel);
+        mMaxAnchors = maxAnchors;
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a batch processor with the APs of bssids table and their pathloss models.
+     * @param dbHandler database handler
+     * @param idBssidApSelected AP whose model is used by APs without their own model
+     * @param maxAnchors maximum number of anchors of each fix
+     */
+    public static BatchPositioning fromDatabase(IndoorTrackerDatabaseHandler dbHandler,
+                                                int idBssidApSelected, int maxAnchors) {
+        double[][] apPositions = dbHandler.getAPPositionTableDB();
+        return new BatchPositioning(apPositions[0], apPositions[1],
+                PathLossModelRegistry.getInstance(dbHandler), idBssidApSelected, maxAnchors);
+    }
+
+    public int getAnchorSelection() {
+        return mAnchorSelection;
+    }
+
+    /**
+     * Selects how anchors are chosen when more known APs are heard than max anchors, as
+     * LSAlgorithm.setAnchorSelection does. It must not be called while a batch is processed.
+     * @param anchorSelection LSAlgorithm.ANCHORS_GDOP (default) or LSAlgorithm.ANCHORS_STRONGEST
+     */
+    public void setAnchorSelection(int anchorSelection) {
+        if (anchorSelection != LSAlgorithm.ANCHORS_STRONGEST
+                && anchorSelection != LSAlgorithm.ANCHORS_GDOP)
+            throw new IllegalArgumentException("Unknown anchor selection " + anchorSelection);
+        this.mAnchorSelection = anchorSelection;
+    }
+
+    /**
+     * Estimates the position of every scan of the batch.
+     *
+     * @param batch recorded scans
+     * @param posAlgSelected Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2,
+     *                       Weighted Circular = 3, Non-linear LS = 4
+     * @param positions output array of 2*numScans elements: [x0, y0, x1, y1, ...]. Both are NaN
+     *                  when a position could not be estimated (less than 4 known APs, singular
+     *                  geometry or NLLS not converged)
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void process(final ScanBatch batch, final int posAlgSelected, final double[] positions)
+            throws InterruptedException {
+        if (positions.length < 2 * batch.numScans)
+            throw new IllegalArgumentException("positions must have 2 elements per scan");
+
+        final int anchorSelection = mAnchorSelection;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int start = 0;
+        for (int scan = 1; scan <= batch.numScans; scan++) {
+            if (scan < batch.numScans && scan - start < CHUNK_SIZE
+                    && batch.timestamps[scan] - batch.timestamps[scan - 1]
+                    <= WARM_START_MAX_GAP_MS)
+                continue;
+            final int from = start;
+            final int to = scan;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    new Worker(anchorSelection).process(batch, posAlgSelected, from, to,
+                            positions);
+                    return null;
+                }
+            });
+            start = scan;
+        }
+
+        for (Future<Void> result : mExecutor.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /** Stops worker threads. The object can not be used afterwards */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Solvers and buffers of one chunk. It is only used by the thread processing the chunk.
+     */
+    private class Worker {
+        private final int mAnchorSelection;
+        private final int mNumCandidates;
+        private final LSClosedFormSolver mSolver = new LSClosedFormSolver(mMaxAnchors);
+        private final NLLSAlgorithm mNLLS = new NLLSAlgorithm(mMaxAnchors);
+        private final AnchorGeometryCache mGeometryCache = new AnchorGeometryCache();
+        private final AnchorSelector mAnchorSelector = new AnchorSelector();
+
+        /* Candidates of current scan, sorted by RSS in descending order */
+        private final int[] mIds;
+        private final int[] mLevels;
+        private final double[] mCandidateX;
+        private final double[] mCandidateY;
+        private final double[] mCandidateDist;
+        private final int[] mSelected = new int[mMaxAnchors];
+        /* Selected anchors, strongest first */
+        private final double[] mApX = new double[mMaxAnchors];
+        private final double[] mApY = new double[mMaxAnchors];
+        private final double[] mDist = new double[mMaxAnchors];
+        private final double[] mPosition = new double[2];
+
+        Worker(int anchorSelection) {
+            // No time budget, so results do not depend on the device load
+            mNLLS.setTimeBudgetNanos(0);
+            mAnchorSelection = anchorSelection;
+            mNumCandidates = anchorSelection == LSAlgorithm.ANCHORS_GDOP
+                    ? LSAlgorithm.CANDIDATE_FACTOR * mMaxAnchors : mMaxAnchors;
+            mIds = new int[mNumCandidates];
+            mLevels = new int[mNumCandidates];
+            mCandidateX = new double[mNumCandidates];
+            mCandidateY = new double[mNumCandidates];
+            mCandidateDist = new double[mNumCandidates];
+        }
+
+        void process(ScanBatch batch, int posAlgSelected, int from, int to, double[] positions) {
+            for (int scan = from; scan < to; scan++) {
+                boolean solved = false;
+                int numAnchors = selectAnchors(batch, scan);
+                // Singular geometry is reported by status, position is not estimated
+                if (numAnchors >= LSAlgorithm.MIN_ANCHORS)
+                    solved = solve(posAlgSelected, numAnchors) == PositionResult.STATUS_OK;
+                positions[2 * scan] = solved ? mPosition[0] : Double.NaN;
+                positions[2 * scan + 1] = solved ? mPosition[1] : Double.NaN;
+            }
+        }
+
+        /**
+         * Keeps the strongest entry of each known AP and, among them, the mNumCandidates
+         * strongest ones (insertion into a small sorted array). Then translates RSS to distance
+         * and selects the anchors among the candidates.
+         * @return number of anchors selected
+         */
+        private int selectAnchors(ScanBatch batch, int scan) {
+            int count = 0;
+            for (int e = batch.scanOffsets[scan]; e < batch.scanOffsets[scan + 1]; e++) {
+                int id = batch.apIds[e];
+                int level = batch.levels[e];
+                if (id < 0 || id >= mApPosX.length || Double.isNaN(mApPosX[id]))
+                    continue;
+
+                /* Same AP already selected (another SSID): keep the strongest entry */
+                int pos = -1;
+                for (int k = 0; k < count; k++)
+                    if (mIds[k] == id) {
+                        pos = k;
+                        break;
+                    }
+                if (pos >= 0) {
+                    if (level <= mLevels[pos])
+                        continue;
+                    // Removed and inserted again with its new level
+                    for (int k = pos; k < count - 1; k++) {
+                        mIds[k] = mIds[k + 1];
+                        mLevels[k] = mLevels[k + 1];
+                    }
+                    count--;
+                } else if (count == mNumCandidates && level <= mLevels[count - 1]) {
+                    continue;
+                }
+
+                int k = Math.min(count, mNumCandidates - 1);
+                while (k > 0 && mLevels[k - 1] < level) {
+                    mIds[k] = mIds[k - 1];
+                    mLevels[k] = mLevels[k - 1];
+                    k--;
+                }
+                mIds[k] = id;
+                mLevels[k] = level;
+                if (count < mNumCandidates)
+                    count++;
+            }
+
+            for (int k = 0; k < count; k++) {
+                mCandidateX[k] = mApPosX[mIds[k]];
+                mCandidateY[k] = mApPosY[mIds[k]];
+                mCandidateDist[k] = mPathLossModels[mIds[k]].getDistance(mLevels[k]);
+            }
+
+            /* Keeps the best anchors, strongest first */
+            int numAnchors;
+            if (mAnchorSelection == LSAlgorithm.ANCHORS_GDOP) {
+                numAnchors = mAnchorSelector.select(mIds, mCandidateX, mCandidateY,
+                        mCandidateDist, mLevels, count, mMaxAnchors, mSelected);
+            } else {
+                numAnchors = Math.min(count, mMaxAnchors);
+                for (int i = 0; i < numAnchors; i++)
+                    mSelected[i] = i;
+            }
+            for (int i = 0; i < numAnchors; i++) {
+                mApX[i] = mCandidateX[mSelected[i]];
+                mApY[i] = mCandidateY[mSelected[i]];
+                mDist[i] = mCandidateDist[mSelected[i]];
+            }
+            return numAnchors;
+        }
+
+        /**
+         * @return PositionResult status, position is written in mPosition
+         */
+        private int solve(int posAlgSelected, int numAnchors) {
+            /* Linearised approaches: collinear anchors are detected from cached geometry before
+            solving anything, as LSAlgorithm does */
+            if (posAlgSelected != LSAlgorithm.NLLS_ALGORITHM
+                    && mGeometryCache.lookup(mApX, mApY, numAnchors).isNearlySingular())
+                return PositionResult.STATUS_DEGENERATE_GEOMETRY;
+            switch (posAlgSelected) {
+                case 0: // Hyperbolic algorithm
+                    return mSolver.tryHyperbolic(mApX, mApY, mDist, numAnchors, false,
+                            mPosition);
+                case 1: // Weighted Hyperbolic algorithm
+                    return mSolver.tryHyperbolic(mApX, mApY, mDist, numAnchors, true,
+                            mPosition);
+                case 2: // Circular algorithm
+                    return mSolver.tryCircular(mGeometryCache.lookup(mApX, mApY, numAnchors),
+                            mDist, false, mPosition);
+                case 3: // Weighted Circular algorithm
+                    return mSolver.tryCircular(mGeometryCache.lookup(mApX, mApY, numAnchors),
+                            mDist, true, mPosition);
+                case LSAlgorithm.NLLS_ALGORITHM:
+                    // Same start as LSAlgorithm: circular estimate, or AP centroid if it fails
+                    double xStart = 0, yStart = 0;
+                    if (!mNLLS.hasWarmStart()) {
+                        AnchorGeometry geometry = mGeometryCache.lookup(mApX, mApY, numAnchors);
+                        if (!geometry.isNearlySingular()
+                                && mSolver.tryCircular(geometry, mDist, false, mPosition)
+                                == PositionResult.STATUS_OK) {
+                            xStart = mPosition[0];
+                            yStart = mPosition[1];
+                        } else {
+                            for (int i = 0; i < numAnchors; i++) {
+                                xStart += mApX[i] / numAnchors;
+                                yStart += mApY[i] / numAnchors;
+                            }
+                        }
+                    }
+                    mNLLS.estimate(mApX, mApY, mDist, numAnchors, xStart, yStart, mPosition);
+                    return mNLLS.isLastConverged() ? PositionResult.STATUS_OK
+                            : PositionResult.STATUS_NOT_CONVERGED;
+                default:
+                    throw new IllegalArgumentException("Unknown positioning approach");
+            }
+        }
+    }
+}
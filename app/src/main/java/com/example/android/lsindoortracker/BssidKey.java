@@ -0,0 +1,71 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * BSSIDs (MAC addresses) as primitive 48-bit keys, so they are parsed once and compared as
+ * longs instead of Strings:
+ *
+ *      "a1:b2:c3:d4:e5:f6"  ->  0xa1b2c3d4e5f6
+ *
+ *  TUT WLAN network has 4 SSIDs for each AP, whose BSSIDs only differ in the last hex digit.
+ *  The AP they belong to is given by masking that nibble out (see group), which matches the
+ *  common BSSID name stored in bssids table (BSSID without last digit):
+ *
+ *      group(0xa1b2c3d4e5f6) = 0xa1b2c3d4e5f0 = parse("a1:b2:c3:d4:e5:f")
+ *
+ *  Parsing and masking do not allocate. Keys are never negative, so INVALID can not be a key.
+ */
+public final class BssidKey {
+    /** Key of BSSIDs which could not be parsed */
+    public static final long INVALID = -1;
+    /** Mask of the bits shared by the BSSIDs of an AP (all but the last nibble) */
+    public static final long GROUP_MASK = 0xfffffffffff0L;
+
+    private static final int HEX_DIGITS = 12;
+
+    private BssidKey() {
+    }
+
+    /**
+     * Parses a BSSID. Separators (':' or '-') are skipped and hex digits may be in any case.
+     * Common BSSID names, without last digit, are parsed as their group key.
+     * @param bssid BSSID with 12 hex digits, or common BSSID name with 11
+     * @return 48-bit key, INVALID if bssid is null or malformed
+     */
+    public static long parse(String bssid) {
+        if (bssid == null)
+            return INVALID;
+        long key = 0;
+        int digits = 0;
+        int length = bssid.length();
+        for (int i = 0; i < length; i++) {
+            char c = bssid.charAt(i);
+            int nibble;
+            if (c >= '0' && c <= '9')
+                nibble = c - '0';
+            else if (c >= 'a' && c <= 'f')
+                nibble = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F')
+                nibble = c - 'A' + 10;
+            else if (c == ':' || c == '-')
+                continue;
+            else
+                return INVALID;
+            if (++digits > HEX_DIGITS)
+                return INVALID;
+            key = (key << 4) | nibble;
+        }
+        if (digits == HEX_DIGITS - 1)
+            return key << 4;
+        return digits == HEX_DIGITS ? key : INVALID;
+    }
+
+    /** @return key of the AP a BSSID belongs to (last nibble masked out), INVALID kept */
+    public static long group(long key) {
+        return key == INVALID ? INVALID : key & GROUP_MASK;
+    }
+
+    /** @return key of the AP a BSSID belongs to, see parse and group */
+    public static long parseGroup(String bssid) {
+        return group(parse(bssid));
+    }
+}
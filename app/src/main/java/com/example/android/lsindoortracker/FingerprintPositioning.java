@@ -0,0 +1,286 @@
+package com.example.android.lsindoortracker;
+
+import java.util.Random;
+
+/**
+ * Fingerprinting approach: user position is estimated from the k reference points of the radio
+ * map (see RadioMap) whose RSS vectors are nearest to the one scanned (weighted k-NN):
+ *
+ *      di = ||RSS - RSSi||       (Euclidean distance in signal space)
+ *
+ *      (x, y) = sum(wi * (xi, yi)) / sum(wi),   wi = 1 / (di + DISTANCE_EPSILON)
+ *
+ *  Nearest neighbours are searched in a vantage-point tree, which only needs a metric, so it
+ *  keeps pruning with many APs (dimensions) where a KD-tree degrades to a linear scan. Each node
+ *  picks a vantage point and splits the rest of its points by the median distance mu to it:
+ *
+ *      inside  = {p : d(p, vp) <= mu},   outside = {p : d(p, vp) >= mu}
+ *
+ *  and, by the triangle inequality, a subtree is skipped when it can not hold any point nearer
+ *  than the current k-th neighbour (tau):
+ *
+ *      inside  is visited if d(q, vp) - tau <= mu
+ *      outside is visited if d(q, vp) + tau >= mu
+ *
+ *  The tree is built once and stored implicitly in two arrays: the point of each slot, in tree
+ *  order, and the threshold mu of the node whose vantage point is in that slot. Nodes with
+ *  LEAF_SIZE points or less are scanned linearly.
+ *
+ *  SEARCH_BRUTE_FORCE compares the query with every reference point, so index speed-ups can be
+ *  benchmarked (getLastDistanceCount gives the distances computed by the last query, and
+ *  FingerprintPositioningTest times both modes). Both find the same neighbours, unless the k-th
+ *  nearest distance is tied: then each mode may keep a different point of the tie.
+ *
+ *  NOTE: the tree is immutable, but search buffers are not, hence an instance must be used by
+ *  one thread at a time.
+ */
+public class FingerprintPositioning {
+    /* Search modes */
+    public static final int SEARCH_VP_TREE = 0;
+    public static final int SEARCH_BRUTE_FORCE = 1;
+
+    public static final int DEFAULT_K = 4;
+    /** Avoids infinite weights when the query matches a reference point */
+    public static final double DISTANCE_EPSILON = 1e-3;
+
+    private static final int LEAF_SIZE = 8;
+    /* Vantage points are picked at random, with a fixed seed so the tree is reproducible */
+    private static final long RANDOM_SEED = 0x5eedL;
+
+    private final RadioMap mMap;
+    private final int[] mOrder;
+    private final double[] mThreshold;
+    private int mSearchMode = SEARCH_VP_TREE;
+
+    /* Query being searched and max-heap of its k nearest neighbours */
+    private final int mK;
+    private float[] mQuery;
+    private final int[] mHeapPoint;
+    private final double[] mHeapDist;
+    private int mHeapSize;
+    private int mDistanceCount;
+
+    /**
+     * Builds the index of a radio map, in O(n log n) distances.
+     * @param radioMap reference points
+     * @param k number of neighbours of each estimate
+     */
+    public FingerprintPositioning(RadioMap radioMap, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        mMap = radioMap;
+        mK = k;
+        mHeapPoint = new int[k];
+        mHeapDist = new double[k];
+
+        int n = radioMap.numPoints;
+        mOrder = new int[n];
+        mThreshold = new double[n];
+        for (int i = 0; i < n; i++)
+            mOrder[i] = i;
+        double[] distances = new double[n];
+        build(0, n, distances, new Random(RANDOM_SEED));
+    }
+
+    public RadioMap getRadioMap() {
+        return mMap;
+    }
+
+    public int getSearchMode() {
+        return mSearchMode;
+    }
+
+    /**
+     * @param searchMode SEARCH_VP_TREE (default) or SEARCH_BRUTE_FORCE
+     */
+    public void setSearchMode(int searchMode) {
+        this.mSearchMode = searchMode;
+    }
+
+    /** @return number of RSS vectors compared with the query by the last estimate */
+    public int getLastDistanceCount() {
+        return mDistanceCount;
+    }
+
+    /**
+     * Estimates user position by weighted k-NN.
+     * @param query RSS vector scanned, one column per AP of the radio map (MISSING_RSS if the
+     *              AP was not heard)
+     * @param position output array where [x, y] are written
+     * @return number of neighbours used, 0 if the radio map is empty (position is not written)
+     */
+    public int estimate(float[] query, double[] position) {
+        if (query.length < mMap.numColumns)
+            throw new IllegalArgumentException("query must have one RSS for each column");
+        mQuery = query;
+        mHeapSize = 0;
+        mDistanceCount = 0;
+        int n = mMap.numPoints;
+        if (mSearchMode == SEARCH_BRUTE_FORCE) {
+            for (int i = 0; i < n; i++)
+                offer(i, distance(i));
+        } else {
+            search(0, n);
+        }
+        mQuery = null;
+        if (mHeapSize == 0)
+            return 0;
+
+        /* Weighted average of the neighbours */
+        double sumW = 0, x = 0, y = 0;
+        for (int i = 0; i < mHeapSize; i++) {
+            double w = 1 / (mHeapDist[i] + DISTANCE_EPSILON);
+            x += w * mMap.posX[mHeapPoint[i]];
+            y += w * mMap.posY[mHeapPoint[i]];
+            sumW += w;
+        }
+        position[0] = x / sumW;
+        position[1] = y / sumW;
+        return mHeapSize;
+    }
+
+    /**
+     * Builds the node of slots [lo, hi): a random vantage point is moved to lo, and the rest of
+     * points are partitioned around the median distance to it.
+     */
+    private void build(int lo, int hi, double[] distances, Random random) {
+        if (hi - lo <= LEAF_SIZE)
+            return;
+        swap(lo, lo + random.nextInt(hi - lo), distances);
+        int vantage = mOrder[lo];
+        for (int s = lo + 1; s < hi; s++)
+            distances[s] = pointDistance(vantage, mOrder[s]);
+
+        /* Inside: slots [lo+1, mid), outside: slots [mid, hi) */
+        int mid = lo + 1 + (hi - lo - 1) / 2;
+        select(lo + 1, hi, mid - 1, distances);
+        mThreshold[lo] = distances[mid - 1];
+        build(lo + 1, mid, distances, random);
+        build(mid, hi, distances, random);
+    }
+
+    /**
+     * Quickselect: reorders slots [lo, hi) so that slot kth holds the point which would be there
+     * if they were sorted by distance, with no greater distance before it and no smaller after.
+     */
+    private void select(int lo, int hi, int kth, double[] distances) {
+        int left = lo, right = hi - 1;
+        while (left < right) {
+            double pivot = distances[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (distances[i] < pivot)
+                    i++;
+                while (distances[j] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(i++, j--, distances);
+            }
+            if (kth <= j)
+                right = j;
+            else if (kth >= i)
+                left = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j, double[] distances) {
+        int point = mOrder[i];
+        mOrder[i] = mOrder[j];
+        mOrder[j] = point;
+        double d = distances[i];
+        distances[i] = distances[j];
+        distances[j] = d;
+    }
+
+    /** Searches the node of slots [lo, hi), see build */
+    private void search(int lo, int hi) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int s = lo; s < hi; s++)
+                offer(mOrder[s], distance(mOrder[s]));
+            return;
+        }
+        double d = distance(mOrder[lo]);
+        offer(mOrder[lo], d);
+        int mid = lo + 1 + (hi - lo - 1) / 2;
+        double mu = mThreshold[lo];
+        if (d < mu) {
+            search(lo + 1, mid);
+            if (d + tau() >= mu)
+                search(mid, hi);
+        } else {
+            search(mid, hi);
+            if (d - tau() <= mu)
+                search(lo + 1, mid);
+        }
+    }
+
+    /** @return distance to the k-th neighbour found so far, infinity if there are less than k */
+    private double tau() {
+        return mHeapSize < mK ? Double.POSITIVE_INFINITY : mHeapDist[0];
+    }
+
+    /** Keeps a point if it is one of the k nearest found so far (max-heap on distance) */
+    private void offer(int point, double d) {
+        int i;
+        if (mHeapSize < mK) {
+            /* Sift up */
+            i = mHeapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (mHeapDist[parent] >= d)
+                    break;
+                mHeapPoint[i] = mHeapPoint[parent];
+                mHeapDist[i] = mHeapDist[parent];
+                i = parent;
+            }
+        } else if (d < mHeapDist[0]) {
+            /* Replaces the farthest one and sifts down */
+            i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mK)
+                    break;
+                if (child + 1 < mK && mHeapDist[child + 1] > mHeapDist[child])
+                    child++;
+                if (mHeapDist[child] <= d)
+                    break;
+                mHeapPoint[i] = mHeapPoint[child];
+                mHeapDist[i] = mHeapDist[child];
+                i = child;
+            }
+        } else {
+            return;
+        }
+        mHeapPoint[i] = point;
+        mHeapDist[i] = d;
+    }
+
+    /** @return distance between the query and a reference point in signal space */
+    private double distance(int point) {
+        mDistanceCount++;
+        float[] rss = mMap.rss;
+        int columns = mMap.numColumns;
+        int offset = point * columns;
+        double sum = 0;
+        for (int c = 0; c < columns; c++) {
+            double diff = mQuery[c] - rss[offset + c];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /** @return distance between two reference points in signal space */
+    private double pointDistance(int a, int b) {
+        float[] rss = mMap.rss;
+        int columns = mMap.numColumns;
+        int offsetA = a * columns, offsetB = b * columns;
+        double sum = 0;
+        for (int c = 0; c < columns; c++) {
+            double diff = rss[offsetA + c] - rss[offsetB + c];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+}
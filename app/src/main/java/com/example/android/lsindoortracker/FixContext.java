@@ -0,0 +1,106 @@
+package com.example.android.lsindoortracker;
+
+import android.graphics.Point;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.factory.LinearSolverFactory;
+import org.ejml.interfaces.linsol.LinearSolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Mutable state of a fix of LSAlgorithm, preallocated for maxAnchors APs and recycled between
+ * fixes, so steady-state fixes allocate nothing:
+ *
+ *  -Anchor buffer: APAlgorithmData objects and the list of them given to the approaches.
+ *  -Inlier list of robust mode (see RansacPositioning).
+ *  -Matrices and least square solvers of the EJML approaches, reshaped to the rows of each fix.
+ *
+ *  Thread confinement: each LSAlgorithm owns one context, and only one fix may use it at a
+ *  time. Consecutive fixes may run on different threads (MapViewActivity starts one per scan),
+ *  since tryAcquire and release order them, but a fix started while another one holds the
+ *  context is refused (LSAlgorithm reports it as PositionResult.STATUS_BUSY) instead of
+ *  corrupting it. Objects of the context are only valid until the next fix and must never be
+ *  handed to other threads: results leave the fix as PositionResult objects (see
+ *  PositionResult.obtain).
+ */
+public class FixContext {
+    private final AtomicBoolean mIsInUse = new AtomicBoolean(false);
+
+    private final APAlgorithmData[] mAnchorPool;
+    private final ArrayList<APAlgorithmData> mAnchors;
+    private final ArrayList<APAlgorithmData> mInliers;
+
+    /** Systems of EJML approaches, (N-1)x3 at most */
+    public final DenseMatrix64F systemA, systemB, weightedA, weightedB;
+    /** Solutions of EJML approaches: [x; y; r1] (hyperbolic) and [x-x1; y-y1] (circular) */
+    public final DenseMatrix64F hyperbolicX = new DenseMatrix64F(3, 1);
+    public final DenseMatrix64F circularX = new DenseMatrix64F(2, 1);
+    private final LinearSolver<DenseMatrix64F> mHyperbolicSolver, mCircularSolver;
+
+    /** @param maxAnchors maximum number of anchors of each fix */
+    public FixContext(int maxAnchors) {
+        mAnchorPool = new APAlgorithmData[maxAnchors];
+        for (int i = 0; i < maxAnchors; i++)
+            mAnchorPool[i] = new APAlgorithmData(null, 0, 0, null);
+        mAnchors = new ArrayList<APAlgorithmData>(maxAnchors);
+        mInliers = new ArrayList<APAlgorithmData>(maxAnchors);
+
+        int maxRows = Math.max(1, maxAnchors - 1);
+        systemA = new DenseMatrix64F(maxRows, 3);
+        systemB = new DenseMatrix64F(maxRows, 1);
+        weightedA = new DenseMatrix64F(maxRows, 3);
+        weightedB = new DenseMatrix64F(maxRows, 1);
+        mHyperbolicSolver = LinearSolverFactory.leastSquares(maxRows, 3);
+        mCircularSolver = LinearSolverFactory.leastSquares(maxRows, 2);
+    }
+
+    /**
+     * Takes the context for a fix, if no other fix is using it.
+     * @return false if another fix holds the context (it must not be released then)
+     */
+    public boolean tryAcquire() {
+        return mIsInUse.compareAndSet(false, true);
+    }
+
+    /** Gives the context back, once the fix is over */
+    public void release() {
+        mIsInUse.set(false);
+    }
+
+    /**
+     * Empties the anchor buffer. Objects added before are reused, so they must not be referred
+     * anymore.
+     * @return anchor list, filled by addAnchor
+     */
+    public List<APAlgorithmData> clearAnchors() {
+        mAnchors.clear();
+        return mAnchors;
+    }
+
+    /**
+     * Adds an anchor to the list returned by clearAnchors.
+     * @param coordinatesAP AP position, it is referred (not copied), so it must not change
+     */
+    public void addAnchor(String bssid, double distance, int RSS, Point coordinatesAP) {
+        APAlgorithmData anchor = mAnchorPool[mAnchors.size()];
+        anchor.bssid = bssid;
+        anchor.distance = distance;
+        anchor.RSS = RSS;
+        anchor.coordinatesAP = coordinatesAP;
+        mAnchors.add(anchor);
+    }
+
+    /** @return empty inlier list */
+    public List<APAlgorithmData> clearInliers() {
+        mInliers.clear();
+        return mInliers;
+    }
+
+    /** @return least square solver of (N-1)xnumCols systems, numCols = 2 or 3 */
+    public LinearSolver<DenseMatrix64F> getLeastSquaresSolver(int numCols) {
+        return numCols == 3 ? mHyperbolicSolver : mCircularSolver;
+    }
+}
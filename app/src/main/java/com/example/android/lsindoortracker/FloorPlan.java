@@ -0,0 +1,173 @@
+package com.example.android.lsindoortracker;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Occupancy grid of the floor, used as hard constraint by ParticleFilter and GridFilter. Each
+ * cell of cellSize x cellSize meters is marked as wall if any dark pixel of the occupancy image
+ * falls inside it.
+ *
+ *  Map coordinates are the ones of MapViewActivity: x in [0, width], y in [0, height], with y = 0
+ *  at the bottom of the image.
+ *
+ *  The occupancy image (FLOOR_PLAN_ASSET) must cover exactly the map extents, like the tiles of
+ *  MapViewActivity, so image and map are related by a plain scale:
+ *
+ *      x = px * width / imageWidth      y = height - py * height / imageHeight
+ *
+ *  tietotalo_first_floor.gif can not be used directly: its 6708x8984 logical screen holds the
+ *  2332x5796 map frame at offset (2108, 1620), and Android decodes the whole screen. Hence the
+ *  bundled floor_occupancy.png was built from that frame only (the same image as the map tiles,
+ *  whose 2332x5796 pixels are mapped to 60x150 m): it has one pixel per 0.25 m cell, 240x600,
+ *  and a pixel is black if any frame pixel darker than WALL_LUMINANCE falls inside the cell.
+ *
+ *  The grid is immutable once built, so it can be read by several threads at the same time.
+ */
+public class FloorPlan {
+    /** Occupancy image bundled in assets folder, registered to the map extents */
+    public static final String FLOOR_PLAN_ASSET = "floor_occupancy.png";
+    /** Map size (meters), see MapViewActivity.defineRelativeBounds */
+    public static final double MAP_WIDTH = 60;
+    public static final double MAP_HEIGHT = 150;
+    public static final double DEFAULT_CELL_SIZE = 0.25;
+
+    /* Pixels darker than this (luminance 0-255) are walls */
+    private static final int WALL_LUMINANCE = 100;
+    /* Image and map aspect ratios must match within this tolerance, or walls would be moved */
+    private static final double MAX_ASPECT_ERROR = 0.01;
+
+    private final boolean[] mWalls;
+    private final int mCols;
+    private final int mRows;
+    private final double mCellSize;
+
+    /**
+     * @param walls occupancy of each cell, row-major, row 0 at y = 0
+     * @param cols number of columns (x axis)
+     * @param rows number of rows (y axis)
+     * @param cellSize cell side (meters)
+     */
+    public FloorPlan(boolean[] walls, int cols, int rows, double cellSize) {
+        if (walls.length != cols * rows)
+            throw new IllegalArgumentException("walls must have cols x rows cells");
+        mWalls = walls;
+        mCols = cols;
+        mRows = rows;
+        mCellSize = cellSize;
+    }
+
+    /**
+     * Builds the occupancy grid from an occupancy image in assets folder, registered to the map
+     * extents (see class description). The image is decoded once, subsampled by the largest
+     * power of two which still keeps one pixel per cell, read row by row and released.
+     *
+     * @param assets asset manager of the app
+     * @param fileName occupancy image
+     * @param width map width (meters)
+     * @param height map height (meters)
+     * @param cellSize cell side (meters)
+     * @return occupancy grid
+     * @throws IOException if the image can not be read or does not have the map aspect ratio
+     */
+    public static FloorPlan fromAsset(AssetManager assets, String fileName, double width,
+                                      double height, double cellSize) throws IOException {
+        int cols = (int) Math.ceil(width / cellSize);
+        int rows = (int) Math.ceil(height / cellSize);
+
+        /* Read image size first, so it is never decoded bigger than the grid needs */
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream input = assets.open(fileName);
+        try {
+            BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            throw new IOException("Floor plan can not be decoded: " + fileName);
+        double aspect = (double) options.outWidth / options.outHeight;
+        if (Math.abs(aspect / (width / height) - 1) > MAX_ASPECT_ERROR)
+            throw new IOException("Floor plan " + fileName + " is not registered to the map"
+                    + " extents: " + options.outWidth + "x" + options.outHeight);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= cols
+                && options.outHeight / (sampleSize * 2) >= rows)
+            sampleSize *= 2;
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        input = assets.open(fileName);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+        if (bitmap == null)
+            throw new IOException("Floor plan can not be decoded: " + fileName);
+
+        boolean[] walls = new boolean[cols * rows];
+        int imageWidth = bitmap.getWidth();
+        int imageHeight = bitmap.getHeight();
+        int[] line = new int[imageWidth];
+        for (int py = 0; py < imageHeight; py++) {
+            bitmap.getPixels(line, 0, imageWidth, 0, py, imageWidth, 1);
+            // Image row 0 is the top of the map (y = height)
+            int row = Math.min(rows - 1, (int) ((imageHeight - 1 - py) * height
+                    / imageHeight / cellSize));
+            for (int px = 0; px < imageWidth; px++) {
+                int pixel = line[px];
+                int luminance = (((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff))
+                        / 3;
+                if (luminance < WALL_LUMINANCE) {
+                    int col = Math.min(cols - 1, (int) (px * width / imageWidth / cellSize));
+                    walls[row * cols + col] = true;
+                }
+            }
+        }
+        bitmap.recycle();
+        return new FloorPlan(walls, cols, rows, cellSize);
+    }
+
+    public double getWidth() {
+        return mCols * mCellSize;
+    }
+
+    public double getHeight() {
+        return mRows * mCellSize;
+    }
+
+    /**
+     * @return true if (x, y) is inside the map and not in a wall
+     */
+    public boolean isFree(double x, double y) {
+        if (x < 0 || y < 0)
+            return false;
+        int col = (int) (x / mCellSize);
+        int row = (int) (y / mCellSize);
+        return col < mCols && row < mRows && !mWalls[row * mCols + col];
+    }
+
+    /**
+     * Checks whether the straight path between two points crosses a wall. The path is sampled
+     * every half cell, so a wall can not be jumped over.
+     * @return true if every point of the path is free
+     */
+    public boolean isPathFree(double x0, double y0, double x1, double y1) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        int steps = (int) Math.ceil(2 * Math.max(Math.abs(dx), Math.abs(dy)) / mCellSize);
+        for (int i = 1; i <= steps; i++) {
+            double t = (double) i / steps;
+            if (!isFree(x0 + t * dx, y0 + t * dy))
+                return false;
+        }
+        return isFree(x1, y1);
+    }
+}
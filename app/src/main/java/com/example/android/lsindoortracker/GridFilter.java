@@ -0,0 +1,332 @@
+package com.example.android.lsindoortracker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Discrete Bayesian (histogram) filter over the map. The belief of every cell of cellSize x
+ * cellSize meters is kept in a flat float array, row-major with row 0 at y = 0, and at every fix:
+ *      1) Motion update: belief is blurred with a Gaussian kernel whose deviation grows with time
+ *         since last fix. The kernel is separable, and it is approximated by three box blurs on
+ *         each axis, so its cost does not depend on the deviation. Walls (see FloorPlan) get no
+ *         belief.
+ *      2) Measurement update: belief is multiplied by the likelihood of each estimated distance:
+ *
+ *              L = exp( -1/2 * ((||c - ai|| - ri) / sigma_i)^2 )
+ *
+ *              sigma_i = max(MIN_RANGE_STD, RANGE_STD_RATIO * ri)      (see TrackingNoise)
+ *
+ *  User position is the mean of the posterior.
+ *
+ *  Measurement update does not compute any cell distance. For each anchor, the cells are sorted
+ *  once by their distance to it, quantised to DISTANCE_RESOLUTION. Distances are split into
+ *  bins of BIN_SIZE, and the likelihood of each bin is truncated at RING_STDS deviations, so it
+ *  is a ring of cells which is a contiguous range of that sorted list. Its log-likelihood,
+ *  relative to the truncation level,
+ *
+ *      log(L / Lmin) = 1/2 * (RING_STDS² - ((d - rb) / sigma_b)²)  >= 0
+ *
+ *  is precomputed for every bin as a radial profile indexed by quantised distance. Cells
+ *  outside the ring get 0, the same as a constant factor, hence an update is a sparse
+ *  accumulate of the profile over the ring. Accumulated log-likelihoods are applied to the
+ *  belief in one pass with the normalisation.
+ *
+ *  Anchor fields are built the first time an anchor is seen (a counting sort of the cells, in
+ *  O(cells)) and kept: 6 bytes per cell and anchor, e.g. 216 kB per anchor with 0.5 m cells.
+ *
+ *  The cost of a fix only depends on the number of cells and the ring sizes, not on the data:
+ *  halving cellSize makes four times as many cells, and so a fix about four times as slow.
+ *
+ *  NOTE: buffers are reused between calls, so an instance must be used only by one thread at a
+ *  time (LSAlgorithm owns one filter per instance).
+ */
+public class GridFilter {
+    public static final double DEFAULT_CELL_SIZE = 0.5;
+    /** Width of distance bins (meters) */
+    public static final double BIN_SIZE = 0.5;
+    /** Likelihood is truncated at this number of deviations */
+    public static final double RING_STDS = 3.0;
+    /** Quantisation step of cell distances (meters) */
+    public static final double DISTANCE_RESOLUTION = 0.1;
+
+    private final double mCellSize;
+    private final int mCols;
+    private final int mRows;
+    private final int mNumCells;
+
+    /* Belief of each cell and the free cells mask, row-major */
+    private final float[] mBelief;
+    private final boolean[] mIsFree;
+    private int mNumFreeCells;
+    /* Scratch of motion and measurement updates */
+    private final float[] mBlurBuffer;
+    private final float[] mLogLikelihood;
+
+    /* Distance bins: radial profile of each bin, starting at quantised distance mProfileStart */
+    private final int mNumBins;
+    private final int[] mProfileStart;
+    private final float[][] mProfiles;
+    private final Map<Long, AnchorField> mAnchorFields = new HashMap<Long, AnchorField>();
+
+    private boolean mIsInitialized = false;
+    private long mLastTimeMillis;
+
+    /** Cells sorted by quantised distance to an anchor, and the ring range of each bin */
+    private static class AnchorField {
+        int[] cells;
+        char[] distances;
+        int[] ringStart, ringEnd;
+    }
+
+    /**
+     * @param floorPlan occupancy grid whose walls get no belief, or null to use the whole map
+     * @param width map width (meters)
+     * @param height map height (meters)
+     * @param cellSize cell side (meters)
+     */
+    public GridFilter(FloorPlan floorPlan, double width, double height, double cellSize) {
+        if (cellSize <= 0)
+            throw new IllegalArgumentException("cellSize must be positive");
+        mCellSize = cellSize;
+        mCols = (int) Math.ceil(width / cellSize);
+        mRows = (int) Math.ceil(height / cellSize);
+        mNumCells = mCols * mRows;
+        mBelief = new float[mNumCells];
+        mBlurBuffer = new float[mNumCells];
+        mLogLikelihood = new float[mNumCells];
+
+        mIsFree = new boolean[mNumCells];
+        for (int row = 0; row < mRows; row++)
+            for (int col = 0; col < mCols; col++) {
+                int cell = row * mCols + col;
+                mIsFree[cell] = floorPlan == null
+                        || floorPlan.isFree((col + 0.5) * cellSize, (row + 0.5) * cellSize);
+                if (mIsFree[cell])
+                    mNumFreeCells++;
+            }
+        if (mNumFreeCells == 0)
+            throw new IllegalArgumentException("Floor plan has no free cells");
+
+        /* Radial profile of each distance bin */
+        double maxDistance = Math.hypot(mCols * cellSize, mRows * cellSize);
+        mNumBins = (int) Math.ceil(maxDistance / BIN_SIZE);
+        mProfileStart = new int[mNumBins];
+        mProfiles = new float[mNumBins][];
+        for (int b = 0; b < mNumBins; b++) {
+            double r = (b + 0.5) * BIN_SIZE;
+            double sigma = TrackingNoise.getRangeStd(r);
+            int start = Math.max(0, (int) Math.ceil((r - RING_STDS * sigma)
+                    / DISTANCE_RESOLUTION));
+            int end = (int) Math.floor((r + RING_STDS * sigma) / DISTANCE_RESOLUTION);
+            float[] profile = new float[end - start + 1];
+            for (int q = start; q <= end; q++) {
+                double z = (q * DISTANCE_RESOLUTION - r) / sigma;
+                profile[q - start] = (float) Math.max(0, 0.5 * (RING_STDS * RING_STDS - z * z));
+            }
+            mProfileStart[b] = start;
+            mProfiles[b] = profile;
+        }
+    }
+
+    public int getCols() {
+        return mCols;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public double getCellSize() {
+        return mCellSize;
+    }
+
+    /**
+     * Posterior of last fix, row-major with row 0 at y = 0. It is the internal buffer, so it must
+     * not be modified and it is only valid until next fix.
+     */
+    public float[] getBelief() {
+        return mBelief;
+    }
+
+    /** Forgets the track, belief will be uniform over the free cells on next fix */
+    public void reset() {
+        mIsInitialized = false;
+    }
+
+    /**
+     * Estimates user position.
+     *
+     * @param apX AP x coordinates
+     * @param apY AP y coordinates
+     * @param dist estimated distances to every AP
+     * @param numAnchors number of anchors
+     * @param timeMillis time of the fix (milliseconds, any monotonic clock)
+     * @param position output array where [x, y] are written
+     */
+    public void estimate(double[] apX, double[] apY, double[] dist, int numAnchors,
+                         long timeMillis, double[] position) {
+        /* Prior: uniform belief, or the last posterior blurred by user motion */
+        if (!mIsInitialized) {
+            spreadBelief();
+            mIsInitialized = true;
+        } else {
+            double dt = Math.max(0, (timeMillis - mLastTimeMillis) / 1000.0);
+            blur(TrackingNoise.getStepStd(dt));
+        }
+        mLastTimeMillis = timeMillis;
+
+        /* Sparse accumulate of the log-likelihood ring of each anchor */
+        for (int a = 0; a < numAnchors; a++) {
+            AnchorField field = getAnchorField(apX[a], apY[a]);
+            int bin = Math.max(0, Math.min(mNumBins - 1, (int) (dist[a] / BIN_SIZE)));
+            float[] profile = mProfiles[bin];
+            int start = mProfileStart[bin];
+            int[] cells = field.cells;
+            char[] distances = field.distances;
+            for (int k = field.ringStart[bin]; k < field.ringEnd[bin]; k++)
+                mLogLikelihood[cells[k]] += profile[distances[k] - start];
+        }
+
+        /* Posterior, scaled by the maximum log-likelihood to avoid underflow */
+        float maxLogL = 0;
+        for (int c = 0; c < mNumCells; c++)
+            if (mLogLikelihood[c] > maxLogL)
+                maxLogL = mLogLikelihood[c];
+        double sum = 0;
+        for (int c = 0; c < mNumCells; c++) {
+            mBelief[c] *= (float) Math.exp(mLogLikelihood[c] - maxLogL);
+            mLogLikelihood[c] = 0;
+            sum += mBelief[c];
+        }
+        // Every cell with belief is far from the measurements: track is lost, it starts again
+        if (sum == 0) {
+            spreadBelief();
+            sum = 1;
+        }
+
+        /* Normalisation and posterior mean */
+        float scale = (float) (1 / sum);
+        double x = 0, y = 0;
+        for (int row = 0; row < mRows; row++) {
+            double rowSum = 0;
+            for (int col = 0, c = row * mCols; col < mCols; col++, c++) {
+                mBelief[c] *= scale;
+                rowSum += mBelief[c];
+                x += mBelief[c] * (col + 0.5);
+            }
+            y += rowSum * (row + 0.5);
+        }
+        position[0] = x * mCellSize;
+        position[1] = y * mCellSize;
+    }
+
+    /** Uniform belief over the free cells */
+    private void spreadBelief() {
+        float p = 1f / mNumFreeCells;
+        for (int c = 0; c < mNumCells; c++)
+            mBelief[c] = mIsFree[c] ? p : 0;
+    }
+
+    /**
+     * Motion update: three box blurs on each axis approximate a Gaussian blur whose variance is
+     * 3 * (w² - 1) / 12 for boxes of w cells. Belief out of the map is lost, and belief in walls
+     * is removed afterwards, so total belief is renormalised by the measurement update.
+     */
+    private void blur(double stepStd) {
+        double sigmaCells = stepStd / mCellSize;
+        int radius = Math.max(0, (int) Math.round((Math.sqrt(4 * sigmaCells * sigmaCells + 1)
+                - 1) / 2));
+        if (radius == 0)
+            return;
+        for (int pass = 0; pass < 3; pass++) {
+            boxBlur(mBelief, mBlurBuffer, mRows, mCols, mCols, 1, radius);
+            boxBlur(mBlurBuffer, mBelief, mCols, mRows, 1, mCols, radius);
+        }
+        for (int c = 0; c < mNumCells; c++)
+            if (!mIsFree[c])
+                mBelief[c] = 0;
+    }
+
+    /**
+     * Box blur of radius cells along one axis, with running sums.
+     * @param in input grid
+     * @param out output grid
+     * @param numLines number of lines blurred
+     * @param length cells of each line
+     * @param lineStride offset between the first cells of consecutive lines
+     * @param step offset between consecutive cells of a line
+     * @param radius box radius (cells)
+     */
+    private static void boxBlur(float[] in, float[] out, int numLines, int length,
+                                int lineStride, int step, int radius) {
+        float scale = 1f / (2 * radius + 1);
+        for (int line = 0; line < numLines; line++) {
+            int base = line * lineStride;
+            float sum = 0;
+            for (int i = 0; i < Math.min(radius, length); i++)
+                sum += in[base + i * step];
+            for (int i = 0; i < length; i++) {
+                int enter = i + radius;
+                int leave = i - radius - 1;
+                if (enter < length)
+                    sum += in[base + enter * step];
+                if (leave >= 0)
+                    sum -= in[base + leave * step];
+                out[base + i * step] = sum * scale;
+            }
+        }
+    }
+
+    /** Gets the field of an anchor, building it on its first use */
+    private AnchorField getAnchorField(double apX, double apY) {
+        Long key = ((long) Float.floatToIntBits((float) apX) << 32)
+                | (Float.floatToIntBits((float) apY) & 0xffffffffL);
+        AnchorField field = mAnchorFields.get(key);
+        if (field == null) {
+            field = buildAnchorField(apX, apY);
+            mAnchorFields.put(key, field);
+        }
+        return field;
+    }
+
+    /** Sorts the cells by quantised distance to the anchor (counting sort) */
+    private AnchorField buildAnchorField(double apX, double apY) {
+        char[] cellDistance = new char[mNumCells];
+        int maxQ = 0;
+        for (int row = 0; row < mRows; row++)
+            for (int col = 0; col < mCols; col++) {
+                double d = Math.hypot((col + 0.5) * mCellSize - apX,
+                        (row + 0.5) * mCellSize - apY);
+                int q = (int) Math.min(Character.MAX_VALUE,
+                        Math.round(d / DISTANCE_RESOLUTION));
+                cellDistance[row * mCols + col] = (char) q;
+                maxQ = Math.max(maxQ, q);
+            }
+        int[] offsets = new int[maxQ + 2];
+        for (int c = 0; c < mNumCells; c++)
+            offsets[cellDistance[c] + 1]++;
+        for (int q = 0; q <= maxQ; q++)
+            offsets[q + 1] += offsets[q];
+
+        AnchorField field = new AnchorField();
+        field.cells = new int[mNumCells];
+        field.distances = new char[mNumCells];
+        int[] next = offsets.clone();
+        for (int c = 0; c < mNumCells; c++) {
+            int k = next[cellDistance[c]]++;
+            field.cells[k] = c;
+            field.distances[k] = cellDistance[c];
+        }
+
+        /* Ring of each bin: cells whose quantised distance is inside its profile */
+        field.ringStart = new int[mNumBins];
+        field.ringEnd = new int[mNumBins];
+        for (int b = 0; b < mNumBins; b++) {
+            int start = Math.min(maxQ + 1, mProfileStart[b]);
+            int end = Math.min(maxQ + 1, mProfileStart[b] + mProfiles[b].length);
+            field.ringStart[b] = offsets[start];
+            field.ringEnd[b] = offsets[end];
+        }
+        return field;
+    }
+}
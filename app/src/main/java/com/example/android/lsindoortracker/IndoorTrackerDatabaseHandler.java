@@ -2,18 +2,24 @@ package com.example.android.lsindoortracker;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.CrossProcessCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Point;
 import android.net.wifi.ScanResult;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Database Handler for app. There are three main tables:
@@ -21,11 +27,31 @@ import java.util.List;
  *      + MEASUREMENTS table
  *      + COEFFICIENTS table
  *
+ * MEASUREMENTS table holds both pathloss measurements (RSS at a known distance from an AP) and
+ * fingerprints of the radio map (RSS of every AP heard at a surveyed position). Rows of a
+ * fingerprint share their id_fingerprint, which is NULL for pathloss measurements.
+ *
+ * Schema changes are incremental migrations (see onUpgrade), which keep stored data. A new
+ * database is created at version 1 and then migrated like any other, so both end up with the
+ * same schema:
+ *      2: fingerprint columns in measurements table
+ *      3: indexes on bssids.name and measurements.id_bssid, and coefficient_index column in
+ *         coefficients table, unique per AP, so coefficients of an AP are replaced (upsert)
+ *         instead of being appended
+ *      4: timestamp column in measurements table (NULL in older rows)
+ *
+ * There is a single handler per process (see getInstance), holding one long-lived connection
+ * in write-ahead-log mode: it is opened on first use and never closed by handler methods, so
+ * readers (positioning thread) do not wait for survey writes, and no call pays for opening the
+ * database again. Hot statements (AP position and BSSID lookups, measurement insert) are
+ * compiled once into SQLiteStatements, each one used by a thread at a time. Cursors are always
+ * closed before returning, except those given to AndroidDatabaseManager by getData.
+ *
  * Database can be viewed in real time in the own app by using AndroidDatabaseManager class
  */
 public class IndoorTrackerDatabaseHandler extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 4;
     public static final String DATABASE_NAME = "accesspointData";
     private static final String TABLE_BSSIDS = "bssids";
     private static final String TABLE_MEASUREMENTS = "measurements";
@@ -43,11 +69,23 @@ public class IndoorTrackerDatabaseHandler extends SQLiteOpenHelper {
     private static final String KEY_BSSID = "id_bssid";
     private static final String KEY_RSS = "value_rss";
     private static final String KEY_DISTANCE = "value_distance";
+    private static final String KEY_FINGERPRINT_ID = "id_fingerprint";
+    private static final String KEY_FINGERPRINT_POS_X = "pos_x";
+    private static final String KEY_FINGERPRINT_POS_Y = "pos_y";
+    // time of the measurement (ms since epoch), since version 4
+    private static final String KEY_TIMESTAMP = "timestamp";
 
     // coefficients table column names
     private static final String KEY_COEFFICIENT_ID = "id";
     //private static final String KEY_BSSID = "id_bssid";
     private static final String KEY_COEFFICIENT_VALUE = "value_coefficient";
+    // position of the coefficient in [a b c d], since version 3
+    private static final String KEY_COEFFICIENT_INDEX = "coefficient_index";
+
+    // index names, since version 3
+    private static final String INDEX_BSSIDS_NAME = "bssids_name";
+    private static final String INDEX_MEASUREMENTS_BSSID = "measurements_id_bssid";
+    private static final String INDEX_COEFFICIENTS_BSSID = "coefficients_id_bssid_index";
 
 
     // AP MAC ADDRESS LIST
@@ -70,18 +108,85 @@ public class IndoorTrackerDatabaseHandler extends SQLiteOpenHelper {
     private static final String BSSID17 = "04:da:d2:29:b4:0";
     private static final String BSSID18 = "04:da:d2:57:0e:5";
 
+    /** AP id of loadSurveyDataDB standing for every AP */
+    public static final int ALL_APS = -1;
+
+    private static IndoorTrackerDatabaseHandler sInstance;
+
+    /* Long-lived connection and statements compiled on it, see getDatabase */
+    private SQLiteDatabase mDb;
+    private SQLiteStatement mBssidNameStatement;
+    private SQLiteStatement mInsertMeasurementStatement;
+    private SQLiteStatement mUpsertCoefficientStatement;
+    private SQLiteStatement mCountSurveyStatement, mCountSurveyByBssidStatement;
+
     /**
      * CONSTRUCTOR
      */
-    public IndoorTrackerDatabaseHandler(Context context) {
+    private IndoorTrackerDatabaseHandler(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * Gets the handler of the process, created on first call
+     * @param context any context, only its application context is kept
+     * @return database handler
+     */
+    public static synchronized IndoorTrackerDatabaseHandler getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new IndoorTrackerDatabaseHandler(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Gets the long-lived connection, opening it in write-ahead-log mode and compiling the hot
+     * statements on first use. It must never be closed by callers.
+     * @return database
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (mDb == null) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.enableWriteAheadLogging();
+            mBssidNameStatement = db.compileStatement("SELECT " + KEY_BSSID_NAME + " FROM "
+                    + TABLE_BSSIDS + " WHERE " + KEY_BSSID_ID + "=?");
+            mInsertMeasurementStatement = db.compileStatement("INSERT INTO "
+                    + TABLE_MEASUREMENTS + " (" + KEY_BSSID + ", " + KEY_RSS + ", "
+                    + KEY_DISTANCE + ", " + KEY_TIMESTAMP + ") VALUES (?, ?, ?, ?)");
+            mUpsertCoefficientStatement = db.compileStatement("INSERT OR REPLACE INTO "
+                    + TABLE_COEFFICIENTS + " (" + KEY_BSSID + ", " + KEY_COEFFICIENT_INDEX + ", "
+                    + KEY_COEFFICIENT_VALUE + ") VALUES (?, ?, ?)");
+            mCountSurveyStatement = db.compileStatement("SELECT COUNT(*) FROM "
+                    + TABLE_MEASUREMENTS + " WHERE " + KEY_FINGERPRINT_ID + " IS NULL");
+            mCountSurveyByBssidStatement = db.compileStatement("SELECT COUNT(*) FROM "
+                    + TABLE_MEASUREMENTS + " WHERE " + KEY_BSSID + "=? AND "
+                    + KEY_FINGERPRINT_ID + " IS NULL");
+            mDb = db;
+        }
+        return mDb;
+    }
+
+    /** Closes compiled statements and the connection, next call opens them again */
+    @Override
+    public synchronized void close() {
+        if (mDb != null) {
+            mBssidNameStatement.close();
+            mInsertMeasurementStatement.close();
+            mUpsertCoefficientStatement.close();
+            mCountSurveyStatement.close();
+            mCountSurveyByBssidStatement.close();
+            mDb = null;
+        }
+        super.close();
+    }
+
     /**
      * INSTANCE METHODS
      */
 
-    /** Only runs once, when there is no database in the system */
+    /**
+     * Only runs once, when there is no database in the system. Tables are created as in version
+     * 1 and then migrated to DATABASE_VERSION
+     */
     public void onCreate(SQLiteDatabase db) {
 
         /** Create bssids table */
@@ -127,115 +232,262 @@ public class IndoorTrackerDatabaseHandler extends SQLiteOpenHelper {
                 + KEY_BSSID + " INTEGER,"
                 + KEY_COEFFICIENT_VALUE + " DOUBLE" + ")";
         db.execSQL(CREATE_COEFFICIENTS_TABLE);
+
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
+
+    /** Migrates the schema one version at a time, keeping stored data */
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop older table if existed
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_BSSIDS);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MEASUREMENTS);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COEFFICIENTS);
-        // Create tables again
-        onCreate(db);
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            switch (version) {
+                case 2:
+                    migrateToVersion2(db);
+                    break;
+                case 3:
+                    migrateToVersion3(db);
+                    break;
+                case 4:
+                    migrateToVersion4(db);
+                    break;
+                default:
+                    throw new IllegalArgumentException("No migration to version " + version);
+            }
+        }
+        // In-memory APs are loaded again once the upgrade is over
+        APRegistry.invalidate();
     }
 
-    /**
-     * INDOOR TRACKER HANDLER METHODS
-     */
+    /** Version 2: fingerprint columns in measurements table */
+    private void migrateToVersion2(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_MEASUREMENTS + " ADD COLUMN "
+                + KEY_FINGERPRINT_ID + " INTEGER");
+        db.execSQL("ALTER TABLE " + TABLE_MEASUREMENTS + " ADD COLUMN "
+                + KEY_FINGERPRINT_POS_X + " DOUBLE");
+        db.execSQL("ALTER TABLE " + TABLE_MEASUREMENTS + " ADD COLUMN "
+                + KEY_FINGERPRINT_POS_Y + " DOUBLE");
+    }
 
     /**
-     * Compares WiFi AP scan results with APs stored in database and remove those that are not in
-     * it.
-     * @param results WiFi scan results list with all the AP data scanned in MapViewActivity
-     * @return WiFi scan results list with AP data already filtered.
+     * Version 3: indexes on lookup columns, and unique (id_bssid, coefficient_index) in
+     * coefficients table. Coefficients were appended in sets of four, so the index of each row
+     * is its rank among the rows of its AP, modulo 4, and the last set stored is the one kept
      */
-    public List<ScanResult> filterKnownAPDB (List<ScanResult> results){
-        /* Sort Scan results list by BSSID */
+    private void migrateToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_BSSIDS_NAME + " ON " + TABLE_BSSIDS + "("
+                + KEY_BSSID_NAME + ")");
+        db.execSQL("CREATE INDEX " + INDEX_MEASUREMENTS_BSSID + " ON " + TABLE_MEASUREMENTS
+                + "(" + KEY_BSSID + ")");
+
+        db.execSQL("ALTER TABLE " + TABLE_COEFFICIENTS + " ADD COLUMN "
+                + KEY_COEFFICIENT_INDEX + " INTEGER");
+        db.execSQL("UPDATE " + TABLE_COEFFICIENTS + " SET " + KEY_COEFFICIENT_INDEX
+                + " = (SELECT COUNT(*) FROM " + TABLE_COEFFICIENTS + " c WHERE c." + KEY_BSSID
+                + " = " + TABLE_COEFFICIENTS + "." + KEY_BSSID + " AND c." + KEY_COEFFICIENT_ID
+                + " < " + TABLE_COEFFICIENTS + "." + KEY_COEFFICIENT_ID + ") % 4");
+        db.execSQL("DELETE FROM " + TABLE_COEFFICIENTS + " WHERE " + KEY_COEFFICIENT_ID
+                + " NOT IN (SELECT MAX(" + KEY_COEFFICIENT_ID + ") FROM " + TABLE_COEFFICIENTS
+                + " GROUP BY " + KEY_BSSID + ", " + KEY_COEFFICIENT_INDEX + ")");
+        db.execSQL("CREATE UNIQUE INDEX " + INDEX_COEFFICIENTS_BSSID + " ON "
+                + TABLE_COEFFICIENTS + "(" + KEY_BSSID + ", " + KEY_COEFFICIENT_INDEX + ")");
+    }
 
-        Collections.sort(results, new Comparator<ScanResult>() {
-            public int compare(ScanResult one, ScanResult other) {
-                return one.BSSID.compareTo(other.BSSID);
-            }
-        });
+    /** Version 4: timestamp column in measurements table */
+    private void migrateToVersion4(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_MEASUREMENTS + " ADD COLUMN "
+                + KEY_TIMESTAMP + " INTEGER");
+    }
 
-        SQLiteDatabase db = this.getReadableDatabase();
-        // Select all BSSIDs from bssids table
-        String selectQuery = "SELECT * FROM " + TABLE_BSSIDS;
-        Cursor cursor = db.rawQuery(selectQuery, null);
+    /**
+     * INDOOR TRACKER HANDLER METHODS
+     */
 
-        boolean apIsKnown;
-
-        List<ScanResult> toRemove = new ArrayList<ScanResult>();
-        /* Compares both lists element by element. If an item is not in known AP table,
-        is inserted into toRemove list in order to remove it at the end */
-        for (int j = 0; j < results.size(); j++) { // Scan results list
-            apIsKnown = false;
-            if (cursor.moveToFirst()) {
-                for (int i = 0; i < cursor.getCount(); i++) { // Known APs in database
-                    if (removeLastDigitBssid(results.get(j).BSSID).equals(cursor.getString(1))) {
-                        apIsKnown = true;
-                        // Overwrite with common BSSID name (bssid without last digit)
-                        results.get(j).BSSID = cursor.getString(1);
-                    }
-                    cursor.moveToNext();
-                }
-                // Remove AP from list
-                if (!apIsKnown)
-                    toRemove.add(results.get(j));
-            }
+    /**
+     * Gets positions of every AP from bssids table, indexed by AP id
+     * @return {posX, posY}, with NaN at ids which are not in the table
+     */
+    public double[][] getAPPositionTableDB () {
+        SQLiteDatabase db = getDatabase();
+        Cursor cursor = db.query(TABLE_BSSIDS, new String[]{KEY_BSSID_ID, KEY_BSSID_POS_X,
+                KEY_BSSID_POS_Y}, null, null, null, null, KEY_BSSID_ID + " ASC");
+        int maxId = 0;
+        if (cursor.moveToLast())
+            maxId = cursor.getInt(0);
+        double[] posX = new double[maxId + 1];
+        double[] posY = new double[maxId + 1];
+        Arrays.fill(posX, Double.NaN);
+        Arrays.fill(posY, Double.NaN);
+        if (cursor.moveToFirst()) {
+            do {
+                int id = cursor.getInt(0);
+                posX[id] = Integer.parseInt(cursor.getString(1));
+                posY[id] = Integer.parseInt(cursor.getString(2));
+            } while (cursor.moveToNext());
         }
-        // Removes all items stored into toRemove list from results list
-        results.removeAll(toRemove);
-        db.close();
-        return results;
+        cursor.close();
+        return new double[][]{posX, posY};
     }
 
     /**
-     * Gets AP position from bssids table
-     * @param bssid AP BSSID of interest
-     * @return Point object with AP position
+     * Loads id, BSSID and position of every AP from bssids table, so they are kept in memory
+     * instead of being read for every fix
+     * @return snapshot of bssids table, see APRegistry
      */
-    public Point getAPPositionDB (String bssid) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_BSSIDS, new String[]{KEY_BSSID_POS_X, KEY_BSSID_POS_Y},
-                KEY_BSSID_NAME + "=?",
-                new String[]{bssid}, null, null, null, null);
-        int x = 0, y = 0;
+    public APRegistry loadAPRegistryDB () {
+        SQLiteDatabase db = getDatabase();
+        Cursor cursor = db.query(TABLE_BSSIDS, new String[]{KEY_BSSID_ID, KEY_BSSID_NAME,
+                KEY_BSSID_POS_X, KEY_BSSID_POS_Y}, null, null, null, null, KEY_BSSID_ID);
+        int numAPs = cursor.getCount();
+        int[] ids = new int[numAPs];
+        String[] bssids = new String[numAPs];
+        Point[] positions = new Point[numAPs];
+        int ap = 0;
         if (cursor.moveToFirst()) {
-            x = Integer.parseInt(cursor.getString(0));
-            y = Integer.parseInt(cursor.getString(1));
+            do {
+                ids[ap] = cursor.getInt(0);
+                bssids[ap] = cursor.getString(1);
+                positions[ap] = new Point(Integer.parseInt(cursor.getString(2)),
+                        Integer.parseInt(cursor.getString(3)));
+                ap++;
+            } while (cursor.moveToNext());
         }
-        db.close();
-        return new Point (x, y);
+        cursor.close();
+        return new APRegistry(ids, bssids, positions);
     }
 
     /**
-     * Gets coefficients [a b c d] from estimated pathloss model of BSSID selected
-     * @param idBssidApSelected BSSID selected
-     * @return coefficients [a b c d]
+     * Loads the pathloss model of every AP with its four coefficients, compiled into lookup
+     * tables.
+     * @return registry with all the models, see PathLossModelRegistry
      */
+    public PathLossModelRegistry loadPathLossModelsDB (){
+        SQLiteDatabase db = getDatabase();
+        // Only APs which are still in bssids table
+        String selectQuery = "SELECT c." + KEY_BSSID + ", c." + KEY_COEFFICIENT_INDEX + ", c."
+                + KEY_COEFFICIENT_VALUE + " FROM "
+                + TABLE_COEFFICIENTS + " c JOIN " + TABLE_BSSIDS + " b ON c." + KEY_BSSID
+                + " = b." + KEY_BSSID_ID + " ORDER BY c." + KEY_BSSID;
+        Cursor cursor = db.rawQuery(selectQuery, null);
 
-    public double[] getCoefficientsDB (int idBssidApSelected){
-        SQLiteDatabase db = this.getReadableDatabase();
+        Map<Integer, PathLossModel> modelsById = new HashMap<Integer, PathLossModel>();
         double[] coefficients = new double[4];
-        Cursor cursor = db.query(TABLE_COEFFICIENTS, new String[]{KEY_COEFFICIENT_VALUE},
-                KEY_BSSID + "=?",
-                new String[]{String.valueOf(idBssidApSelected)}, null, null, null, null);
-        // There is at least one register
+        int currentId = -1, count = 0;
         if (cursor.moveToFirst()) {
-            for (int i = 0; i < cursor.getCount(); i++) {
-                coefficients[i] = cursor.getDouble(0);
-                cursor.moveToNext();
-            }
+            do {
+                int id = cursor.getInt(0);
+                if (id != currentId) {
+                    currentId = id;
+                    count = 0;
+                }
+                int index = cursor.getInt(1);
+                if (index < 0 || index >= 4)
+                    continue;
+                coefficients[index] = cursor.getDouble(2);
+                count++;
+                // Only APs with the complete set [a b c d] have a model
+                if (count == 4) {
+                    modelsById.put(id, new PathLossModel(coefficients));
+                }
+            } while (cursor.moveToNext());
         }
-        db.close();
+        cursor.close();
+        return new PathLossModelRegistry(modelsById);
+    }
 
-        return coefficients;
+    /**
+     * FINGERPRINTING HANDLER METHODS
+     */
+
+    /**
+     * Adds a fingerprint of the radio map to measurements table: one row for each known AP heard
+     * at the surveyed position, all of them with a new id_fingerprint. Fingerprints are recorded
+     * from MeasuringDataActivity menu.
+     * @param x x coordinate of the surveyed position
+     * @param y y coordinate of the surveyed position
+     * @param results WiFi scan results list (BSSIDs are matched by AP, see BssidKey)
+     * @return id of the fingerprint
+     */
+    public int addFingerprintDB (double x, double y, List<ScanResult> results) {
+        SQLiteDatabase db = getDatabase();
+        APRegistry known = APRegistry.getInstance(this);
 
+        db.beginTransaction();
+        int idFingerprint = 0;
+        try {
+            Cursor cursor = db.rawQuery("SELECT MAX(" + KEY_FINGERPRINT_ID + ") FROM "
+                    + TABLE_MEASUREMENTS, null);
+            if (cursor.moveToFirst() && !cursor.isNull(0))
+                idFingerprint = cursor.getInt(0) + 1;
+            cursor.close();
+
+            ContentValues fingerprintValues = new ContentValues();
+            fingerprintValues.put(KEY_FINGERPRINT_ID, idFingerprint);
+            fingerprintValues.put(KEY_FINGERPRINT_POS_X, x);
+            fingerprintValues.put(KEY_FINGERPRINT_POS_Y, y);
+            fingerprintValues.put(KEY_TIMESTAMP, System.currentTimeMillis());
+            for (ScanResult result : results) {
+                int ap = known.find(BssidKey.parseGroup(result.BSSID));
+                if (ap < 0)
+                    continue;
+                fingerprintValues.put(KEY_BSSID, known.getId(ap));
+                fingerprintValues.put(KEY_RSS, result.level);
+                db.insert(TABLE_MEASUREMENTS, null, fingerprintValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return idFingerprint;
     }
-    private String removeLastDigitBssid (String bssid){
-        if (bssid.length() > 0) {
-            bssid = bssid.substring(0, bssid.length()-1);
+
+    /**
+     * Loads every fingerprint of measurements table into a radio map (see RadioMap). Vectors
+     * have one column per AP id, APs not heard at a reference point hold MISSING_RSS.
+     * @return radio map, with no reference points if there are no fingerprints
+     */
+    public RadioMap loadRadioMapDB () {
+        SQLiteDatabase db = getDatabase();
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        Cursor cursor = db.query(TABLE_BSSIDS, new String[]{KEY_BSSID_ID, KEY_BSSID_NAME},
+                null, null, null, null, null);
+        int numColumns = 0;
+        if (cursor.moveToFirst()) {
+            do {
+                int id = cursor.getInt(0);
+                columns.put(cursor.getString(1), id);
+                numColumns = Math.max(numColumns, id + 1);
+            } while (cursor.moveToNext());
         }
-        return bssid;
+        cursor.close();
+
+        cursor = db.rawQuery("SELECT COUNT(DISTINCT " + KEY_FINGERPRINT_ID + ") FROM "
+                + TABLE_MEASUREMENTS, null);
+        int numPoints = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+
+        double[] posX = new double[numPoints];
+        double[] posY = new double[numPoints];
+        float[] rss = new float[numPoints * numColumns];
+        Arrays.fill(rss, RadioMap.MISSING_RSS);
+        cursor = db.query(TABLE_MEASUREMENTS, new String[]{KEY_FINGERPRINT_ID,
+                KEY_FINGERPRINT_POS_X, KEY_FINGERPRINT_POS_Y, KEY_BSSID, KEY_RSS},
+                KEY_FINGERPRINT_ID + " IS NOT NULL", null, null, null, KEY_FINGERPRINT_ID);
+        int point = -1, currentId = -1;
+        if (cursor.moveToFirst()) {
+            do {
+                int idFingerprint = cursor.getInt(0);
+                if (idFingerprint != currentId || point < 0) {
+                    currentId = idFingerprint;
+                    point++;
+                    posX[point] = cursor.getDouble(1);
+                    posY[point] = cursor.getDouble(2);
+                }
+                int id = cursor.getInt(3);
+                if (id >= 0 && id < numColumns)
+                    rss[point * numColumns + id] = cursor.getInt(4);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return new RadioMap(posX, posY, rss, columns);
     }
 
     /**
@@ -249,116 +501,152 @@ public class IndoorTrackerDatabaseHandler extends SQLiteOpenHelper {
      * @param id_BSSID Identification number of currently used AP MAC/BSSID
      */
     public String getBssidNameDB(int id_BSSID) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_BSSIDS, new String[]{KEY_BSSID_NAME}, KEY_BSSID_ID + "=?",
-                new String[]{String.valueOf(id_BSSID)}, null, null, null, null);
-        String bssid = "";
-        if (cursor.moveToFirst()) {
-            bssid = cursor.getString(0);
+        getDatabase();
+        synchronized (mBssidNameStatement) {
+            mBssidNameStatement.bindLong(1, id_BSSID);
+            try {
+                return mBssidNameStatement.simpleQueryForString();
+            } catch (SQLiteDoneException ex) {
+                return "";
+            }
         }
-        db.close();
-        return bssid;
     }
 
     /**
-     * addMeasurementDB (int id_BSSID, int value_RSS, int value_distance)
-     * <p/>
-     * Adds measurement sets to "measurements" table
+     * Adds a batch of measurement sets to "measurements" table in a single transaction, so the
+     * whole batch is committed (and synced to storage) once. Surveys buffer them in a
+     * MeasurementBatch, which calls this method
      *
-     * @param id_BSSID       Identification number of currently used AP MAC/BSSID
-     * @param value_RSS      RSS value gathered from AP for a determined value_distance
-     * @param value_distance meters away from where value_RSS was measured
+     * @param id_BSSIDs       Identification number of AP of each measurement
+     * @param values_RSS      RSS value of each measurement
+     * @param values_distance meters away from where each RSS was measured
+     * @param timestamps      time of each measurement (ms since epoch)
+     * @param count           number of measurements, first count items of the arrays
      */
-    public void addMeasurementDB(int id_BSSID, int value_RSS, int value_distance) {
-        // If id_BSSID is already in table, update measurements
-        // If id_BSSID is not in table, insert measurements
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues measurementValues = new ContentValues();
-        measurementValues.put(KEY_BSSID, id_BSSID);
-        measurementValues.put(KEY_RSS, value_RSS);
-        measurementValues.put(KEY_DISTANCE, value_distance);
-        // insert AP measurements into measurements table
-        db.insert(TABLE_MEASUREMENTS, null, measurementValues);
-        db.close();
-    }
-
-    /**
-     * Reads the RSS array which corresponds to id_BSSID from measurements table
-     *
-     * @param id_BSSID Identification number of currently used AP MAC/BSSID
-     * @return rssArray
-     */
-    public double[] getRSSValuesDB(int id_BSSID) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_MEASUREMENTS, new String[]{KEY_RSS},
-                KEY_BSSID + "=?",
-                new String[]{String.valueOf(id_BSSID)}, null, null, null, null);
-        double[] rssArray = new double[cursor.getCount()];
-        // There is at least one register
-        if (cursor.moveToFirst()) {
-            for (int i = 0; i < cursor.getCount(); i++) {
-                rssArray[i] = cursor.getDouble(0);
-                cursor.moveToNext();
+    public void addMeasurementsDB(int[] id_BSSIDs, int[] values_RSS, int[] values_distance,
+                                  long[] timestamps, int count) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            // insert AP measurements into measurements table
+            synchronized (mInsertMeasurementStatement) {
+                for (int i = 0; i < count; i++) {
+                    mInsertMeasurementStatement.bindLong(1, id_BSSIDs[i]);
+                    mInsertMeasurementStatement.bindLong(2, values_RSS[i]);
+                    mInsertMeasurementStatement.bindLong(3, values_distance[i]);
+                    mInsertMeasurementStatement.bindLong(4, timestamps[i]);
+                    mInsertMeasurementStatement.executeInsert();
+                }
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        db.close();
-        return rssArray;
     }
 
     /**
-     * Reads the distance array which corresponds to id_BSSID from measurements table
+     * Reads the pathloss measurements (not fingerprints) of an AP, or of every AP, from
+     * measurements table in a single ordered query, into aligned columns (see SurveyData).
+     * Columns are presized from a COUNT, and rows are read straight from the cursor window
+     * when the cursor has one
      *
-     * @param id_BSSID Identification number of currently used AP MAC/BSSID
-     * @return distanceArray
+     * @param id_BSSID Identification number of the AP, ALL_APS for every AP
+     * @return measurements, sorted by AP id and insertion order
      */
-    public double[] getDistanceValuesDB(int id_BSSID) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_MEASUREMENTS, new String[]{KEY_DISTANCE},
-                KEY_BSSID + "=?",
-                new String[]{String.valueOf(id_BSSID)}, null, null, null, null);
-        double[] distanceArray = new double[cursor.getCount()];
-        // There is at least one register
-        if (cursor.moveToFirst()) {
-            for (int i = 0; i < cursor.getCount(); i++) {
-                distanceArray[i] = cursor.getDouble(0);
-                cursor.moveToNext();
+    public SurveyData loadSurveyDataDB(int id_BSSID) {
+        SQLiteDatabase db = getDatabase();
+        String selection = KEY_FINGERPRINT_ID + " IS NULL";
+        String[] selectionArgs = null;
+        int count;
+        if (id_BSSID == ALL_APS) {
+            synchronized (mCountSurveyStatement) {
+                count = (int) mCountSurveyStatement.simpleQueryForLong();
+            }
+        } else {
+            selection = KEY_BSSID + "=? AND " + selection;
+            selectionArgs = new String[]{String.valueOf(id_BSSID)};
+            synchronized (mCountSurveyByBssidStatement) {
+                mCountSurveyByBssidStatement.bindLong(1, id_BSSID);
+                count = (int) mCountSurveyByBssidStatement.simpleQueryForLong();
+            }
+        }
+        int[] ids = new int[count];
+        int[] rss = new int[count];
+        int[] distances = new int[count];
+        long[] timestamps = new long[count];
+
+        // Index on id_bssid gives rows in (id_bssid, id) order without sorting
+        Cursor cursor = db.query(TABLE_MEASUREMENTS, new String[]{KEY_BSSID, KEY_RSS,
+                KEY_DISTANCE, KEY_TIMESTAMP}, selection, selectionArgs, null, null,
+                KEY_BSSID + ", " + KEY_MEASUREMENT_ID);
+        int size = 0;
+        try {
+            while (cursor.moveToPosition(size)) {
+                // Rows inserted after the COUNT are kept too
+                if (size == ids.length) {
+                    int capacity = Math.max(16, 2 * size);
+                    ids = Arrays.copyOf(ids, capacity);
+                    rss = Arrays.copyOf(rss, capacity);
+                    distances = Arrays.copyOf(distances, capacity);
+                    timestamps = Arrays.copyOf(timestamps, capacity);
+                }
+                CursorWindow window = cursor instanceof CrossProcessCursor
+                        ? ((CrossProcessCursor) cursor).getWindow() : null;
+                if (window == null) {
+                    ids[size] = cursor.getInt(0);
+                    rss[size] = cursor.getInt(1);
+                    distances[size] = cursor.getInt(2);
+                    timestamps[size] = cursor.getLong(3);
+                    size++;
+                    continue;
+                }
+                // Every row of the window filled by moveToPosition, NULL timestamps read as 0
+                int end = Math.min(window.getStartPosition() + window.getNumRows(), ids.length);
+                for (; size < end; size++) {
+                    ids[size] = window.getInt(size, 0);
+                    rss[size] = window.getInt(size, 1);
+                    distances[size] = window.getInt(size, 2);
+                    timestamps[size] = window.getLong(size, 3);
+                }
             }
+        } finally {
+            cursor.close();
         }
-        db.close();
-        return distanceArray;
+        return new SurveyData(ids, rss, distances, timestamps, size);
     }
 
     /**
-     * Adds coefficients to database. They are stored in [a b c d] order
+     * Adds coefficients to database, or replaces them if id_BSSID already has some. They are
+     * stored in [a b c d] order (coefficient_index 0 to 3)
      * @param id_BSSID Identification number of currently used AP MAC/BSSID
      * @param coefficients coefficients [a b c d]
      */
     public void addCoefficientsDB(int id_BSSID, double[] coefficients) {
-        // NEEDS TO BE DONE:
-        //      If id_BSSID is already in table, update coefficients
-        //      If id_BSSID is not in table, insert coefficients
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues coefficientValues = new ContentValues();
-        coefficientValues.put(KEY_BSSID, id_BSSID);
-        coefficientValues.put(KEY_COEFFICIENT_VALUE, coefficients[0]);
-        db.insert(TABLE_COEFFICIENTS, null, coefficientValues);
-        coefficientValues.put(KEY_BSSID, id_BSSID);
-        coefficientValues.put(KEY_COEFFICIENT_VALUE, coefficients[1]);
-        db.insert(TABLE_COEFFICIENTS, null, coefficientValues);
-        coefficientValues.put(KEY_BSSID, id_BSSID);
-        coefficientValues.put(KEY_COEFFICIENT_VALUE, coefficients[2]);
-        db.insert(TABLE_COEFFICIENTS, null, coefficientValues);
-        coefficientValues.put(KEY_BSSID, id_BSSID);
-        coefficientValues.put(KEY_COEFFICIENT_VALUE, coefficients[3]);
-        db.insert(TABLE_COEFFICIENTS, null, coefficientValues);
-        db.close();
+        SQLiteDatabase db = getDatabase();
+        // The four coefficients are committed at once
+        db.beginTransaction();
+        try {
+            synchronized (mUpsertCoefficientStatement) {
+                for (int i = 0; i < 4; i++) {
+                    mUpsertCoefficientStatement.bindLong(1, id_BSSID);
+                    mUpsertCoefficientStatement.bindLong(2, i);
+                    mUpsertCoefficientStatement.bindDouble(3, coefficients[i]);
+                    mUpsertCoefficientStatement.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // Positioning picks the new model up without reading database again
+        PathLossModelRegistry.updateModel(id_BSSID, new PathLossModel(coefficients));
     }
 
 
     /** Used to check database, help method of AndroidDatabaseManager activity */
     public ArrayList<Cursor> getData(String Query) {
         //get writable database
-        SQLiteDatabase sqlDB = this.getWritableDatabase();
+        SQLiteDatabase sqlDB = getDatabase();
         String[] columns = new String[]{"mesage"};
         //an array list of cursor to save two cursors one has results from the query
         //other cursor stores error message if any errors are triggered
@@ -370,10 +658,15 @@ public class IndoorTrackerDatabaseHandler extends SQLiteOpenHelper {
             String maxQuery = Query;
             //execute the query results will be save in Cursor c
             Cursor c = sqlDB.rawQuery(maxQuery, null);
+            // The statement is run when the cursor is first counted
+            int count = c == null ? 0 : c.getCount();
+            // Anything but a read may have changed bssids table: in-memory APs are reloaded
+            if (!isReadQuery(maxQuery))
+                reloadAPRegistry();
             //add value to cursor2
             Cursor2.addRow(new Object[]{"Success"});
             alc.set(1, Cursor2);
-            if (null != c && c.getCount() > 0) {
+            if (count > 0) {
                 alc.set(0, c);
                 c.moveToFirst();
                 return alc;
@@ -388,4 +681,24 @@ public class IndoorTrackerDatabaseHandler extends SQLiteOpenHelper {
             return alc;
         }
     }
+
+    /**
+     * Reloads APRegistry after bssids table may have changed. If the table can not be read
+     * (e.g. it has just been dropped), the snapshot is only invalidated
+     */
+    private void reloadAPRegistry() {
+        try {
+            APRegistry.reload(this);
+        } catch (RuntimeException ex) {
+            Log.d("APRegistry", "bssids table could not be reloaded: " + ex.getMessage());
+            APRegistry.invalidate();
+        }
+    }
+
+    /** @return true if an SQL statement can not modify the database (SELECT or PRAGMA read) */
+    private static boolean isReadQuery(String query) {
+        String statement = query.trim().toUpperCase(Locale.US);
+        return statement.startsWith("SELECT")
+                || (statement.startsWith("PRAGMA") && statement.indexOf('=') < 0);
+    }
 }
@@ -0,0 +1,151 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Constant-velocity Kalman filter which smooths the fixes given by LSAlgorithm and predicts user
+ * position between them:
+ *
+ *      state    s = [p; v]   (position and velocity of one axis)
+ *
+ *      predict  s = F*s      F = [1 dt; 0 1]
+ *               P = F*P*F' + Q      Q = q * [dt³/3 dt²/2; dt²/2 dt]
+ *
+ *      update   K = P*H' / (H*P*H' + R)     H = [1 0]
+ *               s = s + K*(z - p)
+ *               P = (I - K*H)*P
+ *
+ *  With this motion model (white acceleration noise on each axis) and position measurements, x
+ *  and y axes are independent, so the 4x4 filter is run as two 2x2 filters. State and covariance
+ *  are plain double fields, hence neither update nor prediction allocates anything.
+ *
+ *  Fixes arrive every few seconds, whereas the map is redrawn at UI frame rate with
+ *  predictPosition, which extrapolates the state without modifying it.
+ *
+ *  NOTE: it is not thread-safe. MapViewActivity only uses it from the UI thread.
+ */
+public class KalmanTracker {
+    /** Default standard deviation of LS fixes (meters) */
+    public static final double DEFAULT_MEASUREMENT_STD = 3.0;
+    /** Default spectral density of acceleration noise (m²/s³), walking user */
+    public static final double DEFAULT_PROCESS_NOISE = 0.05;
+    /** Initial standard deviation of velocity (m/s) */
+    private static final double INITIAL_VELOCITY_STD = 1.5;
+    /** Default time after last fix where prediction stops being extrapolated (seconds) */
+    public static final double DEFAULT_MAX_PREDICTION_TIME = 5.0;
+    /** Extrapolation limit, in fix intervals: covers a late fix, but not a lost track */
+    public static final double PREDICTION_INTERVALS = 1.5;
+
+    private double mMeasurementVariance = DEFAULT_MEASUREMENT_STD * DEFAULT_MEASUREMENT_STD;
+    private double mProcessNoise = DEFAULT_PROCESS_NOISE;
+    private double mMaxPredictionTime = DEFAULT_MAX_PREDICTION_TIME;
+
+    private boolean mIsInitialized = false;
+    private long mLastTimeMillis;
+
+    /* State and covariance of x axis: [px; vx], P = [pxx pxv; pxv pvv] */
+    private double mPx, mVx, mPxx, mPxv, mPvvX;
+    /* State and covariance of y axis: [py; vy] */
+    private double mPy, mVy, mPyy, mPyv, mPvvY;
+
+    public void setMeasurementStd(double measurementStd) {
+        this.mMeasurementVariance = measurementStd * measurementStd;
+    }
+
+    public void setProcessNoise(double processNoise) {
+        this.mProcessNoise = processNoise;
+    }
+
+    /**
+     * Sets how often fixes are expected, so prediction keeps extrapolating until the next one
+     * arrives: it stops PREDICTION_INTERVALS intervals after last fix.
+     * @param fixIntervalMillis time between two fixes (ms)
+     */
+    public void setFixInterval(long fixIntervalMillis) {
+        if (fixIntervalMillis <= 0)
+            throw new IllegalArgumentException("Fix interval must be positive");
+        this.mMaxPredictionTime = PREDICTION_INTERVALS * fixIntervalMillis / 1000.0;
+    }
+
+    public boolean isInitialized() {
+        return mIsInitialized;
+    }
+
+    /** Forgets the track, next fix will start a new one */
+    public void reset() {
+        mIsInitialized = false;
+    }
+
+    /**
+     * Corrects the track with a new LS fix. The first fix initialises it with zero velocity.
+     * @param x x coordinate of the fix
+     * @param y y coordinate of the fix
+     * @param timeMillis time of the fix (e.g. SystemClock.elapsedRealtime())
+     */
+    public void update(double x, double y, long timeMillis) {
+        if (!mIsInitialized) {
+            double velocityVariance = INITIAL_VELOCITY_STD * INITIAL_VELOCITY_STD;
+            mPx = x;
+            mPy = y;
+            mVx = 0;
+            mVy = 0;
+            mPxx = mPyy = mMeasurementVariance;
+            mPxv = mPyv = 0;
+            mPvvX = mPvvY = velocityVariance;
+            mLastTimeMillis = timeMillis;
+            mIsInitialized = true;
+            return;
+        }
+
+        double dt = Math.max(0, (timeMillis - mLastTimeMillis) / 1000.0);
+        mLastTimeMillis = timeMillis;
+        double q11 = mProcessNoise * dt * dt * dt / 3;
+        double q12 = mProcessNoise * dt * dt / 2;
+        double q22 = mProcessNoise * dt;
+
+        /* x axis */
+        mPx += mVx * dt;
+        double pxx = mPxx + 2 * dt * mPxv + dt * dt * mPvvX + q11;
+        double pxv = mPxv + dt * mPvvX + q12;
+        double pvv = mPvvX + q22;
+        double s = pxx + mMeasurementVariance;
+        double k0 = pxx / s, k1 = pxv / s;
+        double innovation = x - mPx;
+        mPx += k0 * innovation;
+        mVx += k1 * innovation;
+        mPxx = (1 - k0) * pxx;
+        mPxv = (1 - k0) * pxv;
+        mPvvX = pvv - k1 * pxv;
+
+        /* y axis */
+        mPy += mVy * dt;
+        double pyy = mPyy + 2 * dt * mPyv + dt * dt * mPvvY + q11;
+        double pyv = mPyv + dt * mPvvY + q12;
+        pvv = mPvvY + q22;
+        s = pyy + mMeasurementVariance;
+        k0 = pyy / s;
+        k1 = pyv / s;
+        innovation = y - mPy;
+        mPy += k0 * innovation;
+        mVy += k1 * innovation;
+        mPyy = (1 - k0) * pyy;
+        mPyv = (1 - k0) * pyv;
+        mPvvY = pvv - k1 * pyv;
+    }
+
+    /**
+     * Predicts user position at a given time, without modifying the track. Extrapolation stops
+     * PREDICTION_INTERVALS fix intervals after last fix (see setFixInterval), so a lost track
+     * does not drift away.
+     * @param timeMillis time of the prediction (same clock as update)
+     * @param position output array where [x, y] are written
+     * @return false if there is no track yet
+     */
+    public boolean predictPosition(long timeMillis, double[] position) {
+        if (!mIsInitialized)
+            return false;
+        double dt = Math.min(mMaxPredictionTime,
+                Math.max(0, (timeMillis - mLastTimeMillis) / 1000.0));
+        position[0] = mPx + mVx * dt;
+        position[1] = mPy + mVy * dt;
+        return true;
+    }
+}
@@ -3,27 +3,30 @@ package com.example.android.lsindoortracker;
 import android.content.Context;
 import android.graphics.Point;
 import android.net.wifi.ScanResult;
+import android.util.Log;
 
 import org.ejml.data.DenseMatrix64F;
-import org.ejml.factory.LinearSolverFactory;
 import org.ejml.interfaces.linsol.LinearSolver;
 import org.ejml.ops.CommonOps;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  *  Algorithm class which will estimate user position in several steps:
  *      1) Filters APs which are not in database out
  *      2) Filters repetitive SSIDs out
  *      3) If resulted list is less than 4 APs, algorithm won't be able to estimate user position
- *      4) Gets the 4 strongest RSSs from 4 different APs
- *      5) Translates previous strongest RSSs to distances by using estimated PL model
- *      6) Applies different least square approaches depending on user choice.
+ *      4) Gets the N strongest RSSs from N different APs (4 <= N <= max anchors)
+ *      (steps 1, 2 and 4 are fused in a single pass over the scan, see ScanPreprocessor)
+ *      5) Translates previous strongest RSSs to distances by using the estimated PL model of
+ *         each AP (or the one of the AP selected if it has none)
+ *      6) Applies different least square approaches depending on user choice. Non-linear
+ *         LS, particle filter, grid filter, fingerprinting and weighted centroid approaches
+ *         can be selected too (see the approach constants). If the approach fails, the
+ *         reason is reported by status and a fallback chain gives the position (see locate).
  *
  *  For a more detailed explanation on how these algorithms have been derived and deployed,
  *  please refer to Msc Thesis.
@@ -33,147 +36,778 @@ import java.util.Map;
  *  (https://code.google.com/p/java-matrix-benchmark/)
  */
 public class LSAlgorithm {
+    /* Solver modes */
+    public static final int SOLVER_EJML = 0;
+    public static final int SOLVER_CLOSED_FORM = 1;
+
+    /* Positioning approaches: Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2,
+    Weighted Circular = 3, Non-linear LS = 4, Particle filter = 5, Fingerprinting = 6,
+    Grid filter = 7 */
+    public static final int NLLS_ALGORITHM = 4;
+    public static final int PARTICLE_FILTER = 5;
+    public static final int FINGERPRINTING = 6;
+    public static final int GRID_FILTER = 7;
+
+    /* Weighted centroid = 8 and last known position = 9, also fallback steps. Robust subset =
+    10, only as fallback */
+    /** Cheapest approach, used by low power mode (see LowPowerController and scanCentroid) */
+    public static final int WEIGHTED_CENTROID = 8;
+    /** Reuses the last fix without processing the scan, used by low power mode when the user is
+     *  stationary. Weighted centroid is used while there is no last fix */
+    public static final int LAST_KNOWN_POSITION = 9;
+    /** Best RANSAC model of robust mode, when too few inliers are left for the approach */
+    public static final int ROBUST_SUBSET = 10;
+    /** Linearised approach with the lowest range residual for each fix (see bestLinearAlgorithm) */
+    public static final int BEST_LINEAR = 11;
+
+    /* Hyperbolic approaches have 3 unknowns, so at least 4 APs are needed */
+    public static final int MIN_ANCHORS = 4;
+    public static final int DEFAULT_MAX_ANCHORS = 15;
+
+    /* Anchor selection rules: strongest APs, or best GDOP among the strongest candidates */
+    public static final int ANCHORS_STRONGEST = 0;
+    public static final int ANCHORS_GDOP = 1;
+    /** Candidates of GDOP selection, relative to max anchors */
+    public static final int CANDIDATE_FACTOR = 2;
+
     public Context mapViewActivityContext;
+    private int mSolverMode = SOLVER_EJML;
+    /* Max anchors requested from any thread; buffers are reallocated by the next fix */
+    private volatile int mMaxAnchorsRequested = DEFAULT_MAX_ANCHORS;
+    private int mMaxAnchors;
+    private LSClosedFormSolver mClosedFormSolver;
+    private NLLSAlgorithm mNLLSAlgorithm;
+    /* Particle filter is created on first use, since it loads the floor plan */
+    private ParticleFilter mParticleFilter;
+    /* Particle count requested from any thread, applied to the filter by the next fix */
+    private volatile int mNumParticlesRequested = ParticleFilter.DEFAULT_NUM_PARTICLES;
+    /* So is the grid filter, which shares the floor plan */
+    private FloorPlan mFloorPlan;
+    private boolean mIsFloorPlanUnavailable = false;
+    private GridFilter mGridFilter;
+    /* Cell size requested from any thread, the grid is rebuilt by the next fix */
+    private volatile double mGridCellSizeRequested = GridFilter.DEFAULT_CELL_SIZE;
+    /* RANSAC engine is created when robust mode is first enabled. The mode is requested from
+    any thread (e.g. UI one) and applied by the next fix */
+    private volatile boolean mIsRobustModeRequested = false;
+    private boolean mIsRobustMode = false;
+    /* Release requested while a fix was running, that fix carries it out when it ends */
+    private volatile boolean mIsReleaseRequested = false;
+    private RansacPositioning mRansac;
+    private final RansacPositioning.Result mRansacResult = new RansacPositioning.Result();
+    /* Radio map and its index are loaded on first use of fingerprinting */
+    private FingerprintPositioning mFingerprinting;
+    private float[] mFingerprintQuery;
+    private final AnchorGeometryCache mGeometryCache = new AnchorGeometryCache();
+
+    /* Scan buffers over the known APs of the current APRegistry snapshot */
+    private ScanPreprocessor mScanPreprocessor;
+
+    /* Fallback chain of locate, and last position given by it */
+    private int[] mFallbackChain = {3, 2, WEIGHTED_CENTROID, LAST_KNOWN_POSITION};
+    private boolean mHasLastPosition = false;
+    private double mLastX, mLastY;
+
+    /* Anchor selection, with its candidate buffers (strongest first) */
+    private int mAnchorSelection = ANCHORS_GDOP;
+    private final AnchorSelector mAnchorSelector = new AnchorSelector();
+    private int[] mCandidateId;
+    private double[] mCandidateX, mCandidateY, mCandidateDist;
+    private int[] mCandidateRSS;
+    private int[] mSelected;
+
+    /* Anchors, matrices and solvers recycled between fixes. Replaced only by the fix holding it */
+    private volatile FixContext mFixContext;
+    private final IndoorTrackerDatabaseHandler mDbHandler;
+
+    /* Preallocated input/output buffers of closed form solver */
+    private double[] mApX;
+    private double[] mApY;
+    private double[] mDist;
+    private int[] mRSS;
+    private final double[] mPosition = new double[2];
+    /* Estimates of the four linearised approaches, recycled by the BEST_LINEAR approach */
+    private final AlgorithmComparison mComparison = new AlgorithmComparison();
 
+    /**
+     * AP ids, BSSIDs and positions (APRegistry) and pathloss models (PathLossModelRegistry) are
+     * loaded here, if no other instance loaded them before, and shared by the whole process, so
+     * fixes never read the database.
+     * @param context context of the app
+     */
     public LSAlgorithm(Context context){
         this.mapViewActivityContext = context;
+        mDbHandler = IndoorTrackerDatabaseHandler.getInstance(context);
+        mFixContext = new FixContext(DEFAULT_MAX_ANCHORS);
+        allocateBuffers(DEFAULT_MAX_ANCHORS);
+        // AP positions and pathloss models are loaded here, so fixes do not read the database
+        APRegistry.getInstance(mDbHandler);
+        PathLossModelRegistry.getInstance(mDbHandler);
+    }
+
+    public int getMaxAnchors() {
+        return mMaxAnchorsRequested;
+    }
+
+    /**
+     * Sets the maximum number of APs (the strongest ones) used by each fix.
+     * It may be called from any thread while a fix is running: solver buffers and fix context
+     * are not reallocated under it but handed over, and reallocated by the next fix.
+     * @param maxAnchors maximum number of anchors, at least MIN_ANCHORS
+     */
+    public void setMaxAnchors(int maxAnchors) {
+        if (maxAnchors < MIN_ANCHORS)
+            throw new IllegalArgumentException("At least " + MIN_ANCHORS + " anchors are needed");
+        mMaxAnchorsRequested = maxAnchors;
+    }
+
+    /**
+     * Allocates solver and candidate buffers for maxAnchors anchors. The fix context is not
+     * touched, since it must be replaced while it is held (see beginFix).
+     */
+    private void allocateBuffers(int maxAnchors) {
+        mMaxAnchors = maxAnchors;
+        mClosedFormSolver = new LSClosedFormSolver(maxAnchors);
+        mNLLSAlgorithm = new NLLSAlgorithm(maxAnchors);
+        mApX = new double[maxAnchors];
+        mApY = new double[maxAnchors];
+        mDist = new double[maxAnchors];
+        mRSS = new int[maxAnchors];
+        int maxCandidates = CANDIDATE_FACTOR * maxAnchors;
+        mCandidateId = new int[maxCandidates];
+        mCandidateX = new double[maxCandidates];
+        mCandidateY = new double[maxCandidates];
+        mCandidateDist = new double[maxCandidates];
+        mCandidateRSS = new int[maxCandidates];
+        mSelected = new int[maxAnchors];
+    }
+
+    public int getAnchorSelection() {
+        return mAnchorSelection;
+    }
+
+    /**
+     * Selects how anchors are chosen when more known APs are heard than max anchors. With
+     * ANCHORS_GDOP, they are selected among the CANDIDATE_FACTOR * max anchors strongest ones by
+     * geometric dilution of precision (see AnchorSelector), so nearly collinear APs along a
+     * corridor are not taken just because they are the loudest.
+     * @param anchorSelection ANCHORS_GDOP (default) or ANCHORS_STRONGEST
+     */
+    public void setAnchorSelection(int anchorSelection) {
+        if (anchorSelection != ANCHORS_STRONGEST && anchorSelection != ANCHORS_GDOP)
+            throw new IllegalArgumentException("Unknown anchor selection " + anchorSelection);
+        this.mAnchorSelection = anchorSelection;
+    }
+
+    /** @return number of strongest APs kept from each scan, as anchor candidates */
+    private int getNumCandidates() {
+        return mAnchorSelection == ANCHORS_GDOP ? CANDIDATE_FACTOR * mMaxAnchors : mMaxAnchors;
+    }
+
+    public int getNumParticles() {
+        return mNumParticlesRequested;
+    }
+
+    /**
+     * Sets the number of particles of the particle filter approach. Its track is reset.
+     * It may be called from any thread while a fix is running: particle buffers are not
+     * reallocated under the filter but handed over, and reallocated by the next fix.
+     * @param numParticles number of particles, at least 1
+     */
+    public void setNumParticles(int numParticles) {
+        if (numParticles < 1)
+            throw new IllegalArgumentException("At least one particle is needed");
+        mNumParticlesRequested = numParticles;
+    }
+
+    public int[] getFallbackChain() {
+        return mFallbackChain.clone();
+    }
+
+    /**
+     * Sets the steps tried by locate, in order, when the selected approach can not give a
+     * position. The selected approach itself is skipped. By default: weighted circular,
+     * circular, weighted centroid and last known position.
+     * @param fallbackChain steps: Circular = 2, Weighted Circular = 3, WEIGHTED_CENTROID or
+     *                      LAST_KNOWN_POSITION. Empty to disable fallbacks
+     */
+    public void setFallbackChain(int[] fallbackChain) {
+        for (int step : fallbackChain)
+            if (step != 2 && step != 3 && step != WEIGHTED_CENTROID
+                    && step != LAST_KNOWN_POSITION)
+                throw new IllegalArgumentException("Unknown fallback step " + step);
+        mFallbackChain = fallbackChain.clone();
+    }
+
+    /** Forgets the last known position used by the fallback chain */
+    public void resetLastPosition() {
+        mHasLastPosition = false;
+    }
+
+    public double getGridCellSize() {
+        return mGridCellSizeRequested;
+    }
+
+    /**
+     * Sets the cell size of the grid filter approach. Its track is reset.
+     * It may be called from any thread while a fix is running: the grid is not dropped under the
+     * filter but handed over, and rebuilt by the next fix.
+     * @param cellSize cell side (meters)
+     */
+    public void setGridCellSize(double cellSize) {
+        if (!(cellSize > 0))
+            throw new IllegalArgumentException("cellSize must be positive");
+        mGridCellSizeRequested = cellSize;
+    }
+
+    public boolean isRobustMode() {
+        return mIsRobustModeRequested;
+    }
+
+    /**
+     * Enables or disables RANSAC outlier rejection (see RansacPositioning) before any approach:
+     * anchors whose distance disagrees with the consensus of the others (e.g. NLOS APs) are
+     * rejected.
+     * It may be called from any thread while a fix is running: the mode is handed over and
+     * applied from the next fix on, by the thread which runs it.
+     * @param robustMode true to reject outlier anchors
+     */
+    public void setRobustMode(boolean robustMode) {
+        mIsRobustModeRequested = robustMode;
+    }
+
+    /** Result of the last outlier rejection, with its inlier set. Valid in robust mode only */
+    public RansacPositioning.Result getLastRobustResult() {
+        return mRansacResult;
+    }
+
+    /**
+     * Fingerprinting engine, exposed to select its search mode. The radio map is loaded here if
+     * it was not loaded yet.
+     */
+    public FingerprintPositioning getFingerprintPositioning() {
+        if (mFingerprinting == null) {
+            RadioMap radioMap = mDbHandler.loadRadioMapDB();
+            mFingerprinting = new FingerprintPositioning(radioMap,
+                    FingerprintPositioning.DEFAULT_K);
+            mFingerprintQuery = new float[radioMap.numColumns];
+        }
+        return mFingerprinting;
+    }
+
+    /** Drops the radio map, so fingerprints added since it was loaded are used by next fix */
+    public void reloadRadioMap() {
+        mFingerprinting = null;
+    }
+
+    /**
+     * Stops the threads of the particle filter and RANSAC engine, if they were used, and
+     * disables robust mode. It may be called from any thread (e.g. when the activity is
+     * destroyed): if a fix is running, the engines are not touched under it but released by
+     * that fix when it ends, so this never blocks.
+     */
+    public void release() {
+        mIsReleaseRequested = true;
+        if (mFixContext.tryAcquire()) {
+            try {
+                releaseEngines();
+            } finally {
+                mFixContext.release();
+            }
+        }
+    }
+
+    /**
+     * Carries out a requested release. The fix context must be held.
+     */
+    private void releaseEngines() {
+        if (!mIsReleaseRequested)
+            return;
+        mIsReleaseRequested = false;
+        if (mParticleFilter != null) {
+            mParticleFilter.shutdown();
+            mParticleFilter = null;
+        }
+        if (mRansac != null) {
+            mRansac.shutdown();
+            mRansac = null;
+        }
+        mIsRobustModeRequested = false;
+        mIsRobustMode = false;
+    }
+
+    /**
+     * Takes the fix context (see FixContext) and applies the settings handed over by other
+     * threads since last fix.
+     * @return false if another fix is running
+     */
+    private boolean beginFix() {
+        if (!mFixContext.tryAcquire())
+            return false;
+        int maxAnchors = mMaxAnchorsRequested;
+        if (maxAnchors != mMaxAnchors) {
+            /* New context is taken before it is published, so no other fix can take it. The old
+            one is never given back, so fixes which still see it are refused */
+            FixContext fixContext = new FixContext(maxAnchors);
+            fixContext.tryAcquire();
+            allocateBuffers(maxAnchors);
+            mFixContext = fixContext;
+        }
+        int numParticles = mNumParticlesRequested;
+        if (mParticleFilter != null && mParticleFilter.getNumParticles() != numParticles)
+            mParticleFilter.setNumParticles(numParticles);
+        if (mGridFilter != null && mGridFilter.getCellSize() != mGridCellSizeRequested)
+            mGridFilter = null;
+        boolean robustMode = mIsRobustModeRequested;
+        if (robustMode && mRansac == null)
+            mRansac = new RansacPositioning();
+        mIsRobustMode = robustMode;
+        return true;
     }
 
     /**
-     * Main method which finds user position based on WiFi scan results.
+     * Gives the fix context back. A release requested while the fix was running is carried out
+     * now; it is checked after giving the context back, so a request made at any time is never
+     * missed by both release and the fix.
+     */
+    private void endFix() {
+        mFixContext.release();
+        if (mIsReleaseRequested && mFixContext.tryAcquire()) {
+            try {
+                releaseEngines();
+            } finally {
+                mFixContext.release();
+            }
+        }
+    }
+
+    public int getSolverMode() {
+        return mSolverMode;
+    }
+
+    /**
+     * Non-linear LS engine, exposed to tune its iteration and time budget. A new engine (with
+     * default budget) is created by the first fix after max anchors change.
+     */
+    public NLLSAlgorithm getNLLSAlgorithm() {
+        return mNLLSAlgorithm;
+    }
+
+    /** Cache of anchor geometry used by circular approaches. It exposes hit/miss counters */
+    public AnchorGeometryCache getGeometryCache() {
+        return mGeometryCache;
+    }
+
+    /**
+     * Selects how LS systems are solved. Since there are always 3 or 2 unknowns, the systems can
+     * also be solved in closed form by LSClosedFormSolver, which does not allocate any object
+     * per fix and whose cost grows linearly with the number of anchors.
+     * @param solverMode SOLVER_EJML (default) or SOLVER_CLOSED_FORM
+     */
+    public void setSolverMode(int solverMode) {
+        if (solverMode != SOLVER_EJML && solverMode != SOLVER_CLOSED_FORM)
+            throw new IllegalArgumentException("Unknown solver mode " + solverMode);
+        this.mSolverMode = solverMode;
+    }
+
+    /**
+     * Main method which finds user position based on WiFi scan results. Same as locate, for
+     * callers which only need the position.
      * @param results WiFi scan results list with all the known AP data
      * @return Point object with AP position
-     *         Point(-10, results.size()) if acquired APs < required AP for LS
+     *         Point(-10, results.size()) if neither the approach nor the fallback chain could
+     *         give a position
      */
     public Point getUserPosition(List<ScanResult> results, int idBssidApSelected, int
             posAlgSelected){
-        IndoorTrackerDatabaseHandler apdbhandler =  new IndoorTrackerDatabaseHandler
-                (mapViewActivityContext);
+        PositionResult positionResult = locate(results, idBssidApSelected, posAlgSelected);
+        Point userPosition = positionResult.toPoint();
+        positionResult.recycle();
+        return userPosition;
+    }
+
+    /**
+     * Finds user position based on WiFi scan results. Degenerate data never throws: if the
+     * selected approach fails (not enough APs, degenerate anchor geometry, singular systems,
+     * ill-conditioned weights, lost track...), the reason is kept in the result status and the
+     * fallback chain (see setFallbackChain) is tried. Collinear anchors are detected from their
+     * cached geometry before any LS system is solved.
+     * @param results WiFi scan results list with all the known AP data
+     * @param idBssidApSelected BSSID selected, whose model is the default one
+     * @param posAlgSelected positioning approach
+     * @return status, position and approach which gave it, taken from PositionResult pool (it
+     *         may be recycled once it is not needed anymore)
+     */
+    public PositionResult locate(List<ScanResult> results, int idBssidApSelected,
+                                 int posAlgSelected) {
+        return locate(results, idBssidApSelected, posAlgSelected, PositionResult.obtain());
+    }
+
+    /**
+     * Same as locate, but the result is written in an object given by the caller, so fixes can
+     * be replayed without allocating anything once every engine is warm.
+     *
+     * Fixes of an instance do not run concurrently (see FixContext): a fix started while another
+     * one is running is skipped, with STATUS_BUSY and no position.
+     * @param positionResult output, overwritten
+     * @return positionResult
+     */
+    public PositionResult locate(List<ScanResult> results, int idBssidApSelected,
+                                 int posAlgSelected, PositionResult positionResult) {
+        positionResult.reset();
+        if (!beginFix()) {
+            positionResult.status = PositionResult.STATUS_BUSY;
+            return positionResult;
+        }
+        try {
+            return locateInContext(results, idBssidApSelected, posAlgSelected, positionResult);
+        } finally {
+            endFix();
+        }
+    }
 
-        /* Filters known APs from database */
-        results = apdbhandler.filterKnownAPDB (results);
+    private PositionResult locateInContext(List<ScanResult> results, int idBssidApSelected,
+                                           int posAlgSelected, PositionResult positionResult) {
 
-        /* TUT WLAN network has 4 SSIDs for each AP. Therefore, only one must be chosen,
-        filtering out the rest */
-        results = filterSSIDs (results);
+        /* Last known position needs no scan at all */
+        if (posAlgSelected == LAST_KNOWN_POSITION && mHasLastPosition) {
+            mPosition[0] = mLastX;
+            mPosition[1] = mLastY;
+            positionResult.approach = LAST_KNOWN_POSITION;
+            return storePosition(positionResult);
+        }
 
-        // If less than 4 AP were acquired
-        if(results.size() < 4)
-            return new Point (-10, results.size());
+        /* Filters known APs from database, filters repetitive SSIDs out and keeps the
+        strongest APs, all in one pass (TUT WLAN network has 4 SSIDs for each AP) */
+        ScanPreprocessor preprocessor = getScanPreprocessor();
+        positionResult.numAnchors = preprocessor.process(results, getNumCandidates());
+
+        /* Weighted centroid needs no distances (nor does the first fix of last known position) */
+        if (posAlgSelected == WEIGHTED_CENTROID || posAlgSelected == LAST_KNOWN_POSITION) {
+            if (scanCentroid(preprocessor)) {
+                positionResult.approach = WEIGHTED_CENTROID;
+            } else {
+                positionResult.status = PositionResult.STATUS_NOT_ENOUGH_APS;
+                positionResult.approach = applyFallbackChain(
+                        Collections.<APAlgorithmData>emptyList(), posAlgSelected);
+            }
+            return storePosition(positionResult);
+        }
 
-        else {
+        List<APAlgorithmData> algorithmInputDataList = null;
+        int status;
+        if (posAlgSelected == FINGERPRINTING) {
+            /* Fingerprinting does not need distances, a single known AP is enough */
+            status = fingerprintingAlgorithm(preprocessor);
+        } else {
+            /* Translates RSS of the X strongest APs to distance by using estimated pathloss
+            model, X <= max anchors */
+            algorithmInputDataList = translatesRSStoDistance (preprocessor, idBssidApSelected);
+
+            // If less than 4 AP were acquired
+            if (algorithmInputDataList.size() < MIN_ANCHORS)
+                status = PositionResult.STATUS_NOT_ENOUGH_APS;
+            else
+                status = applyApproach(algorithmInputDataList, posAlgSelected);
+        }
 
-            /* Gets the X strongest RSS from X APs */
-            results = getStrongestRSSList(results);
+        positionResult.status = status;
+        if (status == PositionResult.STATUS_OK) {
+            positionResult.approach = posAlgSelected;
+        } else if (status == PositionResult.STATUS_TOO_FEW_INLIERS) {
+            // RANSAC model is already in mPosition, the chain is not needed
+            positionResult.approach = ROBUST_SUBSET;
+        } else {
+            if (algorithmInputDataList == null)
+                algorithmInputDataList = translatesRSStoDistance(preprocessor,
+                        idBssidApSelected);
+            positionResult.approach = applyFallbackChain(algorithmInputDataList,
+                    posAlgSelected);
+        }
+        return storePosition(positionResult);
+    }
 
-            /* Translates RSS to distance by using estimated pathloss model */
-            List<APAlgorithmData> algorithmInputDataList
-                    = translatesRSStoDistance (results, idBssidApSelected);
+    /**
+     * Copies mPosition into the result, if it has a position, and keeps it as last known one.
+     * @return positionResult
+     */
+    private PositionResult storePosition(PositionResult positionResult) {
+        if (positionResult.hasPosition()) {
+            positionResult.x = mPosition[0];
+            positionResult.y = mPosition[1];
+            mLastX = mPosition[0];
+            mLastY = mPosition[1];
+            mHasLastPosition = true;
+        }
+        return positionResult;
+    }
 
-            /* Depending on user selection, positioning will be calculated by different approaches*/
-            Point userPosition = new Point(0, 0);
-            switch(posAlgSelected) {
-                case 0: // Hyperbolic algorithm
-                    userPosition = hyperbolicAlgorithm (algorithmInputDataList);
-                    break;
-                case 1: // Weighted Hyperbolic algorithm
-                    userPosition = weightedHyperbolicAlgorithm(algorithmInputDataList);
-                    break;
+    /**
+     * Applies the selected approach to at least MIN_ANCHORS APs. Position is written in
+     * mPosition.
+     * @param algInputList List of APAlgorithmData objects with the AP data (BSSID - estimated
+     *                     distance - RSS)
+     * @param posAlgSelected positioning approach, but fingerprinting
+     * @return PositionResult status. STATUS_TOO_FEW_INLIERS still writes a position: the best
+     *         RANSAC model of robust mode
+     */
+    private int applyApproach(List<APAlgorithmData> algInputList, int posAlgSelected) {
+        /* Robust mode: outlier anchors are rejected. If too few inliers are left for the
+        selected approach, the best RANSAC model is written as fallback (ROBUST_SUBSET) */
+        if (mIsRobustMode) {
+            algInputList = rejectOutliers(algInputList);
+            if (algInputList == null) {
+                mPosition[0] = mRansacResult.x;
+                mPosition[1] = mRansacResult.y;
+                return PositionResult.STATUS_TOO_FEW_INLIERS;
+            }
+        }
+
+        /* Non-linear LS approach has its own engine */
+        if (posAlgSelected == NLLS_ALGORITHM)
+            return nllsAlgorithm(algInputList);
+
+        /* So do the particle and grid filters */
+        if (posAlgSelected == PARTICLE_FILTER)
+            return particleFilterAlgorithm(algInputList);
+        if (posAlgSelected == GRID_FILTER)
+            return gridFilterAlgorithm(algInputList);
+
+        /* Linearised approaches: collinear anchors are detected from cached geometry before
+        solving anything */
+        if (lookupGeometry(algInputList).isNearlySingular())
+            return PositionResult.STATUS_DEGENERATE_GEOMETRY;
+
+        /* Best linearised approach is always solved in closed form, the four at once */
+        if (posAlgSelected == BEST_LINEAR)
+            return bestLinearAlgorithm(algInputList);
+
+        /* Closed form solver does not need any EJML object */
+        if (mSolverMode == SOLVER_CLOSED_FORM)
+            return closedFormAlgorithm(algInputList, posAlgSelected);
+
+        /* Depending on user selection, positioning will be calculated by different approaches*/
+        switch(posAlgSelected) {
+            case 0: // Hyperbolic algorithm
+                return hyperbolicAlgorithm (algInputList);
+            case 1: // Weighted Hyperbolic algorithm
+                return weightedHyperbolicAlgorithm(algInputList);
+            case 2: // Circular algorithm
+                return circularAlgorithm(algInputList);
+            case 3: // Weighted Circular algorithm
+                return weightedCircularAlgorithm(algInputList);
+            default:
+                throw new IllegalArgumentException("Unknown positioning approach "
+                        + posAlgSelected);
+        }
+    }
+
+    /**
+     * Tries the steps of the fallback chain until one gives a position, written in mPosition.
+     * Steps are cheap: closed form circular approaches over cached geometry, weighted centroid
+     * and last known position.
+     * @param algInputList List of APAlgorithmData objects with the AP data (BSSID - estimated
+     *                     distance - RSS), AP1 first
+     * @param posAlgSelected approach which already failed, it is not tried again
+     * @return step which gave the position, -1 if none did
+     */
+    private int applyFallbackChain(List<APAlgorithmData> algInputList, int posAlgSelected) {
+        int numAPs = fillSolverInput(algInputList);
+        for (int step : mFallbackChain) {
+            if (step == posAlgSelected)
+                continue;
+            switch (step) {
                 case 2: // Circular algorithm
-                    userPosition = circularAlgorithm(algorithmInputDataList);
-                    break;
                 case 3: // Weighted Circular algorithm
-                    userPosition = weightedCircularAlgorithm(algorithmInputDataList);
+                    // At least two rows are needed for two unknowns
+                    if (numAPs < 3)
+                        break;
+                    AnchorGeometry geometry = mGeometryCache.lookup(mApX, mApY, numAPs);
+                    if (mClosedFormSolver.tryCircular(geometry, mDist, step == 3, mPosition)
+                            == PositionResult.STATUS_OK)
+                        return step;
+                    break;
+                case WEIGHTED_CENTROID:
+                    if (numAPs > 0) {
+                        weightedCentroid(numAPs);
+                        return step;
+                    }
+                    break;
+                case LAST_KNOWN_POSITION:
+                    if (mHasLastPosition) {
+                        mPosition[0] = mLastX;
+                        mPosition[1] = mLastY;
+                        return step;
+                    }
                     break;
             }
-            return userPosition;
         }
+        return -1;
     }
 
     /**
-     * Filters duplicate BSSIDs out caused by different TUT SSIDs.
-     * NOTE: TUT WLAN network provides four BSSIDs (MACs) for each AP, one for each SSID: TUT,
-     * TUT-WPA, LANGATON-WPA and eduroam. Since these four BSSIDs represent the same position and
-     * same power level (this is not actually true), only one must prevail.
+     * Weighted centroid of the AP coordinates, written in mPosition. Weights are the received
+     * power in linear scale, relative to the strongest AP:
      *
-     * @param results WiFi scan results list with all the known AP data
-     * @return WiFi scan results list with all the known AP data and without duplicate BSSIDs
+     *      wi = 10^((RSSi - RSSmax) / 10)
+     *
+     * @param numAPs number of APs in solver buffers (see fillSolverInput), at least 1
      */
-    private List<ScanResult> filterSSIDs (List<ScanResult> results){
-        // It adds the contents of wifi scan results to a Map which will not allow duplicates and
-        // then add the Map back to the wifi scan List.
-        Map<String, ScanResult> map = new LinkedHashMap<String, ScanResult>();
-        for (ScanResult ays : results) {
-            map.put(ays.BSSID.toString(), ays);
+    private void weightedCentroid(int numAPs) {
+        int maxRSS = mRSS[0];
+        for (int i = 1; i < numAPs; i++)
+            maxRSS = Math.max(maxRSS, mRSS[i]);
+        double sumW = 0, x = 0, y = 0;
+        for (int i = 0; i < numAPs; i++) {
+            double w = Math.pow(10, (mRSS[i] - maxRSS) / 10.0);
+            x += w * mApX[i];
+            y += w * mApY[i];
+            sumW += w;
         }
-        results.clear();
-        results.addAll(map.values());
-        return results;
+        mPosition[0] = x / sumW;
+        mPosition[1] = y / sumW;
     }
 
     /**
-     * Gets X strongest RSS list from X APs:
-     *      Sorts ScanResult list in descending order by "level" field
-     *      Gets the X first elements of the list by using subList
-     * @param results WiFi scan results list with all the known AP data
-     * @return WiFi scan results list with the X strongest APs
+     * Weighted centroid approach straight from the preprocessed scan, written in mPosition. Every
+     * known AP heard counts once, with its strongest RSS. Weights are the same as
+     * weightedCentroid. It runs in O(N), with no database access.
+     *
+     * @param preprocessor scan already processed
+     * @return false if no known AP was heard (position is not written then)
      */
-    private List<ScanResult> getStrongestRSSList (List<ScanResult> results){
-
-        /* Sorts the list by "level" field name */
-        Collections.sort(results, new Comparator<ScanResult>() {
-            public int compare(ScanResult one, ScanResult other) {
-                int returnVal = 0;
+    private boolean scanCentroid(ScanPreprocessor preprocessor) {
+        int numHeard = preprocessor.getNumHeard();
+        if (numHeard == 0)
+            return false;
+        int maxRSS = Integer.MIN_VALUE;
+        for (int k = 0; k < numHeard; k++)
+            maxRSS = Math.max(maxRSS, preprocessor.getRSS(preprocessor.getHeard(k)));
+
+        double sumW = 0, x = 0, y = 0;
+        for (int k = 0; k < numHeard; k++) {
+            int ap = preprocessor.getHeard(k);
+            double w = Math.pow(10, (preprocessor.getRSS(ap) - maxRSS) / 10.0);
+            Point position = preprocessor.getPosition(ap);
+            x += w * position.x;
+            y += w * position.y;
+            sumW += w;
+        }
+        mPosition[0] = x / sumW;
+        mPosition[1] = y / sumW;
+        return true;
+    }
 
-                if(one.level > other.level){
-                    returnVal =  -1;
-                }else if(one.level < other.level){
-                    returnVal =  1;
-                }else if(one.level == other.level){
-                    returnVal =  0;
-                }
-                return returnVal;
+    /**
+     * Gets the preprocessor of the current APRegistry snapshot. It is rebuilt only when a new
+     * snapshot has been published (bssids table changed), along with the anchor selections
+     * memoized for the slots of the old one.
+     */
+    private ScanPreprocessor getScanPreprocessor() {
+        APRegistry registry = APRegistry.getInstance(mDbHandler);
+        if (mScanPreprocessor == null || mScanPreprocessor.getRegistry() != registry) {
+            mScanPreprocessor = new ScanPreprocessor(registry);
+            mAnchorSelector.clear();
+        }
+        return mScanPreprocessor;
+    }
 
+    /**
+     * Estimates user position with the four linearised approaches in a single pass (see
+     * LSClosedFormSolver.compareAll), so they can be compared side by side. Terms shared by the
+     * approaches (ri_1, Ki, di_1 and S^-1) are computed only once. Closed form solver is always
+     * used here, whatever the solver mode is.
+     *
+     * @param results WiFi scan results list with all the known AP data
+     * @param idBssidApSelected BSSID selected
+     * @return estimates and residuals of the four approaches. If acquired APs < required AP for
+     *         LS, no approach is estimated and numAnchors holds the number of acquired APs.
+     *         Nothing is estimated either while a fix is running (see locate)
+     */
+    public AlgorithmComparison compareAllAlgorithms(List<ScanResult> results,
+                                                    int idBssidApSelected) {
+        AlgorithmComparison comparison = new AlgorithmComparison();
+
+        if (!beginFix()) {
+            // Another fix is running, nothing is estimated
+            Arrays.fill(comparison.positions, Double.NaN);
+            Arrays.fill(comparison.residuals, Double.NaN);
+            return comparison;
+        }
+        try {
+            /* Same preprocessing as getUserPosition */
+            ScanPreprocessor preprocessor = getScanPreprocessor();
+            comparison.numAnchors = preprocessor.process(results, getNumCandidates());
+            if (comparison.numAnchors < MIN_ANCHORS) {
+                Arrays.fill(comparison.positions, Double.NaN);
+                Arrays.fill(comparison.residuals, Double.NaN);
+                return comparison;
             }
-        });
-
-        /* Gets the X first elements of the list in a new list */
-        int X = 4; // X = 4
-        List<ScanResult> strongestResults = results.subList(0, X);
-
-        return strongestResults;
+            List<APAlgorithmData> algorithmInputDataList
+                    = translatesRSStoDistance(preprocessor, idBssidApSelected);
+
+            int numAPs = fillSolverInput(algorithmInputDataList);
+            comparison.numAnchors = numAPs;
+            mClosedFormSolver.compareAll(mGeometryCache.lookup(mApX, mApY, numAPs), mApX, mApY,
+                    mDist, numAPs, comparison.positions, comparison.residuals);
+        } finally {
+            endFix();
+        }
+        return comparison;
     }
 
     /**
-     * Translates RSS to distance by using estimated pathloss model and stores it onto a new List
-     * of APAlgorithmData.
-     * @param results WiFi scan results list with the X strongest RSS from X APs
-     * @param idBssidApSelected BSSID selected
-     * @return List of APAlgorithmData objects with the 4 AP data (BSSID - estimated distance -
-     * RSS)
+     * Translates RSS to distance by using the estimated pathloss model of each AP and stores it
+     * onto the anchor list of the fix context (see FixContext). Models are looked up by AP id,
+     * as BatchPositioning does; APs without their own model use the model of the BSSID
+     * selected. Models are taken from PathLossModelRegistry, never from database. If there are
+     * more candidates than max anchors, anchors are chosen among them by anchor selection rule
+     * (see AnchorSelector).
+     * @param preprocessor scan already processed, with the strongest APs as candidates
+     * @param idBssidApSelected BSSID selected, whose model is the default one
+     * @return List of APAlgorithmData objects with the AP data (BSSID - estimated distance -
+     * RSS), strongest first
      */
-    private List<APAlgorithmData> translatesRSStoDistance  (List<ScanResult> results,
+    private List<APAlgorithmData> translatesRSStoDistance  (ScanPreprocessor preprocessor,
                                                        int idBssidApSelected){
 
-        /* Gets pathloss model coefficients from Database */
-        IndoorTrackerDatabaseHandler itdbh = new IndoorTrackerDatabaseHandler
-                (mapViewActivityContext);
-        double[] coefficients = itdbh.getCoefficientsDB(idBssidApSelected);
-
-        /* Converts RSS to distance by applying these coefficients */
-        String BSSID; double estimatedDistance; int RSS; Point coordinatesAP;
-        List<APAlgorithmData> algorithmInputDataList = new ArrayList<APAlgorithmData>();
-        for (int i = 0; i < results.size(); i++){
-            BSSID = results.get(i).BSSID;
-            coordinatesAP = itdbh.getAPPositionDB(BSSID);
-            RSS = results.get(i).level;
+        /* Gets pathloss models (compiled into lookup tables) from in-memory registry */
+        PathLossModelRegistry registry = PathLossModelRegistry.getInstance(mDbHandler);
+        PathLossModel defaultModel = registry.getDefaultModel(idBssidApSelected);
+
+        /* Converts RSS to distance by applying the model of each candidate AP */
+        int numCandidates = preprocessor.getNumStrongest();
+        for (int i = 0; i < numCandidates; i++){
+            int ap = preprocessor.getStrongest(i);
+            // AP positions are kept in memory by APRegistry
+            Point coordinatesAP = preprocessor.getPosition(ap);
+            mCandidateId[i] = ap;
+            mCandidateX[i] = coordinatesAP.x;
+            mCandidateY[i] = coordinatesAP.y;
+            mCandidateRSS[i] = preprocessor.getRSS(ap);
 
             /* Empirical pathloss model: d = a + b*RSS + c*RSS² + d*RSS³ */
-            estimatedDistance = coefficients[0] + coefficients[1]*RSS + coefficients[2]*Math.pow
-                    (RSS, 2) + coefficients[3]*Math.pow(RSS, 3);
+            mCandidateDist[i] = registry.getModel(preprocessor.getId(ap), defaultModel)
+                    .getDistance(mCandidateRSS[i]);
+        }
+
+        /* Keeps the best anchors, strongest first */
+        int numAnchors;
+        if (mAnchorSelection == ANCHORS_GDOP) {
+            numAnchors = mAnchorSelector.select(mCandidateId, mCandidateX, mCandidateY,
+                    mCandidateDist, mCandidateRSS, numCandidates, mMaxAnchors, mSelected);
+        } else {
+            numAnchors = Math.min(numCandidates, mMaxAnchors);
+            for (int i = 0; i < numAnchors; i++)
+                mSelected[i] = i;
+        }
 
-            algorithmInputDataList.add(new APAlgorithmData(BSSID, estimatedDistance, RSS,
-                    coordinatesAP));
+        List<APAlgorithmData> algorithmInputDataList = mFixContext.clearAnchors();
+        for (int i = 0; i < numAnchors; i++) {
+            int c = mSelected[i];
+            int ap = mCandidateId[c];
+            mFixContext.addAnchor(preprocessor.getBssid(ap), mCandidateDist[c],
+                    mCandidateRSS[c], preprocessor.getPosition(ap));
         }
         return algorithmInputDataList;
     }
@@ -193,6 +827,232 @@ public class LSAlgorithm {
      *          fixed BS
      */
 
+    /**
+     * Estimates user position with the same approaches as below but solving the normal equations
+     * in closed form (see LSClosedFormSolver). Results match EJML ones within
+     * LSClosedFormSolver.SOLVER_TOLERANCE.
+     *
+     * @param algInputList List of APAlgorithmData objects with the AP data (BSSID - estimated
+     *                     distance - RSS)
+     * @param posAlgSelected Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2,
+     *                       Weighted Circular = 3
+     * @return PositionResult status, position is written in mPosition
+     */
+    private int closedFormAlgorithm(List<APAlgorithmData> algInputList, int posAlgSelected) {
+        int numAPs = fillSolverInput(algInputList);
+        switch (posAlgSelected) {
+            case 0: // Hyperbolic algorithm
+                return mClosedFormSolver.tryHyperbolic(mApX, mApY, mDist, numAPs, false,
+                        mPosition);
+            case 1: // Weighted Hyperbolic algorithm
+                return mClosedFormSolver.tryHyperbolic(mApX, mApY, mDist, numAPs, true,
+                        mPosition);
+            case 2: // Circular algorithm
+                return mClosedFormSolver.tryCircular(mGeometryCache.lookup(mApX, mApY, numAPs),
+                        mDist, false, mPosition);
+            case 3: // Weighted Circular algorithm
+                return mClosedFormSolver.tryCircular(mGeometryCache.lookup(mApX, mApY, numAPs),
+                        mDist, true, mPosition);
+            default:
+                throw new IllegalArgumentException("Unknown positioning approach "
+                        + posAlgSelected);
+        }
+    }
+
+    /**
+     * Estimates user position with the four linearised approaches at once, sharing their terms
+     * (see LSClosedFormSolver.compareAll), and keeps the one which fits best the estimated
+     * distances: the lowest RMS range residual (see AlgorithmComparison.getBestApproach). Its
+     * cost is close to the one of a single weighted approach.
+     *
+     * @param algInputList List of APAlgorithmData objects with the AP data (BSSID - estimated
+     *                     distance - RSS)
+     * @return PositionResult status, position is written in mPosition
+     */
+    private int bestLinearAlgorithm(List<APAlgorithmData> algInputList) {
+        int numAPs = fillSolverInput(algInputList);
+        mClosedFormSolver.compareAll(mGeometryCache.lookup(mApX, mApY, numAPs), mApX, mApY,
+                mDist, numAPs, mComparison.positions, mComparison.residuals);
+        int best = mComparison.getBestApproach();
+        if (best < 0)
+            return PositionResult.STATUS_SINGULAR_SYSTEM;
+        mPosition[0] = mComparison.positions[2 * best];
+        mPosition[1] = mComparison.positions[2 * best + 1];
+        return PositionResult.STATUS_OK;
+    }
+
+    /**
+     * Rejects the anchors which do not support the model with the largest consensus (see
+     * RansacPositioning). Order of the list is kept, so AP1 is the strongest inlier.
+     *
+     * @param algInputList List of APAlgorithmData objects with the N AP data (BSSID - estimated
+     *                     distance - RSS)
+     * @return List of inliers, or null if less than MIN_ANCHORS inliers are left and the RANSAC
+     *         model (in getLastRobustResult) must be used instead. If every anchor subset is
+     *         degenerate, nothing is rejected
+     */
+    private List<APAlgorithmData> rejectOutliers(List<APAlgorithmData> algInputList) {
+        int numAPs = fillSolverInput(algInputList);
+        try {
+            mRansac.estimate(mApX, mApY, mDist, numAPs, mRansacResult);
+        } catch (InterruptedException e) {
+            // Keeps interrupted status, fix is estimated with every anchor
+            Thread.currentThread().interrupt();
+            return algInputList;
+        }
+        if (!mRansacResult.isValid || mRansacResult.numInliers == numAPs)
+            return algInputList;
+        if (mRansacResult.numInliers < MIN_ANCHORS)
+            return null;
+
+        List<APAlgorithmData> inliers = mFixContext.clearInliers();
+        for (int i = 0; i < numAPs; i++)
+            if (mRansacResult.isInlier(i))
+                inliers.add(algInputList.get(i));
+        return inliers;
+    }
+
+    /**
+     * Estimates user position by applying a non-linear Least Square approach (see NLLSAlgorithm).
+     * If there is no recent previous fix, the engine is warm-started from the linear estimate of
+     * the circular approach, or from the AP centroid if anchor geometry is nearly singular or the
+     * circular approach fails. A fix which hits the iteration or time budget before converging is
+     * reported as STATUS_NOT_CONVERGED, so the fallback chain gives the position.
+     *
+     * @param algInputList List of APAlgorithmData objects with the AP data (BSSID - estimated
+     *                     distance - RSS)
+     * @return PositionResult status, position is written in mPosition
+     */
+    private int nllsAlgorithm(List<APAlgorithmData> algInputList) {
+        int numAPs = fillSolverInput(algInputList);
+        double xStart = 0, yStart = 0;
+        if (!mNLLSAlgorithm.hasWarmStart()) {
+            AnchorGeometry geometry = mGeometryCache.lookup(mApX, mApY, numAPs);
+            if (!geometry.isNearlySingular()
+                    && mClosedFormSolver.tryCircular(geometry, mDist, false, mPosition)
+                    == PositionResult.STATUS_OK) {
+                xStart = mPosition[0];
+                yStart = mPosition[1];
+            } else {
+                for (int i = 0; i < numAPs; i++) {
+                    xStart += mApX[i] / numAPs;
+                    yStart += mApY[i] / numAPs;
+                }
+            }
+        }
+        mNLLSAlgorithm.estimate(mApX, mApY, mDist, numAPs, xStart, yStart, mPosition);
+        return mNLLSAlgorithm.isLastConverged() ? PositionResult.STATUS_OK
+                : PositionResult.STATUS_NOT_CONVERGED;
+    }
+
+    /**
+     * Estimates user position with the particle filter (see ParticleFilter), which uses the
+     * estimated distances as likelihood and the walls of the floor plan as hard constraints. On
+     * first use, the occupancy grid is built from the floor plan in assets folder. A lost track
+     * (STATUS_TRACK_LOST) or an interrupted fix (STATUS_ENGINE_UNAVAILABLE) is reported as a
+     * failure, so the fallback chain gives the position; the filter restarts on next fix.
+     *
+     * @param algInputList List of APAlgorithmData objects with the AP data (BSSID - estimated
+     *                     distance - RSS)
+     * @return PositionResult status, position is written in mPosition
+     */
+    private int particleFilterAlgorithm(List<APAlgorithmData> algInputList) {
+        if (mParticleFilter == null) {
+            FloorPlan floorPlan = getFloorPlan();
+            if (floorPlan == null)
+                return PositionResult.STATUS_ENGINE_UNAVAILABLE;
+            mParticleFilter = new ParticleFilter(floorPlan, mNumParticlesRequested);
+        }
+        int numAPs = fillSolverInput(algInputList);
+        try {
+            if (!mParticleFilter.estimate(mApX, mApY, mDist, numAPs,
+                    System.nanoTime() / 1000000, mPosition))
+                return PositionResult.STATUS_TRACK_LOST;
+        } catch (InterruptedException e) {
+            // Keeps interrupted status, fallback chain gives the position
+            Thread.currentThread().interrupt();
+            return PositionResult.STATUS_ENGINE_UNAVAILABLE;
+        }
+        return PositionResult.STATUS_OK;
+    }
+
+    /**
+     * Estimates user position with the Bayesian grid filter (see GridFilter), which keeps the
+     * full posterior over the map, with the walls of the floor plan. On first use, or after the
+     * cell size changes, the grid is built over the floor plan.
+     *
+     * @param algInputList List of APAlgorithmData objects with the AP data (BSSID - estimated
+     *                     distance - RSS)
+     * @return PositionResult status, position is written in mPosition
+     */
+    private int gridFilterAlgorithm(List<APAlgorithmData> algInputList) {
+        if (mGridFilter == null) {
+            FloorPlan floorPlan = getFloorPlan();
+            if (floorPlan == null)
+                return PositionResult.STATUS_ENGINE_UNAVAILABLE;
+            mGridFilter = new GridFilter(floorPlan, FloorPlan.MAP_WIDTH, FloorPlan.MAP_HEIGHT,
+                    mGridCellSizeRequested);
+        }
+        int numAPs = fillSolverInput(algInputList);
+        mGridFilter.estimate(mApX, mApY, mDist, numAPs, System.nanoTime() / 1000000, mPosition);
+        return PositionResult.STATUS_OK;
+    }
+
+    /**
+     * Gets the occupancy grid of the floor, building it from the floor plan in assets folder on
+     * first use. If it can not be loaded, it is not tried again.
+     * @return occupancy grid, null if the floor plan can not be loaded
+     */
+    private FloorPlan getFloorPlan() {
+        if (mFloorPlan == null && !mIsFloorPlanUnavailable) {
+            try {
+                mFloorPlan = FloorPlan.fromAsset(mapViewActivityContext.getAssets(),
+                        FloorPlan.FLOOR_PLAN_ASSET, FloorPlan.MAP_WIDTH, FloorPlan.MAP_HEIGHT,
+                        FloorPlan.DEFAULT_CELL_SIZE);
+            } catch (IOException e) {
+                Log.e("LSAlgorithm", "Floor plan can not be loaded", e);
+                mIsFloorPlanUnavailable = true;
+            }
+        }
+        return mFloorPlan;
+    }
+
+    /**
+     * Estimates user position with the fingerprinting approach (see FingerprintPositioning): the
+     * RSS vector scanned is matched against the radio map surveyed in measurements table. It
+     * does not use pathloss models, and it needs a single known AP.
+     *
+     * @param preprocessor scan already processed, with all the known APs heard
+     * @return PositionResult status, position is written in mPosition. Engine is unavailable if
+     *         radio map has no fingerprints, and there are not enough APs if none of the heard
+     *         ones is in the radio map
+     */
+    private int fingerprintingAlgorithm(ScanPreprocessor preprocessor) {
+        FingerprintPositioning fingerprinting = getFingerprintPositioning();
+        if (fingerprinting.getRadioMap().numPoints == 0)
+            return PositionResult.STATUS_ENGINE_UNAVAILABLE;
+        int numHeard = preprocessor.getNumHeard();
+        if (numHeard == 0)
+            return PositionResult.STATUS_NOT_ENOUGH_APS;
+
+        RadioMap radioMap = fingerprinting.getRadioMap();
+        Arrays.fill(mFingerprintQuery, RadioMap.MISSING_RSS);
+        int numMatched = 0;
+        for (int k = 0; k < numHeard; k++) {
+            int ap = preprocessor.getHeard(k);
+            int column = radioMap.getColumn(preprocessor.getBssid(ap));
+            if (column >= 0) {
+                mFingerprintQuery[column] = preprocessor.getRSS(ap);
+                numMatched++;
+            }
+        }
+        // None of the heard APs was surveyed: every point would be equally far
+        if (numMatched == 0)
+            return PositionResult.STATUS_NOT_ENOUGH_APS;
+        fingerprinting.estimate(mFingerprintQuery, mPosition);
+        return PositionResult.STATUS_OK;
+    }
+
     /**
      * Estimates user position by applying an hyperbolic algorithm based on linearisation and Least
      * Square approach:
@@ -201,83 +1061,45 @@ public class LSAlgorithm {
      *
      *      A = - [(x2-x1) (y2-y1) r2,1;
      *             (x3-x1) (y3-y1) r3,1;
-     *             (x4-x1) (y4-y1) r4,1]
+     *             ...
+     *             (xN-x1) (yN-y1) rN,1]
      *
      *      b = 1/2* [r2,1^2-K2-K1;
      *                r3,1^2-K3-K1;
-     *                r4.1^2-K4-K1]
+     *                ...
+     *                rN.1^2-KN-K1]
      *
      *      x = (A'A)^-1*A'*b
      *
      *      x = [x; y; r1]
      *
-     * @param algInputList List of APAlgorithmData objects with the 4 AP data (BSSID - estimated
+     * @param algInputList List of APAlgorithmData objects with the N AP data (BSSID - estimated
      *                     distance - RSS)
-     * @return User position estimated
+     * @return PositionResult status, position is written in mPosition
      */
-    private Point hyperbolicAlgorithm(List<APAlgorithmData> algInputList) {
-        /* Gather all the collected data: AP coordinates and distances */
-        Point coordAP1 = algInputList.get(0).coordinatesAP;
-        Point coordAP2 = algInputList.get(1).coordinatesAP;
-        Point coordAP3 = algInputList.get(2).coordinatesAP;
-        Point coordAP4 = algInputList.get(3).coordinatesAP;
-
-        double distAP1 = algInputList.get(0).distance;
-        double distAP2 = algInputList.get(1).distance;
-        double distAP3 = algInputList.get(2).distance;
-        double distAP4 = algInputList.get(3).distance;
-
-        // ri_j = ri - rj
-        double r2_1 = distAP2 - distAP1;
-        double r3_1 = distAP3 - distAP1;
-        double r4_1 = distAP4 - distAP1;
-
-        // Ki = xi^2 + yi^2
-        double K1 = Math.pow(coordAP1.x, 2) + Math.pow(coordAP1.y, 2);
-        double K2 = Math.pow(coordAP2.x, 2) + Math.pow(coordAP2.y, 2);
-        double K3 = Math.pow(coordAP3.x, 2) + Math.pow(coordAP3.y, 2);
-        double K4 = Math.pow(coordAP4.x, 2) + Math.pow(coordAP4.y, 2);
-
-
-
-        /* Generation of Matrix A and vector b */
-        double [][]matrixA = new double[][]{
-
-                {coordAP2.x - coordAP1.x, coordAP2.y - coordAP1.y, r2_1},
-                {coordAP3.x - coordAP1.x, coordAP3.y - coordAP1.y, r3_1},
-                {coordAP4.x - coordAP1.x, coordAP4.y - coordAP1.y, r4_1}};
-        DenseMatrix64F A = new DenseMatrix64F(matrixA);
-        CommonOps.changeSign(A); // A is negative
-
-        double []vectorB = new double[]{
-                Math.pow(r2_1, 2) - K2 + K1,
-                Math.pow(r3_1, 2) - K3 + K1,
-                Math.pow(r4_1, 2) - K4 + K1
-
-        };
-        DenseMatrix64F b = new DenseMatrix64F(3,1, false, vectorB);
-        CommonOps.scale(0.5,b); //1/2*b
+    private int hyperbolicAlgorithm(List<APAlgorithmData> algInputList) {
+        /* Generation of Matrix A and vector b (preallocated in fix context) */
+        DenseMatrix64F A = mFixContext.systemA;
+        DenseMatrix64F b = mFixContext.systemB;
+        A.reshape(algInputList.size() - 1, 3, false);
+        b.reshape(algInputList.size() - 1, 1, false);
+        fillHyperbolicSystem(algInputList, A, b);
 
         /* Generation of solution vector x */
-        DenseMatrix64F x = new DenseMatrix64F(3,1);
+        DenseMatrix64F x = mFixContext.hyperbolicX;
 
         /* Linear Solver Least Square */
 
-        LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.leastSquares(3, 3);
+        LinearSolver<DenseMatrix64F> solver = mFixContext.getLeastSquaresSolver(3);
 
-        if( !solver.setA(A) ) {
-            throw new IllegalArgumentException("Singular matrix");
-        }
-
-        if( solver.quality() <= 1e-8 )
-            throw new IllegalArgumentException("Nearly singular matrix");
+        if( !solver.setA(A) || solver.quality() <= 1e-8 )
+            return PositionResult.STATUS_SINGULAR_SYSTEM;
 
         solver.solve(b,x);
 
-        double xUserPos = x.get(0);
-        double yUserPos = x.get(1);
-
-        return new Point((int)xUserPos, (int)yUserPos);
+        mPosition[0] = x.get(0);
+        mPosition[1] = x.get(1);
+        return PositionResult.STATUS_OK;
     }
 
     /**
@@ -289,114 +1111,63 @@ public class LSAlgorithm {
      *
      *          [(x2-x1) (y2-y1) r2,1;
      *      A = (x3-x1) (y3-y1) r3,1;
-     *          (x4-x1) (y4-y1) r4,1]
+     *           ...
+     *          (xN-x1) (yN-y1) rN,1]
      *
      *
      *      b = 1/2* [r2,1^2-K2-K1;
      *                r3,1^2-K3-K1;
-     *                r4.1^2-K4-K1]
+     *                ...
+     *                rN.1^2-KN-K1]
      *
-     *      S = [Var(r1²)+Var(r2²) Var(r1²) Var(r1²);
-     *           Var(r1²) Var(r1²)+Var(r3²) Var(r1²);
-     *           Var(r1²) Var(r1²) Var(r1²)+Var(r4²)]
+     *      S = [Var(r1²)+Var(r2²) Var(r1²) ... Var(r1²);
+     *           Var(r1²) Var(r1²)+Var(r3²) ... Var(r1²);
+     *           ...
+     *           Var(r1²) Var(r1²) ... Var(r1²)+Var(rN²)]
      *
      *      x = (A'*S^-1*A)^-1*A'*S^−1*b
      *
      *      x = [x; y; r1]
      *
-     * @param algInputList List of APAlgorithmData objects with the 4 AP data (BSSID - estimated
+     * @param algInputList List of APAlgorithmData objects with the N AP data (BSSID - estimated
      *                     distance - RSS)
-     * @return User position estimated
+     * @return PositionResult status, position is written in mPosition
      */
-    private Point weightedHyperbolicAlgorithm(List<APAlgorithmData> algInputList) {
-        /* Gather all the collected data: AP coordinates and distances */
-        Point coordAP1 = algInputList.get(0).coordinatesAP;
-        Point coordAP2 = algInputList.get(1).coordinatesAP;
-        Point coordAP3 = algInputList.get(2).coordinatesAP;
-        Point coordAP4 = algInputList.get(3).coordinatesAP;
-
-        double distAP1 = algInputList.get(0).distance;
-        double distAP2 = algInputList.get(1).distance;
-        double distAP3 = algInputList.get(2).distance;
-        double distAP4 = algInputList.get(3).distance;
-
-        // ri_j = ri - rj
-        double r2_1 = distAP2 - distAP1;
-        double r3_1 = distAP3 - distAP1;
-        double r4_1 = distAP4 - distAP1;
-
-        // Ki = xi^2 + yi^2
-        double K1 = Math.pow(coordAP1.x, 2) + Math.pow(coordAP1.y, 2);
-        double K2 = Math.pow(coordAP2.x, 2) + Math.pow(coordAP2.y, 2);
-        double K3 = Math.pow(coordAP3.x, 2) + Math.pow(coordAP3.y, 2);
-        double K4 = Math.pow(coordAP4.x, 2) + Math.pow(coordAP4.y, 2);
-
-
+    private int weightedHyperbolicAlgorithm(List<APAlgorithmData> algInputList) {
         /* Generation of Matrix A and vector b */
-        double [][]matrixA = new double[][]{
-
-                {coordAP2.x - coordAP1.x, coordAP2.y - coordAP1.y, r2_1},
-                {coordAP3.x - coordAP1.x, coordAP3.y - coordAP1.y, r3_1},
-                {coordAP4.x - coordAP1.x, coordAP4.y - coordAP1.y, r4_1}};
-        DenseMatrix64F A = new DenseMatrix64F(matrixA);
-        CommonOps.changeSign(A); // A is negative
-
-        double []vectorB = new double[]{
-                Math.pow(r2_1, 2) - K2 + K1,
-                Math.pow(r3_1, 2) - K3 + K1,
-                Math.pow(r4_1, 2) - K4 + K1
-
-        };
-        DenseMatrix64F b = new DenseMatrix64F(3,1, false, vectorB);
-        CommonOps.scale(0.5,b); //1/2*b
+        int numRows = algInputList.size() - 1;
+        DenseMatrix64F A = mFixContext.systemA;
+        DenseMatrix64F b = mFixContext.systemB;
+        A.reshape(numRows, 3, false);
+        b.reshape(numRows, 1, false);
+        fillHyperbolicSystem(algInputList, A, b);
 
         /* Generation of solution vector x */
-        DenseMatrix64F x = new DenseMatrix64F(3,1);
-
-        /* Generation of Matrix S of Variances */
-        double [][] matrixS = new double [][]{
-                {Math.pow(distAP1,4) + Math.pow(distAP2,4), Math.pow(distAP1,4),
-                        Math.pow(distAP1,4)},
-                {Math.pow(distAP1,4), Math.pow(distAP1,4) + Math.pow(distAP3,4),
-                        Math.pow(distAP1,4)},
-                {Math.pow(distAP1,4), Math.pow(distAP1,4), Math.pow(distAP1,
-                        4) +  Math.pow(distAP4,4)},
-        };
-
-        DenseMatrix64F S = new DenseMatrix64F(matrixS);
-
-        DenseMatrix64F SInv = new DenseMatrix64F(3,3);
-        CommonOps.invert(S, SInv);
-
+        DenseMatrix64F x = mFixContext.hyperbolicX;
 
         // WEIGHTED LEAST SQUARE
 
-        // A' = S^-1*A
-        DenseMatrix64F APrime = new DenseMatrix64F(3,3);
-        CommonOps.mult(SInv, A, APrime);
-
-        // b' = W*b
-        DenseMatrix64F bPrime = new DenseMatrix64F(3,1);
-        CommonOps.mult(SInv, b, bPrime);
+        // A' = S^-1*A, b' = S^-1*b with the structured inverse of S (see VarianceMatrix)
+        DenseMatrix64F APrime = mFixContext.weightedA;
+        DenseMatrix64F bPrime = mFixContext.weightedB;
+        APrime.reshape(numRows, 3, false);
+        bPrime.reshape(numRows, 1, false);
+        if (!applyInverseVariance(algInputList, A, b, APrime, bPrime))
+            return PositionResult.STATUS_ILL_CONDITIONED_WEIGHTS;
 
 
         /** Weighted Solver Least Square */
 
-        LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.leastSquares(3, 3);
+        LinearSolver<DenseMatrix64F> solver = mFixContext.getLeastSquaresSolver(3);
 
-        if( !solver.setA(APrime) ) {
-            throw new IllegalArgumentException("Singular matrix");
-        }
-
-        if( solver.quality() <= 1e-8 )
-            throw new IllegalArgumentException("Nearly singular matrix");
+        if( !solver.setA(APrime) || solver.quality() <= 1e-8 )
+            return PositionResult.STATUS_SINGULAR_SYSTEM;
 
         solver.solve(bPrime,x);
 
-        double xUserPosW = x.get(0);
-        double yUserPosW = x.get(1);
-
-        return new Point((int)xUserPosW, (int)yUserPosW);
+        mPosition[0] = x.get(0);
+        mPosition[1] = x.get(1);
+        return PositionResult.STATUS_OK;
     }
 
 
@@ -408,78 +1179,46 @@ public class LSAlgorithm {
      *
      *      A =   [(x2-x1) (y2-y1);
      *             (x3-x1) (y3-y1);
-     *             (x4-x1) (y4-y1)]
+     *             ...
+     *             (xN-x1) (yN-y1)]
      *
-     *      b = 1/2 * [b21; b32; b41]
+     *      b = 1/2 * [b21; b31; ... bN1]
      *
      *      x = (A'A)^-1*A'*b
      *
      *      x = [x-x1; y-y1]
      *
-     * @param algInputList List of APAlgorithmData objects with the 4 AP data (BSSID - estimated
+     *  A, di_1 and A+ = (A'A)^-1*A' only depend on AP coordinates, so they are taken from
+     *  AnchorGeometryCache and each fix only needs to form b and compute x = A+ * b.
+     *
+     * @param algInputList List of APAlgorithmData objects with the N AP data (BSSID - estimated
      *                     distance - RSS)
-     * @return User position estimated
+     * @return PositionResult status, position is written in mPosition
      *
      */
-    private Point circularAlgorithm(List<APAlgorithmData> algInputList) {
-        /* Gather all the collected data: AP coordinates and distances */
+    private int circularAlgorithm(List<APAlgorithmData> algInputList) {
+        /* Gather all the collected data: AP geometry and distances */
+        AnchorGeometry geometry = lookupGeometry(algInputList);
 
-        Point coordAP1 = algInputList.get(0).coordinatesAP;
-        Point coordAP2 = algInputList.get(1).coordinatesAP;
-        Point coordAP3 = algInputList.get(2).coordinatesAP;
-        Point coordAP4 = algInputList.get(3).coordinatesAP;
+        /* Linear Least Square: A+ = (A'A)^-1*A' was already computed from QR decomposition of A,
+        so x = A+ * 1/2*b */
+        if( geometry.isNearlySingular() )
+            return PositionResult.STATUS_DEGENERATE_GEOMETRY;
 
         double distAP1 = algInputList.get(0).distance;
-        double distAP2 = algInputList.get(1).distance;
-        double distAP3 = algInputList.get(2).distance;
-        double distAP4 = algInputList.get(3).distance;
-
-        double d2_1 = Math.pow((coordAP2.x - coordAP1.x), 2) +  Math.pow((coordAP2.y - coordAP1
-                .y), 2);
-        double d3_1 = Math.pow((coordAP3.x - coordAP1.x), 2) +  Math.pow((coordAP3.y - coordAP1
-                .y), 2);
-        double d4_1 = Math.pow((coordAP4.x - coordAP1.x), 2) +  Math.pow((coordAP4.y - coordAP1
-                .y), 2);
-
-        double b2_1 = (Math.pow(distAP1,2) - Math.pow(distAP2,2) + d2_1);
-        double b3_1 = (Math.pow(distAP1,2) - Math.pow(distAP3,2) + d3_1);
-        double b4_1 = (Math.pow(distAP1,2) - Math.pow(distAP4,2) + d4_1);
-
-
-        /* Generation of Matrix A and vector b */
-        double [][]matrixA = new double[][]{
-
-                {coordAP2.x - coordAP1.x, coordAP2.y - coordAP1.y},
-                {coordAP3.x - coordAP1.x, coordAP3.y - coordAP1.y},
-                {coordAP4.x - coordAP1.x, coordAP4.y - coordAP1.y}};
-        DenseMatrix64F A = new DenseMatrix64F(matrixA);
-
-        double []vectorB = new double[]{
-                b2_1, b3_1, b4_1
-        };
-        DenseMatrix64F b = new DenseMatrix64F(3,1, false, vectorB);
-        CommonOps.scale(0.5,b); //1/2*b
-
-        /* Generation of solution vector x */
-        DenseMatrix64F x = new DenseMatrix64F(2,1);
-
-
-        /* Linear Solver Least Square */
-        LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.leastSquares(3, 3);
-
-        if( !solver.setA(A) ) {
-            throw new IllegalArgumentException("Singular matrix");
+        double[] pinv = geometry.pinv;
+        double xRelative = 0, yRelative = 0;
+        for (int i = 0; i < geometry.numRows; i++) {
+            double distAPi = algInputList.get(i + 1).distance;
+            // di_1 only depends on AP coordinates, it is taken from geometry cache
+            double bi_1 = 0.5 * (Math.pow(distAP1,2) - Math.pow(distAPi,2) + geometry.dSq[i]);
+            xRelative += pinv[i] * bi_1;
+            yRelative += pinv[geometry.numRows + i] * bi_1;
         }
 
-        if( solver.quality() <= 1e-8 )
-            throw new IllegalArgumentException("Nearly singular matrix");
-
-        solver.solve(b,x);
-
-        double xUserPos = x.get(0) + coordAP1.x; // x = [x-x1; y-y1]
-        double yUserPos = x.get(1) + coordAP1.y; // x = [x-x1; y-y1]
-
-        return new Point((int)xUserPos, (int)yUserPos);
+        mPosition[0] = xRelative + geometry.x1; // x = [x-x1; y-y1]
+        mPosition[1] = yRelative + geometry.y1; // x = [x-x1; y-y1]
+        return PositionResult.STATUS_OK;
     }
 
     /**
@@ -491,106 +1230,158 @@ public class LSAlgorithm {
      *
      *      A =   [(x2-x1) (y2-y1);
      *             (x3-x1) (y3-y1);
-     *             (x4-x1) (y4-y1)]
+     *             ...
+     *             (xN-x1) (yN-y1)]
      *
-     *      b = 1/2 * [b21; b32; b41]
+     *      b = 1/2 * [b21; b31; ... bN1]
      *
-     *      S = [Var(r1²)+Var(r2²) Var(r1²) Var(r1²);
-     *           Var(r1²) Var(r1²)+Var(r3²) Var(r1²);
-     *           Var(r1²) Var(r1²) Var(r1²)+Var(r4²)]
+     *      S = [Var(r1²)+Var(r2²) Var(r1²) ... Var(r1²);
+     *           Var(r1²) Var(r1²)+Var(r3²) ... Var(r1²);
+     *           ...
+     *           Var(r1²) Var(r1²) ... Var(r1²)+Var(rN²)]
      *
      *      x = (A'*S^-1*A)^-1*A'*S^−1*b
      *
      *      x = [x-x1; y-y1]
      *
-     * @param algInputList List of APAlgorithmData objects with the 4 AP data (BSSID - estimated
+     *  A and di_1 are taken from AnchorGeometryCache. S depends on distances, hence weighted
+     *  system still needs its own factorisation.
+     *
+     * @param algInputList List of APAlgorithmData objects with the N AP data (BSSID - estimated
      *                     distance - RSS)
-     * @return User position estimated
+     * @return PositionResult status, position is written in mPosition
      */
-    private Point weightedCircularAlgorithm(List<APAlgorithmData> algInputList) {
-        /* Gather all the collected data: AP coordinates and distances */
+    private int weightedCircularAlgorithm(List<APAlgorithmData> algInputList) {
+        /* Gather all the collected data: AP geometry and distances */
+        AnchorGeometry geometry = lookupGeometry(algInputList);
+        int numRows = geometry.numRows;
 
-        Point coordAP1 = algInputList.get(0).coordinatesAP;
-        Point coordAP2 = algInputList.get(1).coordinatesAP;
-        Point coordAP3 = algInputList.get(2).coordinatesAP;
-        Point coordAP4 = algInputList.get(3).coordinatesAP;
-
-        double distAP1 = algInputList.get(0).distance;
-        double distAP2 = algInputList.get(1).distance;
-        double distAP3 = algInputList.get(2).distance;
-        double distAP4 = algInputList.get(3).distance;
-
-        double d2_1 = Math.pow((coordAP2.x - coordAP1.x), 2) +  Math.pow((coordAP2.y - coordAP1
-                .y), 2);
-        double d3_1 = Math.pow((coordAP3.x - coordAP1.x), 2) +  Math.pow((coordAP3.y - coordAP1
-                .y), 2);
-        double d4_1 = Math.pow((coordAP4.x - coordAP1.x), 2) +  Math.pow((coordAP4.y - coordAP1
-                .y), 2);
-
-        double b2_1 = (Math.pow(distAP1,2) - Math.pow(distAP2,2) + d2_1);
-        double b3_1 = (Math.pow(distAP1,2) - Math.pow(distAP3,2) + d3_1);
-        double b4_1 = (Math.pow(distAP1,2) - Math.pow(distAP4,2) + d4_1);
+        /* Generation of Matrix A, Matrix S of Variances and vector b */
 
+        DenseMatrix64F A = mFixContext.systemA;
+        A.reshape(numRows, 2, false);
+        System.arraycopy(geometry.a, 0, A.data, 0, 2 * numRows);
 
-        /* Generation of Matrix A, Matrix S of Variances and vector b */
+        double distAP1 = algInputList.get(0).distance;
+        DenseMatrix64F b = mFixContext.systemB;
+        b.reshape(numRows, 1, false);
+        for (int i = 0; i < numRows; i++) {
+            double distAPi = algInputList.get(i + 1).distance;
+            // di_1 only depends on AP coordinates, it is taken from geometry cache
+            b.set(i, Math.pow(distAP1,2) - Math.pow(distAPi,2) + geometry.dSq[i]);
+        }
+        CommonOps.scale(0.5,b); //1/2*b
 
-        double [][]matrixA = new double[][]{
+        DenseMatrix64F x = mFixContext.circularX;
 
-                {coordAP2.x - coordAP1.x, coordAP2.y - coordAP1.y},
-                {coordAP3.x - coordAP1.x, coordAP3.y - coordAP1.y},
-                {coordAP4.x - coordAP1.x, coordAP4.y - coordAP1.y}};
-        DenseMatrix64F A = new DenseMatrix64F(matrixA);
 
-        double [][] matrixS = new double [][]{
-                {Math.pow(distAP1,4) + Math.pow(distAP2,4), Math.pow(distAP1,4),
-                        Math.pow(distAP1,4)},
-                {Math.pow(distAP1,4), Math.pow(distAP1,4) + Math.pow(distAP3,4),
-                        Math.pow(distAP1,4)},
-                {Math.pow(distAP1,4), Math.pow(distAP1,4), Math.pow(distAP1,
-                        4) +  Math.pow(distAP4,4)},
-        };
+        /* Weighted Solver Least Square */
 
-        DenseMatrix64F S = new DenseMatrix64F(matrixS);
+        // A' = S^-1*A, b' = S^-1*b with the structured inverse of S (see VarianceMatrix)
+        DenseMatrix64F APrime = mFixContext.weightedA;
+        DenseMatrix64F bPrime = mFixContext.weightedB;
+        APrime.reshape(numRows, 2, false);
+        bPrime.reshape(numRows, 1, false);
+        if (!applyInverseVariance(algInputList, A, b, APrime, bPrime))
+            return PositionResult.STATUS_ILL_CONDITIONED_WEIGHTS;
 
-        DenseMatrix64F SInv = new DenseMatrix64F(3,3);
-        CommonOps.invert(S, SInv);
 
-        double []vectorB = new double[]{
-                b2_1, b3_1, b4_1
-        };
-        DenseMatrix64F b = new DenseMatrix64F(3,1, false, vectorB);
-        CommonOps.scale(0.5,b); //1/2*b
+        // WEIGHTED LEAST SQUARE
 
-        DenseMatrix64F x = new DenseMatrix64F(2,1);
+        LinearSolver<DenseMatrix64F> solver = mFixContext.getLeastSquaresSolver(2);
 
+        if( !solver.setA(APrime) || solver.quality() <= 1e-8 )
+            return PositionResult.STATUS_SINGULAR_SYSTEM;
 
-        /* Weighted Solver Least Square */
+        solver.solve(bPrime,x);
 
-        // A' = S^-1*A
-        DenseMatrix64F APrime = new DenseMatrix64F(3,2);
-        CommonOps.mult(SInv, A, APrime);
+        mPosition[0] = x.get(0) + geometry.x1;
+        mPosition[1] = x.get(1) + geometry.y1;
+        return PositionResult.STATUS_OK;
+    }
 
-        // b' = W*b
-        DenseMatrix64F bPrime = new DenseMatrix64F(3,1);
-        CommonOps.mult(SInv, b, bPrime);
+    /**
+     * Fills matrix A and vector b of hyperbolic approaches, one row for each AP but AP1:
+     *
+     *      Ai = - [(xi-x1) (yi-y1) ri,1]
+     *      bi = 1/2 * (ri,1^2-Ki-K1)
+     *
+     * @param algInputList List of APAlgorithmData objects with the N AP data, AP1 first
+     * @param A (N-1)x3 matrix. Modified.
+     * @param b (N-1)x1 vector. Modified.
+     */
+    private void fillHyperbolicSystem(List<APAlgorithmData> algInputList, DenseMatrix64F A,
+                                      DenseMatrix64F b) {
+        Point coordAP1 = algInputList.get(0).coordinatesAP;
+        double distAP1 = algInputList.get(0).distance;
 
+        // Ki = xi^2 + yi^2
+        double K1 = Math.pow(coordAP1.x, 2) + Math.pow(coordAP1.y, 2);
 
-        // WEIGHTED LEAST SQUARE
+        for (int i = 1; i < algInputList.size(); i++) {
+            Point coordAPi = algInputList.get(i).coordinatesAP;
 
-        LinearSolver<DenseMatrix64F> solver = LinearSolverFactory.leastSquares(3, 3);
+            // ri_j = ri - rj
+            double ri_1 = algInputList.get(i).distance - distAP1;
+            double Ki = Math.pow(coordAPi.x, 2) + Math.pow(coordAPi.y, 2);
 
-        if( !solver.setA(APrime) ) {
-            throw new IllegalArgumentException("Singular matrix");
+            A.set(i - 1, 0, coordAPi.x - coordAP1.x);
+            A.set(i - 1, 1, coordAPi.y - coordAP1.y);
+            A.set(i - 1, 2, ri_1);
+            b.set(i - 1, Math.pow(ri_1, 2) - Ki + K1);
         }
+        CommonOps.changeSign(A); // A is negative
+        CommonOps.scale(0.5,b); //1/2*b
+    }
 
-        if( solver.quality() <= 1e-8 )
-            throw new IllegalArgumentException("Nearly singular matrix");
-
-        solver.solve(bPrime,x);
+    /**
+     * Computes A' = S^-1*A and b' = S^-1*b of weighted approaches in O(N), without building S
+     * (see VarianceMatrix), Var(ri²) = ri^4
+     * @param algInputList List of APAlgorithmData objects with the N AP data, AP1 first
+     * @param A (N-1)xM matrix
+     * @param b (N-1)x1 vector
+     * @param APrime (N-1)xM matrix. Modified.
+     * @param bPrime (N-1)x1 vector. Modified.
+     * @return false if S is ill-conditioned
+     */
+    private boolean applyInverseVariance(List<APAlgorithmData> algInputList, DenseMatrix64F A,
+                                      DenseMatrix64F b, DenseMatrix64F APrime,
+                                      DenseMatrix64F bPrime) {
+        int numAPs = algInputList.size();
+        for (int i = 0; i < numAPs; i++)
+            mDist[i] = algInputList.get(i).distance;
+        return VarianceMatrix.tryApplyInverse(mDist, A.numRows, A.data, A.numCols, A.numCols,
+                b.data, APrime.data, bPrime.data);
+    }
 
-        double xUserPosW = x.get(0) + coordAP1.x;
-        double yUserPosW = x.get(1) + coordAP1.y;
+    /**
+     * Copies AP coordinates and distances into the preallocated solver buffers.
+     * @param algInputList List of APAlgorithmData objects with the N AP data, AP1 first
+     * @return N
+     */
+    private int fillSolverInput(List<APAlgorithmData> algInputList) {
+        int numAPs = algInputList.size();
+        for (int i = 0; i < numAPs; i++) {
+            APAlgorithmData apData = algInputList.get(i);
+            mApX[i] = apData.coordinatesAP.x;
+            mApY[i] = apData.coordinatesAP.y;
+            mDist[i] = apData.distance;
+            mRSS[i] = apData.RSS;
+        }
+        return numAPs;
+    }
 
-        return new Point((int)xUserPosW, (int)yUserPosW);
+    /**
+     * Gets the geometry of the anchor tuple from cache (or computes it on first use).
+     * @param algInputList List of APAlgorithmData objects with the N AP data, AP1 first
+     * @return cached geometry
+     */
+    private AnchorGeometry lookupGeometry(List<APAlgorithmData> algInputList) {
+        int numAPs = algInputList.size();
+        for (int i = 0; i < numAPs; i++) {
+            mApX[i] = algInputList.get(i).coordinatesAP.x;
+            mApY[i] = algInputList.get(i).coordinatesAP.y;
+        }
+        return mGeometryCache.lookup(mApX, mApY, numAPs);
     }
 }
@@ -0,0 +1,346 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Closed-form Least Square solver for the four linearised approaches used by LSAlgorithm.
+ *
+ * EJML path builds double[][] arrays, several DenseMatrix64F objects and a new QR solver for
+ * every single fix. However, the unknown vector is always x = [x; y; r1] (hyperbolic) or
+ * x = [x-x1; y-y1] (circular), so the systems can be solved by their normal equations:
+ *
+ *      (A'A) x = A'b
+ *
+ *  which are only 3x3 or 2x2, whatever the number of anchors is. Instead of forming A'A, they
+ *  are solved through its triangular factor R (R'R = A'A), which is updated row by row with
+ *  Givens rotations and then solved by back substitution. Each anchor adds one row, so the cost
+ *  grows linearly with the number of anchors and the (N-1)-row matrix A is never built for the
+ *  non weighted approaches. It gives the same R as the QR decomposition EJML uses, without
+ *  squaring the condition number of A. Every intermediate value lives in buffers which are
+ *  allocated once in the constructor, hence solving a fix does not allocate anything on the
+ *  heap.
+ *
+ *  Weighted approaches need S^-1*A, so their rows are stored and weighted in O(N) with the
+ *  structured inverse of S (see VarianceMatrix) before being rotated.
+ *
+ *  Singularity is checked with the same quality measure than EJML QR solver (product of |Rii|
+ *  / max|Rij|) and the same 1e-8 threshold, so both solver modes accept and reject the same
+ *  geometries.
+ *
+ *  Tolerance: both solvers round differently, mostly when S^-1*A is badly conditioned (S holds
+ *  ri^4 terms, so its condition number grows quickly with the spread of the distances). On
+ *  random floor geometries, unweighted approaches match EJML within 1e-8 m, while weighted ones
+ *  differ up to 2.3e-4 m (hyperbolic) and 3e-4 m (circular). Positions are therefore only
+ *  guaranteed to match EJML within SOLVER_TOLERANCE (1e-3 m), still far below the one meter
+ *  resolution of the returned Point. LSClosedFormSolverTest checks that bound.
+ *
+ *  Failures are reported as a PositionResult status instead of thrown, so the solver can be
+ *  used on the positioning hot path.
+ *
+ *  NOTE: scratch buffers are reused between calls, so an instance must be used only by one
+ *  thread at a time (LSAlgorithm owns one solver per instance).
+ */
+public class LSClosedFormSolver {
+    /** Maximum expected difference with EJML solution (meters), see class description */
+    public static final double SOLVER_TOLERANCE = 1e-3;
+    /** Same threshold as LSAlgorithm applies to EJML solver quality */
+    public static final double QUALITY_THRESHOLD = 1e-8;
+
+    private static final int MAX_COLS = 3;
+
+    private final int mMaxAnchors;
+
+    /* Rows of weighted approaches: A (row-major, rows x MAX_COLS) and vector b */
+    private final double[] mA;
+    private final double[] mB;
+
+    /* Triangular factor R (row-major, MAX_COLS x MAX_COLS), R'R = A'A, and z = Q'b */
+    private final double[] mR = new double[MAX_COLS * MAX_COLS];
+    private final double[] mZ = new double[MAX_COLS];
+
+    /* Row being rotated into R and solution vector */
+    private final double[] mRow = new double[MAX_COLS];
+    private final double[] mX = new double[MAX_COLS];
+
+    /**
+     * @param maxAnchors maximum number of anchors of a fix
+     */
+    public LSClosedFormSolver(int maxAnchors) {
+        mMaxAnchors = maxAnchors;
+        int maxRows = maxAnchors - 1;
+        mA = new double[maxRows * MAX_COLS];
+        mB = new double[maxRows];
+    }
+
+    public int getMaxAnchors() {
+        return mMaxAnchors;
+    }
+
+    /**
+     * Hyperbolic approach (weighted or not). See LSAlgorithm.hyperbolicAlgorithm for the
+     * definition of A and b.
+     *
+     * @param apX AP x coordinates, AP1 first
+     * @param apY AP y coordinates, AP1 first
+     * @param dist estimated distances to every AP, AP1 first
+     * @param numAnchors number of anchors (at least 4, at most getMaxAnchors())
+     * @param weighted true to apply weighted least square with the variance matrix S
+     * @param position output array where [x, y] are written
+     * @return PositionResult.STATUS_OK, or the reason why position could not be estimated (it
+     *         is not written then)
+     */
+    public int tryHyperbolic(double[] apX, double[] apY, double[] dist, int numAnchors,
+                             boolean weighted, double[] position) {
+        int rows = numAnchors - 1;
+        double K1 = apX[0] * apX[0] + apY[0] * apY[0];
+        resetFactor(3);
+        for (int i = 0; i < rows; i++) {
+            int ap = i + 1;
+            // ri_1 = ri - r1
+            double ri_1 = dist[ap] - dist[0];
+            // Ki = xi^2 + yi^2
+            double Ki = apX[ap] * apX[ap] + apY[ap] * apY[ap];
+            // A is negative
+            double ax = -(apX[ap] - apX[0]);
+            double ay = -(apY[ap] - apY[0]);
+            double b = 0.5 * (ri_1 * ri_1 - Ki + K1);
+            if (weighted) {
+                storeRow(i, ax, ay, -ri_1, b);
+            } else {
+                mRow[0] = ax;
+                mRow[1] = ay;
+                mRow[2] = -ri_1;
+                addRow(mRow, b, 3);
+            }
+        }
+        if (weighted && !addWeightedRows(dist, rows, 3))
+            return PositionResult.STATUS_ILL_CONDITIONED_WEIGHTS;
+        if (!solve(3))
+            return PositionResult.STATUS_SINGULAR_SYSTEM;
+        position[0] = mX[0];
+        position[1] = mX[1];
+        return PositionResult.STATUS_OK;
+    }
+
+    /**
+     * Circular approach (weighted or not) over the cached geometry of the anchor tuple. See
+     * LSAlgorithm.circularAlgorithm for the definition of A and b.
+     *
+     * Non weighted approach is just x = A+ * b. Weighted one needs a new factorisation since
+     * S^-1*A depends on the distances, but A and di_1 terms are taken from the geometry.
+     *
+     * @param geometry cached geometry of the anchors (see AnchorGeometryCache)
+     * @param dist estimated distances to every AP, AP1 first
+     * @param weighted true to apply weighted least square with the variance matrix S
+     * @param position output array where [x, y] are written
+     * @return PositionResult.STATUS_OK, or the reason why position could not be estimated (it
+     *         is not written then)
+     */
+    public int tryCircular(AnchorGeometry geometry, double[] dist, boolean weighted,
+                           double[] position) {
+        if (geometry.isNearlySingular())
+            return PositionResult.STATUS_DEGENERATE_GEOMETRY;
+        int rows = geometry.numRows;
+        double dist1Sq = dist[0] * dist[0];
+        if (weighted) {
+            for (int i = 0; i < rows; i++) {
+                int ap = i + 1;
+                double b = 0.5 * (dist1Sq - dist[ap] * dist[ap] + geometry.dSq[i]);
+                storeRow(i, geometry.a[i * 2], geometry.a[i * 2 + 1], 0, b);
+            }
+            resetFactor(2);
+            if (!addWeightedRows(dist, rows, 2))
+                return PositionResult.STATUS_ILL_CONDITIONED_WEIGHTS;
+            if (!solve(2))
+                return PositionResult.STATUS_SINGULAR_SYSTEM;
+        } else {
+            // x = A+ * b
+            mX[0] = 0;
+            mX[1] = 0;
+            for (int i = 0; i < rows; i++) {
+                int ap = i + 1;
+                double b = 0.5 * (dist1Sq - dist[ap] * dist[ap] + geometry.dSq[i]);
+                mX[0] += geometry.pinv[i] * b;
+                mX[1] += geometry.pinv[rows + i] * b;
+            }
+        }
+        // x = [x-x1; y-y1]
+        position[0] = mX[0] + geometry.x1;
+        position[1] = mX[1] + geometry.y1;
+        return PositionResult.STATUS_OK;
+    }
+
+    /**
+     * Estimates user position with the four approaches at once. Terms shared by them are
+     * computed only once: A rows and di_1 (taken from the geometry), ri_1 and Ki. Therefore, the
+     * cost is close to the one of a single weighted approach.
+     *
+     * Each estimate is scored by its RMS range residual:
+     *
+     *      res = sqrt( 1/N * sum( (||(x, y) - (xi, yi)|| - ri)^2 ) )
+     *
+     * An approach whose system is nearly singular (or whose weights are ill-conditioned) gets NaN
+     * position and residual, the rest are still estimated.
+     *
+     * @param geometry cached geometry of the anchors (see AnchorGeometryCache)
+     * @param apX AP x coordinates, AP1 first
+     * @param apY AP y coordinates, AP1 first
+     * @param dist estimated distances to every AP, AP1 first
+     * @param numAnchors number of anchors (at least 4, at most getMaxAnchors())
+     * @param positions output array of 8 elements: [x, y] of Hyperbolic, Weighted Hyperbolic,
+     *                  Circular and Weighted Circular approaches
+     * @param residuals output array of 4 elements, residual of each approach
+     */
+    public void compareAll(AnchorGeometry geometry, double[] apX, double[] apY, double[] dist,
+                           int numAnchors, double[] positions, double[] residuals) {
+        int rows = numAnchors - 1;
+        double K1 = apX[0] * apX[0] + apY[0] * apY[0];
+        double dist1Sq = dist[0] * dist[0];
+
+        /* Hyperbolic approaches: unweighted rows are rotated while they are stored */
+        resetFactor(3);
+        for (int i = 0; i < rows; i++) {
+            int ap = i + 1;
+            double ri_1 = dist[ap] - dist[0];
+            double Ki = apX[ap] * apX[ap] + apY[ap] * apY[ap];
+            double b = 0.5 * (ri_1 * ri_1 - Ki + K1);
+            storeRow(i, -geometry.a[i * 2], -geometry.a[i * 2 + 1], -ri_1, b);
+            mRow[0] = mA[i * MAX_COLS];
+            mRow[1] = mA[i * MAX_COLS + 1];
+            mRow[2] = mA[i * MAX_COLS + 2];
+            addRow(mRow, b, 3);
+        }
+        storeEstimate(0, solve(3), 0, 0, apX, apY, dist, numAnchors, positions, residuals);
+        resetFactor(3);
+        storeEstimate(1, addWeightedRows(dist, rows, 3) && solve(3), 0, 0, apX, apY,
+                dist, numAnchors, positions, residuals);
+
+        /* Circular approaches */
+        boolean singular = geometry.isNearlySingular();
+        mX[0] = 0;
+        mX[1] = 0;
+        for (int i = 0; i < rows; i++) {
+            int ap = i + 1;
+            double b = 0.5 * (dist1Sq - dist[ap] * dist[ap] + geometry.dSq[i]);
+            storeRow(i, geometry.a[i * 2], geometry.a[i * 2 + 1], 0, b);
+            // x = A+ * b
+            mX[0] += geometry.pinv[i] * b;
+            mX[1] += geometry.pinv[rows + i] * b;
+        }
+        storeEstimate(2, !singular, geometry.x1, geometry.y1, apX, apY, dist, numAnchors,
+                positions, residuals);
+        resetFactor(2);
+        storeEstimate(3, !singular && addWeightedRows(dist, rows, 2) && solve(2),
+                geometry.x1, geometry.y1, apX, apY, dist, numAnchors, positions, residuals);
+    }
+
+    /**
+     * Copies solution mX (plus offset) and its RMS range residual into the comparison outputs.
+     */
+    private void storeEstimate(int approach, boolean solved, double xOffset, double yOffset,
+                               double[] apX, double[] apY, double[] dist, int numAnchors,
+                               double[] positions, double[] residuals) {
+        if (!solved) {
+            positions[2 * approach] = Double.NaN;
+            positions[2 * approach + 1] = Double.NaN;
+            residuals[approach] = Double.NaN;
+            return;
+        }
+        double x = mX[0] + xOffset;
+        double y = mX[1] + yOffset;
+        double sum = 0;
+        for (int i = 0; i < numAnchors; i++) {
+            double dx = x - apX[i];
+            double dy = y - apY[i];
+            double res = Math.sqrt(dx * dx + dy * dy) - dist[i];
+            sum += res * res;
+        }
+        positions[2 * approach] = x;
+        positions[2 * approach + 1] = y;
+        residuals[approach] = Math.sqrt(sum / numAnchors);
+    }
+
+    private void storeRow(int i, double a0, double a1, double a2, double b) {
+        mA[i * MAX_COLS] = a0;
+        mA[i * MAX_COLS + 1] = a1;
+        mA[i * MAX_COLS + 2] = a2;
+        mB[i] = b;
+    }
+
+    /**
+     * Rotates the stored rows into R after weighting them: A' = S^-1*A, b' = S^-1*b
+     * @return false if the weights are ill-conditioned
+     */
+    private boolean addWeightedRows(double[] dist, int rows, int cols) {
+        if (!VarianceMatrix.tryApplyInverse(dist, rows, mA, cols, MAX_COLS, mB, mA, mB))
+            return false;
+        for (int i = 0; i < rows; i++) {
+            for (int c = 0; c < cols; c++)
+                mRow[c] = mA[i * MAX_COLS + c];
+            addRow(mRow, mB[i], cols);
+        }
+        return true;
+    }
+
+    private void resetFactor(int cols) {
+        for (int r = 0; r < cols; r++) {
+            mZ[r] = 0;
+            for (int c = r; c < cols; c++)
+                mR[r * MAX_COLS + c] = 0;
+        }
+    }
+
+    /**
+     * Solves R*x = z, leaving the solution in mX.
+     * @return false if the system is nearly singular
+     */
+    private boolean solve(int cols) {
+        /* Same quality measure than EJML QR solver: prod(|Rii|/max|Rij|) */
+        double maxAbs = 0;
+        for (int r = 0; r < cols; r++)
+            for (int c = r; c < cols; c++)
+                maxAbs = Math.max(maxAbs, Math.abs(mR[r * MAX_COLS + c]));
+        double quality = maxAbs == 0 ? 0 : 1.0;
+        for (int j = 0; j < cols && quality != 0; j++)
+            quality *= mR[j * MAX_COLS + j] / maxAbs;
+        if (Math.abs(quality) <= QUALITY_THRESHOLD)
+            return false;
+
+        /* Back substitution R*x = z */
+        for (int i = cols - 1; i >= 0; i--) {
+            double sum = mZ[i];
+            for (int k = i + 1; k < cols; k++)
+                sum -= mR[i * MAX_COLS + k] * mX[k];
+            mX[i] = sum / mR[i * MAX_COLS + i];
+        }
+        return true;
+    }
+
+    /**
+     * Rotates a new row [a | beta] of the system into the upper triangular factor R and z = Q'b.
+     * R'R keeps being equal to A'A (and R'z to A'b) of every row added so far, so this is the
+     * same as accumulating the normal equations but without squaring the condition number of A.
+     *
+     * @param a row of A. Modified.
+     * @param beta element of b
+     * @param cols number of unknowns
+     */
+    private void addRow(double[] a, double beta, int cols) {
+        for (int j = 0; j < cols; j++) {
+            double aj = a[j];
+            if (aj == 0)
+                continue;
+            double rjj = mR[j * MAX_COLS + j];
+            double norm = Math.sqrt(rjj * rjj + aj * aj);
+            double cos = rjj / norm;
+            double sin = aj / norm;
+            mR[j * MAX_COLS + j] = norm;
+            for (int k = j + 1; k < cols; k++) {
+                double rjk = mR[j * MAX_COLS + k];
+                mR[j * MAX_COLS + k] = cos * rjk + sin * a[k];
+                a[k] = cos * a[k] - sin * rjk;
+            }
+            double zj = mZ[j];
+            mZ[j] = cos * zj + sin * beta;
+            beta = cos * beta - sin * zj;
+        }
+    }
+}
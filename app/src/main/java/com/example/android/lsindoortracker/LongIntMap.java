@@ -0,0 +1,122 @@
+package com.example.android.lsindoortracker;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative long keys (see BssidKey) to int values, with
+ * linear probing. Keys and values are stored in two primitive arrays, so lookups neither box
+ * nor allocate.
+ *
+ *  Capacity is a power of two, kept at most MAX_LOAD full. Keys are spread by the finalizer of
+ *  MurmurHash3, since BSSIDs of the same vendor share their high bits.
+ *
+ *  NOTE: entries can not be removed one by one, only cleared. It is not thread-safe, but it may
+ *  be read by several threads once it is not modified anymore.
+ */
+public class LongIntMap {
+    private static final long FREE = -1;
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+    private int mSize;
+
+    /** @param expectedSize number of entries which fit without resizing */
+    public LongIntMap(int expectedSize) {
+        int capacity = 2;
+        while (capacity * MAX_LOAD < expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Removes every entry, keeping the capacity */
+    public void clear() {
+        Arrays.fill(mKeys, FREE);
+        mSize = 0;
+    }
+
+    /**
+     * @param key non-negative key
+     * @param missing value returned if key is not in the map
+     * @return value of key
+     */
+    public int get(long key, int missing) {
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != FREE) {
+            if (k == key)
+                return mValues[i];
+            i = (i + 1) & mMask;
+        }
+        return missing;
+    }
+
+    public boolean containsKey(long key) {
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != FREE) {
+            if (k == key)
+                return true;
+            i = (i + 1) & mMask;
+        }
+        return false;
+    }
+
+    /**
+     * @param key non-negative key
+     * @param value value of key, it replaces the previous one
+     */
+    public void put(long key, int value) {
+        if (key < 0)
+            throw new IllegalArgumentException("Keys must be non-negative");
+        int i = slot(key);
+        long k;
+        while ((k = mKeys[i]) != FREE) {
+            if (k == key) {
+                mValues[i] = value;
+                return;
+            }
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize > MAX_LOAD * mKeys.length)
+            rehash(mKeys.length << 1);
+    }
+
+    private int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mMask;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, FREE);
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(capacity);
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] == FREE)
+                continue;
+            int i = slot(keys[j]);
+            while (mKeys[i] != FREE)
+                i = (i + 1) & mMask;
+            mKeys[i] = keys[j];
+            mValues[i] = values[j];
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.android.lsindoortracker;
+
+import android.net.wifi.ScanResult;
+
+import java.util.List;
+
+/**
+ * Low power mode of MapViewActivity: decides, fix by fix, whether the approach selected by the
+ * user is replaced by a cheaper one:
+ *
+ *  -The user is stationary: RSS of the APs heard in consecutive scans barely changes,
+ *
+ *      mean(|RSSi(t) - RSSi(t-1)|) < STATIONARY_RSS_DELTA     (over common BSSIDs)
+ *
+ *   for STATIONARY_SCANS scans in a row. A new fix would not move the marker anyway, so the last
+ *   one is reused (LSAlgorithm.LAST_KNOWN_POSITION) and the scan is not processed at all.
+ *
+ *  -The device is under load: the last fix took more than LOAD_RATIO of the scan interval, so
+ *   the next OVERLOAD_FIXES fixes use the weighted centroid approach
+ *   (LSAlgorithm.WEIGHTED_CENTROID), which needs neither distances nor matrix work, and the
+ *   processing thread catches up.
+ *
+ *  NOTE: it is not thread-safe, it must only be used by the processing thread.
+ */
+public class LowPowerController {
+    /** Mean RSS change below which two scans are taken as the same place (dBm) */
+    public static final double STATIONARY_RSS_DELTA = 4.0;
+    /** Consecutive similar scans needed to take the user as stationary */
+    public static final int STATIONARY_SCANS = 2;
+    /** Minimum BSSIDs in common to compare two scans */
+    public static final int MIN_COMMON_APS = 3;
+    /** Ratio of the scan interval above which a fix is taken as overload */
+    public static final double LOAD_RATIO = 0.5;
+    /** Cheap fixes done after an overload */
+    public static final int OVERLOAD_FIXES = 5;
+
+    private static final int EXPECTED_BSSIDS = 64;
+    private static final int NOT_HEARD = Integer.MIN_VALUE;
+
+    private boolean mIsEnabled = false;
+    /* RSS of each BSSID (see BssidKey) in the last scan; the map of the scan before is reused */
+    private LongIntMap mLastScan = new LongIntMap(EXPECTED_BSSIDS);
+    private LongIntMap mSpareScan = new LongIntMap(EXPECTED_BSSIDS);
+    private int mStationaryScans = 0;
+    private int mOverloadFixesLeft = 0;
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.mIsEnabled = enabled;
+        if (!enabled) {
+            mLastScan.clear();
+            mStationaryScans = 0;
+            mOverloadFixesLeft = 0;
+        }
+    }
+
+    /** @return true if the user is taken as stationary */
+    public boolean isStationary() {
+        return mStationaryScans >= STATIONARY_SCANS;
+    }
+
+    /**
+     * Compares a new scan with the last one. Scan results are not modified.
+     * @param results WiFi scan results list
+     */
+    public void onScan(List<ScanResult> results) {
+        if (!mIsEnabled)
+            return;
+        LongIntMap scan = mSpareScan;
+        scan.clear();
+        int common = 0;
+        double sumDelta = 0;
+        for (int i = 0; i < results.size(); i++) {
+            ScanResult result = results.get(i);
+            long key = BssidKey.parse(result.BSSID);
+            if (key == BssidKey.INVALID)
+                continue;
+            scan.put(key, result.level);
+            int last = mLastScan.get(key, NOT_HEARD);
+            if (last != NOT_HEARD) {
+                common++;
+                sumDelta += Math.abs(result.level - last);
+            }
+        }
+        if (common >= MIN_COMMON_APS && sumDelta / common < STATIONARY_RSS_DELTA)
+            mStationaryScans++;
+        else
+            mStationaryScans = 0;
+        mSpareScan = mLastScan;
+        mLastScan = scan;
+    }
+
+    /**
+     * Checks the load of the processing thread.
+     * @param elapsedMillis time taken by the last fix
+     * @param scanInterval milliseconds between two scans
+     */
+    public void onFixFinished(long elapsedMillis, int scanInterval) {
+        if (!mIsEnabled)
+            return;
+        if (elapsedMillis > LOAD_RATIO * scanInterval)
+            mOverloadFixesLeft = OVERLOAD_FIXES;
+        else if (mOverloadFixesLeft > 0)
+            mOverloadFixesLeft--;
+    }
+
+    /**
+     * @param posAlgSelected approach selected by the user
+     * @return approach to be used in the next fix
+     */
+    public int selectApproach(int posAlgSelected) {
+        if (!mIsEnabled)
+            return posAlgSelected;
+        if (isStationary())
+            return LSAlgorithm.LAST_KNOWN_POSITION;
+        if (mOverloadFixesLeft > 0)
+            return LSAlgorithm.WEIGHTED_CENTROID;
+        return posAlgSelected;
+    }
+}
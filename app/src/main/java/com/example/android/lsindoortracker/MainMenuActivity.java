@@ -55,7 +55,10 @@ public class MainMenuActivity extends Activity {
 
     /* Button Non-Linear LS Tracker Click Listener */
     public void initiateNLLSTracker(View view){
-
+        Intent intentNLLSIndoorTracker = new Intent(this, MapViewActivity.class);
+        intentNLLSIndoorTracker.putExtra(MapViewActivity.EXTRA_POS_ALG_SELECTED,
+                LSAlgorithm.NLLS_ALGORITHM);
+        startActivity(intentNLLSIndoorTracker);
     }
 
 }
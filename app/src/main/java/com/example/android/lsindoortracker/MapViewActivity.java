@@ -12,6 +12,7 @@ import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -22,6 +23,7 @@ import com.qozix.tileview.TileView;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Main activity of CellIDIndoorTracker whose purpose is to create the basic system architecture
@@ -58,41 +60,80 @@ import java.util.TimerTask;
  *              |                              |           counting:1s         |receiveScanResults
  *              |                              |                               |applyAlgorithm
  *             ...                            ...                             ...
+ *
+ * In tracking mode, fixes are not drawn directly: they correct a constant-velocity Kalman
+ * filter (KalmanTracker) and the marker is moved every FRAME_INTERVAL to the position predicted
+ * by the filter. Since the display keeps moving between fixes, WiFi is scanned less often
+ * (TRACKING_SCAN_INTERVAL), which saves power and algorithm load.
+ *
+ * In low power mode, the last fix is reused while the user is stationary, and fixes use the
+ * weighted centroid approach instead of the selected one while the processing thread falls
+ * behind (see LowPowerController).
  */
 
 public class MapViewActivity extends Activity {
     public long start, end;
     private TileView mTileView;
     private ImageView mMarker;
-    private Point mUserPosition;
+    /* Last position drawn, only used by UI thread */
+    private final Point mUserPosition = new Point();
     private WifiManager mWifi;
     private BroadcastReceiver mReceiver;
     private Timer mTimer;
     private boolean mIsActivityPaused = false;
-    private boolean mIsScanned = false;
-    private boolean mIsAlgorithmFinished = true;
-    private int mNumberProcessingThreads = 0;
+    /* Shared by broadcast, timer and processing threads */
+    private volatile boolean mIsScanned = false;
+    private volatile boolean mIsAlgorithmFinished = true;
+    /* Reserved before a processing thread is started, so no scan can start one too many */
+    private final AtomicInteger mNumberProcessingThreads = new AtomicInteger(0);
     private LSAlgorithm mLSAlgorithm;
-    private int mIdBssidApSelected;
-    private int mPosAlgSelected;
+    /* Selected by the UI thread, read by processing threads */
+    private volatile int mIdBssidApSelected;
+    private volatile int mPosAlgSelected;
     public static final int UPDATE_MAP = 1;
     public static final int SCAN_INTERVAL = 3000; // 3 seconds
     public static final int SCAN_DELAY = 1000; // 1 second
     public static final int MAX_PROCESSING_THREADS = 1; // 1 thread
+    public static final int TRACKING_SCAN_INTERVAL = 6000; // 6 seconds
+    public static final int FRAME_INTERVAL = 33; // ~30 frames per second
+    private boolean mIsTrackingMode = false;
+    private boolean mIsMarkerShown = false;
+    private final KalmanTracker mKalmanTracker = new KalmanTracker();
+    private final double[] mPredictedPosition = new double[2];
+    /* Low power mode, only used by the processing thread */
+    private final LowPowerController mLowPowerController = new LowPowerController();
+    private volatile boolean mIsLowPowerMode = false;
+    /* Intent extra with the positioning approach to start with */
+    public static final String EXTRA_POS_ALG_SELECTED = "pos_alg_selected";
     /** UI Handler which updates map */
     Handler mUIHandler = new Handler (){
         @Override
         public void handleMessage(Message msg) {
             switch(msg.what){
                 case UPDATE_MAP:
-                    // Gets Point message from ProcessResults thread
-                    Point point = (Point) msg.obj;
-                    // Updates map with user position
-                    mTileView.removeMarker(mMarker);
-                    // If less than 4 AP were acquired
-                    if (point.x == -10){
+                    // Gets PositionResult message from ProcessResults thread
+                    PositionResult result = (PositionResult) msg.obj;
+                    // Skipped fix (another one was running), map keeps last position
+                    if (result.status == PositionResult.STATUS_BUSY) {
+                        result.recycle();
+                        break;
+                    }
+                    // Point is only used to check the bounds, fixes keep full precision
+                    Point point = result.toPoint(mUserPosition);
+                    // Updates map with user position (tracking frames move the marker instead)
+                    if (!mIsTrackingMode)
+                        mTileView.removeMarker(mMarker);
+                    // If less than 4 AP were acquired and there is no fallback position
+                    if (!result.hasPosition()
+                            && result.status == PositionResult.STATUS_NOT_ENOUGH_APS){
                         // Toast
-                        Toast.makeText(getBaseContext(), "Only "+ point.y +" APs acquired",
+                        Toast.makeText(getBaseContext(), "Only "+ result.numAnchors
+                                        +" APs acquired", Toast.LENGTH_SHORT)
+                                .show();
+                    }else if (!result.hasPosition()){
+                        // Toast
+                        Toast.makeText(getBaseContext(), "No position: "
+                                        + PositionResult.getStatusName(result.status),
                                 Toast.LENGTH_SHORT)
                                 .show();
                     }else if(point.x < 0 || point.y < 0) { //Out of boundaries
@@ -106,18 +147,50 @@ public class MapViewActivity extends Activity {
                                 Toast.LENGTH_SHORT)
                                 .show();
                     }
+                    else if (mIsTrackingMode){
+                        // Fix corrects the track, marker is moved by tracking frames
+                        mKalmanTracker.update(result.x, result.y, SystemClock.elapsedRealtime());
+                    }
                     else{
                         //mTileView.moveToAndCenter(point.x, point.y);
-                        mTileView.addMarker(mMarker, point.x, point.y, -0.5f, -1.0f);
+                        mTileView.addMarker(mMarker, result.x, result.y, -0.5f, -1.0f);
+                        if (result.isFallback())
+                            Toast.makeText(getBaseContext(), "Fallback position ("
+                                            + PositionResult.getStatusName(result.status) + ")",
+                                    Toast.LENGTH_SHORT)
+                                    .show();
+                        else
                             Toast.makeText(getBaseContext(), "Correct scan", Toast.LENGTH_SHORT)
                                 .show();
                     }
+                    // Result goes back to the pool, next fix will reuse it
+                    result.recycle();
                     break;
                 default:
                     break;
             }
         }
     };
+    /** Tracking frame: moves marker to the position predicted by Kalman filter */
+    private final Runnable mTrackingFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsTrackingMode || mIsActivityPaused)
+                return;
+            if (mKalmanTracker.predictPosition(SystemClock.elapsedRealtime(),
+                    mPredictedPosition)) {
+                if (mIsMarkerShown) {
+                    mTileView.moveMarker(mMarker, mPredictedPosition[0], mPredictedPosition[1],
+                            -0.5f, -1.0f);
+                } else {
+                    mTileView.addMarker(mMarker, mPredictedPosition[0], mPredictedPosition[1],
+                            -0.5f, -1.0f);
+                    mIsMarkerShown = true;
+                }
+            }
+            mUIHandler.postDelayed(this, FRAME_INTERVAL);
+        }
+    };
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -159,10 +232,21 @@ public class MapViewActivity extends Activity {
     private void setScanningTask(){
         mIdBssidApSelected = 3; // By default, AP2 is chosen to provide pathloss model
 
-        /* Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2, Weighted Circular = 3 */
-        mPosAlgSelected = 3; // By default, approach selected is Weighted Circular approach
+        /* Hyperbolic = 0, Weighted Hyperbolic = 1, Circular = 2, Weighted Circular = 3,
+        Non-linear LS = 4, Particle filter = 5, Fingerprinting = 6, Grid filter = 7 */
+        // By default, approach selected is Weighted Circular approach
+        mPosAlgSelected = getIntent().getIntExtra(EXTRA_POS_ALG_SELECTED, 3);
         mWifi = (WifiManager) getSystemService(getApplicationContext().WIFI_SERVICE);
         mLSAlgorithm = new LSAlgorithm(this);
+        scheduleScanning(SCAN_INTERVAL);
+    }
+    /**
+     * (Re)schedules the scanning Timer Task to run every scanInterval milliseconds.
+     * @param scanInterval milliseconds between two scans
+     */
+    private void scheduleScanning(int scanInterval){
+        if (mTimer != null)
+            mTimer.cancel();
         mTimer = new Timer();
         mTimer.schedule(new TimerTask() {
             @Override
@@ -173,7 +257,24 @@ public class MapViewActivity extends Activity {
                     mWifi.startScan();
                 }
             }
-        }, SCAN_DELAY, SCAN_INTERVAL);
+        }, SCAN_DELAY, scanInterval);
+    }
+    /**
+     * Enables or disables tracking mode. In tracking mode, scans are less frequent and the marker
+     * follows the position predicted by Kalman filter at UI frame rate.
+     * @param enabled true to enable tracking mode
+     */
+    private void setTrackingMode(boolean enabled){
+        mIsTrackingMode = enabled;
+        mTileView.removeMarker(mMarker);
+        mIsMarkerShown = false;
+        mKalmanTracker.reset();
+        // Marker keeps moving until next fix, which arrives every TRACKING_SCAN_INTERVAL
+        mKalmanTracker.setFixInterval(TRACKING_SCAN_INTERVAL);
+        mUIHandler.removeCallbacks(mTrackingFrame);
+        if (enabled)
+            mUIHandler.post(mTrackingFrame);
+        scheduleScanning(enabled ? TRACKING_SCAN_INTERVAL : SCAN_INTERVAL);
     }
     /**
      * processScanResults() should be triggered every time after startScan() is run in the Timer
@@ -183,18 +284,18 @@ public class MapViewActivity extends Activity {
      * position.
      *
      * NOTE: If necessary, we can deploy more than one thread for this method changing
-     * mNumberProcessingThreads variable, in order to make a more efficient application. It
-     * would execute at the same time the algorithm with different data, allowing to update the
-     * map even faster, but would require better device performance.
+     * MAX_PROCESSING_THREADS, in order to make a more efficient application. It would execute
+     * at the same time the algorithm with different data, allowing to update the map even
+     * faster, but would require better device performance (and one LSAlgorithm per thread,
+     * since fixes of the same instance are serialised, see PositionResult.STATUS_BUSY).
      */
     public void processScanResults(final List<ScanResult> results) {
-        if(results.size() > 0 && mNumberProcessingThreads <= MAX_PROCESSING_THREADS && !mIsScanned){
+        if(results.size() > 0 && !mIsScanned && reserveProcessingThread()){
+            mIsScanned = true;
+            mIsAlgorithmFinished = false;
             /** Execute a new thread */
             Thread t = new Thread() {
                 public void run() {
-                    mNumberProcessingThreads++;
-                    mIsScanned = true;
-                    mIsAlgorithmFinished = false;
                     // Indoor positioning algorithm
                     /* try {
                     Log.i("thread", "sleep antes");
@@ -209,18 +310,46 @@ public class MapViewActivity extends Activity {
                     int Low = 0;
                     int High = 150;
                     int R = r.nextInt(High-Low) + Low;*/
-                     mUserPosition = mLSAlgorithm.getUserPosition(results, mIdBssidApSelected,
-                             mPosAlgSelected);
-                    /* Call the UPDATE_MAP case method of UI Handler with user position on it */
-                    Message msg = mUIHandler.obtainMessage(UPDATE_MAP, mUserPosition);
-                    mUIHandler.sendMessage(msg);
-                    mNumberProcessingThreads--;
-                    mIsAlgorithmFinished = true;
+                    try {
+                        /* Low power mode reuses the last fix when the user is stationary and
+                        uses weighted centroid when the last fixes were too slow */
+                        if (mLowPowerController.isEnabled() != mIsLowPowerMode)
+                            mLowPowerController.setEnabled(mIsLowPowerMode);
+                        mLowPowerController.onScan(results);
+                        int posAlg = mLowPowerController.selectApproach(mPosAlgSelected);
+                        long fixStart = System.currentTimeMillis();
+                        // Degenerate data is reported in the result status, never thrown
+                        PositionResult result = mLSAlgorithm.locate(results, mIdBssidApSelected,
+                                posAlg);
+                        mLowPowerController.onFixFinished(System.currentTimeMillis() - fixStart,
+                                mIsTrackingMode ? TRACKING_SCAN_INTERVAL : SCAN_INTERVAL);
+                        /* Call the UPDATE_MAP case method of UI Handler with user position on
+                        it */
+                        Message msg = mUIHandler.obtainMessage(UPDATE_MAP, result);
+                        mUIHandler.sendMessage(msg);
+                    } finally {
+                        // Scanning goes on even if the algorithm fails unexpectedly
+                        mNumberProcessingThreads.decrementAndGet();
+                        mIsAlgorithmFinished = true;
+                    }
                 }
             };
             t.start(); // start new scan thread
         }
     }
+    /**
+     * Reserves a processing thread, atomically, before it is started.
+     * @return false if MAX_PROCESSING_THREADS are already running
+     */
+    private boolean reserveProcessingThread() {
+        int running;
+        do {
+            running = mNumberProcessingThreads.get();
+            if (running >= MAX_PROCESSING_THREADS)
+                return false;
+        } while (!mNumberProcessingThreads.compareAndSet(running, running + 1));
+        return true;
+    }
     /* Register Broadcast receiver */
     @Override
     protected void onStart(){
@@ -249,18 +378,23 @@ public class MapViewActivity extends Activity {
     protected void onPause(){
         super.onPause();
         mIsActivityPaused = true;
+        mUIHandler.removeCallbacks(mTrackingFrame);
     }
     /* Activity is resumed */
     @Override
     protected void onResume(){
         super.onResume();
         mIsActivityPaused = false;
+        if (mIsTrackingMode)
+            mUIHandler.post(mTrackingFrame);
     }
     /* Activity is destroyed */
     @Override
     protected void onDestroy(){
         super.onDestroy();
         mTimer.cancel();
+        mUIHandler.removeCallbacks(mTrackingFrame);
+        mLSAlgorithm.release();
     }
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -283,9 +417,24 @@ public class MapViewActivity extends Activity {
                 dialogBssid();
                 return true;
             case R.id.action_position_algorithm:
-                // Dialog with 4 options - single choice
+                // Dialog with 9 options - single choice
                 dialogPositionAlgorithm();
                 return true;
+            case R.id.action_tracking_mode:
+                // Checkable option, Kalman filter tracking
+                item.setChecked(!item.isChecked());
+                setTrackingMode(item.isChecked());
+                return true;
+            case R.id.action_robust_mode:
+                // Checkable option, RANSAC outlier rejection
+                item.setChecked(!item.isChecked());
+                mLSAlgorithm.setRobustMode(item.isChecked());
+                return true;
+            case R.id.action_low_power_mode:
+                // Checkable option, last fix when stationary, centroid under load
+                item.setChecked(!item.isChecked());
+                mIsLowPowerMode = item.isChecked();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -321,7 +470,14 @@ public class MapViewActivity extends Activity {
     private void dialogPositionAlgorithm(){
         final CharSequence[] choiceList =
                 {"Hyperbolic approach", "Weighted Hyperbolic approach" , "Circular approach" ,
-                        "Weighted Circular Approach" };
+                        "Weighted Circular Approach", "Non-linear LS approach",
+                        "Particle filter approach", "Fingerprinting approach",
+                        "Grid filter approach", "Weighted centroid approach",
+                        "Best linear approach" };
+        // Approach of each choice
+        final int[] approaches = {0, 1, 2, 3, LSAlgorithm.NLLS_ALGORITHM,
+                LSAlgorithm.PARTICLE_FILTER, LSAlgorithm.FINGERPRINTING, LSAlgorithm.GRID_FILTER,
+                LSAlgorithm.WEIGHTED_CENTROID, LSAlgorithm.BEST_LINEAR};
 
         new AlertDialog.Builder(this)
                 .setTitle("Select desired positioning approach")
@@ -336,7 +492,7 @@ public class MapViewActivity extends Activity {
                             DialogInterface dialog,
                             int which) {
                         dialog.dismiss();
-                        mPosAlgSelected = which;
+                        mPosAlgSelected = approaches[which];
                         Toast.makeText( getBaseContext(), choiceList[which] + " selected",
                                 Toast.LENGTH_SHORT)
                                 .show();
@@ -0,0 +1,118 @@
+package com.example.android.lsindoortracker;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Buffers RSS-distance measurements of a survey session in memory and writes them to
+ * measurements table in batches, each one in a single transaction (see
+ * IndoorTrackerDatabaseHandler.addMeasurementsDB), instead of committing every row on its own.
+ *
+ *  A batch is flushed when:
+ *      -It holds MAX_BATCH_SIZE measurements
+ *      -Its oldest measurement was buffered MAX_BATCH_AGE_MS ago: a flush is posted to the
+ *       thread which created the batch when its first measurement is buffered
+ *      -flush is called, e.g. when the activity pauses, so nothing is lost
+ *
+ *  Each flush is timed and reported in the log; totals are kept for the whole session.
+ *
+ *  NOTE: it is not thread-safe, it must only be created and used by the thread which surveys
+ *  (UI thread, whose looper runs the age flushes).
+ */
+public class MeasurementBatch {
+    public static final int MAX_BATCH_SIZE = 256;
+    public static final long MAX_BATCH_AGE_MS = 5000;
+    private static final String TAG = "MeasurementBatch";
+
+    private final IndoorTrackerDatabaseHandler mDbHandler;
+    private final int[] mIdBssids = new int[MAX_BATCH_SIZE];
+    private final int[] mRSS = new int[MAX_BATCH_SIZE];
+    private final int[] mDistances = new int[MAX_BATCH_SIZE];
+    private final long[] mTimestamps = new long[MAX_BATCH_SIZE];
+    private int mSize = 0;
+    /* Flushes the batch once its oldest measurement is MAX_BATCH_AGE_MS old */
+    private final Handler mHandler = new Handler();
+    private final Runnable mAgeFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /* Session totals */
+    private int mFlushCount = 0;
+    private long mRowsFlushed = 0;
+    private long mFlushNanos = 0;
+    private long mLastFlushNanos = 0;
+
+    public MeasurementBatch(IndoorTrackerDatabaseHandler dbHandler) {
+        mDbHandler = dbHandler;
+    }
+
+    /**
+     * Buffers a measurement, taken now, flushing the batch if it is full.
+     * @param idBssid AP id
+     * @param rss RSS value gathered from AP
+     * @param distance meters away from where rss was measured
+     */
+    public void add(int idBssid, int rss, int distance) {
+        if (mSize == 0)
+            mHandler.postDelayed(mAgeFlush, MAX_BATCH_AGE_MS);
+        mIdBssids[mSize] = idBssid;
+        mRSS[mSize] = rss;
+        mDistances[mSize] = distance;
+        mTimestamps[mSize] = System.currentTimeMillis();
+        mSize++;
+        if (mSize == MAX_BATCH_SIZE)
+            flush();
+    }
+
+    /** @return number of measurements not written yet */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Writes buffered measurements in one transaction.
+     * @return number of measurements written
+     */
+    public int flush() {
+        mHandler.removeCallbacks(mAgeFlush);
+        if (mSize == 0)
+            return 0;
+        int rows = mSize;
+        long start = System.nanoTime();
+        mDbHandler.addMeasurementsDB(mIdBssids, mRSS, mDistances, mTimestamps, rows);
+        long elapsed = System.nanoTime() - start;
+        mSize = 0;
+
+        mFlushCount++;
+        mRowsFlushed += rows;
+        mFlushNanos += elapsed;
+        mLastFlushNanos = elapsed;
+        Log.i(TAG, String.format(Locale.US, "flush %d: %d rows in %.2f ms (%.1f us/row),"
+                + " session: %d rows in %.2f ms", mFlushCount, rows, elapsed / 1e6,
+                elapsed / 1e3 / rows, mRowsFlushed, mFlushNanos / 1e6));
+        return rows;
+    }
+
+    public int getFlushCount() {
+        return mFlushCount;
+    }
+
+    public long getRowsFlushed() {
+        return mRowsFlushed;
+    }
+
+    /** @return time spent by every flush of the session (ns) */
+    public long getFlushNanos() {
+        return mFlushNanos;
+    }
+
+    /** @return time spent by the last flush (ns) */
+    public long getLastFlushNanos() {
+        return mLastFlushNanos;
+    }
+}
@@ -30,8 +30,11 @@ public class MeasuringDataActivity extends Activity {
     TextView text_iteration;
     TextView text_meters;
     IndoorTrackerDatabaseHandler measdbh;
+    // RSS-distance pairs not written to database yet
+    private MeasurementBatch mMeasurementBatch;
     private int mIdBssidApSelected;
     private String mNameBssidApSelected;
+    private long mKeyBssidApSelected;
     private int mRssTotal;
     private int mIterations;
     // mRssMean = mRssTotal/mIterations
@@ -39,6 +42,10 @@ public class MeasuringDataActivity extends Activity {
     private int mMetersAway;
     WifiManager mMainWifi;
     WifiReceiver mReceiverWifi;
+    // Records the next scan as a fingerprint of the radio map, see dialogFingerprint
+    private FingerprintReceiver mReceiverFingerprint;
+    // True while mReceiverFingerprint is registered, waiting for its scan
+    private boolean mIsFingerprintPending = false;
     List<ScanResult> mWifiList;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,8 +69,23 @@ public class MeasuringDataActivity extends Activity {
         if (id == R.id.action_settings) {
             return true;
         }
+        if (id == R.id.action_fingerprint) {
+            dialogFingerprint();
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
+    @Override
+    protected void onPause(){
+        super.onPause();
+        // A fingerprint scan still pending is dropped, its receiver must not leak
+        if (mIsFingerprintPending) {
+            unregisterReceiver(mReceiverFingerprint);
+            mIsFingerprintPending = false;
+        }
+        // Buffered measurements are written before leaving, e.g. to ApplyingRegressionActivity
+        mMeasurementBatch.flush();
+    }
     private void initiateAndroid(){
         // User Interface
         buttonStart = (Button)findViewById(R.id.button_start);
@@ -77,10 +99,12 @@ public class MeasuringDataActivity extends Activity {
         mRssMean = 0;
         mMetersAway = 0;
         // Creation of MAC/BSSID database
-        measdbh = new IndoorTrackerDatabaseHandler(this);
+        measdbh = IndoorTrackerDatabaseHandler.getInstance(this);
+        mMeasurementBatch = new MeasurementBatch(measdbh);
         // WiFi Manager API
         mMainWifi =(WifiManager) getSystemService(Context.WIFI_SERVICE);
         mReceiverWifi = new WifiReceiver();
+        mReceiverFingerprint = new FingerprintReceiver();
         // Dialog for introducing desired AP MAC address
         dialogBssid();
     }
@@ -110,6 +134,48 @@ public class MeasuringDataActivity extends Activity {
                 })
                 .show();
     }
+    /**
+     * Asks for the position where user is standing, "x, y" in the coordinates of AP positions,
+     * and scans WiFi APs to store what is heard there as a fingerprint (see FingerprintReceiver).
+     */
+    private void dialogFingerprint() {
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_TEXT);
+        input.setHint("x, y");
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_fingerprint)
+                .setView(input)
+                .setPositiveButton("OK", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String[] position = input.getText().toString().split(",");
+                        try {
+                            if (position.length != 2)
+                                throw new NumberFormatException();
+                            mReceiverFingerprint.x = Double.parseDouble(position[0].trim());
+                            mReceiverFingerprint.y = Double.parseDouble(position[1].trim());
+                        } catch (NumberFormatException e) {
+                            Toast.makeText(getApplicationContext(), "Position must be x, y",
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        // WiFi Scanner, the receiver is only registered once per scan
+                        if (!mIsFingerprintPending) {
+                            registerReceiver(mReceiverFingerprint, new
+                                    IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+                            mIsFingerprintPending = true;
+                        }
+                        mMainWifi.startScan();
+                    }
+                })
+                .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.cancel();
+                    }
+                })
+                .show();
+    }
     /**
      * onClick() method:
      * Starts scanning WiFi APs and collecting RSS and distance when user presses "Start" button.
@@ -119,6 +185,7 @@ public class MeasuringDataActivity extends Activity {
 //        Intent dbmanager = new Intent(this,AndroidDatabaseManager.class);
 //        startActivity(dbmanager);
         mNameBssidApSelected = measdbh.getBssidNameDB(mIdBssidApSelected);
+        mKeyBssidApSelected = BssidKey.parse(mNameBssidApSelected);
         // If "start", means used has moved away 1m
         if (buttonStart.getText().equals(this.getString(R.string.button_start))){
             mRssTotal = 0;
@@ -147,8 +214,8 @@ public class MeasuringDataActivity extends Activity {
         }
         Toast.makeText(getApplicationContext(), mRssMean + " dBms",
                 Toast.LENGTH_LONG).show();
-        // Store the pair value RSS-distance of selected AP to database
-        measdbh.addMeasurementDB(mIdBssidApSelected, mRssMean, mMetersAway);
+        // Store the pair value RSS-distance of selected AP to database, in batches
+        mMeasurementBatch.add(mIdBssidApSelected, mRssMean, mMetersAway);
     }
     class WifiReceiver extends BroadcastReceiver {
         int rss = -100;
@@ -162,7 +229,7 @@ public class MeasuringDataActivity extends Activity {
             for(int i = 0; i < mWifiList.size(); i++){
                 bssid = mWifiList.get(i).BSSID;
                 // Collects RSS level if finds BSSID/MAC address user input in the list
-                if (removeLastDigitBssid(bssid).equals(mNameBssidApSelected)) {
+                if (BssidKey.parseGroup(bssid) == mKeyBssidApSelected) {
                     rss = mWifiList.get(i).level;
                     mRssTotal += rss;
                     mIterations++;
@@ -175,6 +242,17 @@ public class MeasuringDataActivity extends Activity {
             updateInterface(mIdBssidApSelected, rss, mIterations, mMetersAway);
         }
     }
+    /** Stores the APs heard at the surveyed position (x, y) as a fingerprint */
+    class FingerprintReceiver extends BroadcastReceiver {
+        double x, y;
+        public void onReceive(Context c, Intent intent) {
+            unregisterReceiver(mReceiverFingerprint);
+            mIsFingerprintPending = false;
+            int idFingerprint = measdbh.addFingerprintDB(x, y, mMainWifi.getScanResults());
+            Toast.makeText(getApplicationContext(), "Fingerprint " + idFingerprint + " stored",
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
     /** Updates interface each time user presses "next" measurement */
     private void updateInterface(int id_bssid, int rss, int iterations, int metersAway){
         if(rss ==-100)
@@ -185,10 +263,4 @@ public class MeasuringDataActivity extends Activity {
         text_iteration.setText(Integer.toString(iterations));
         text_meters.setText(Integer.toString(metersAway));
     }
-    private String removeLastDigitBssid (String bssid){
-        if (bssid.length() > 0) {
-            bssid = bssid.substring(0, bssid.length()-1);
-        }
-        return bssid;
-    }
 }
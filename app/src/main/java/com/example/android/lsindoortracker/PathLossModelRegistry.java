@@ -0,0 +1,118 @@
+package com.example.android.lsindoortracker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory registry with the pathloss model of every AP which has coefficients in database,
+ * so each anchor can translate its RSS to distance with its own model.
+ *
+ *  The registry is immutable. It is loaded from coefficients table once, on first use, and
+ *  published through a volatile reference. When new coefficients are stored (see
+ *  IndoorTrackerDatabaseHandler.addCoefficientsDB, called by ApplyingRegressionActivity), a new
+ *  registry is built with that model replaced (the rest of lookup tables are reused) and
+ *  swapped atomically. Therefore, positioning threads never touch SQLite for coefficients and
+ *  always see a complete set of models.
+ *
+ *  Models are keyed by AP id only, so an AP whose BSSID is stored twice in bssids table never
+ *  takes the model of the other row. Ids are indexed by a LongIntMap, so lookups do not box.
+ */
+public class PathLossModelRegistry {
+    /** Used when neither the AP nor the default AP have coefficients, same as an empty table */
+    private static final PathLossModel NO_MODEL = new PathLossModel(new double[4]);
+
+    private static volatile PathLossModelRegistry sInstance;
+
+    /* Slot of each AP id, and id and model of each slot */
+    private final LongIntMap mIndex;
+    private final int[] mIds;
+    private final PathLossModel[] mModels;
+
+    /**
+     * @param modelsById pathloss model of each AP id, ids must be non-negative
+     */
+    public PathLossModelRegistry(Map<Integer, PathLossModel> modelsById) {
+        int size = modelsById.size();
+        mIndex = new LongIntMap(size);
+        mIds = new int[size];
+        mModels = new PathLossModel[size];
+        int slot = 0;
+        for (Map.Entry<Integer, PathLossModel> entry : modelsById.entrySet()) {
+            mIds[slot] = entry.getKey();
+            mModels[slot] = entry.getValue();
+            mIndex.put(mIds[slot], slot);
+            slot++;
+        }
+    }
+
+    /**
+     * Gets current registry, loading it from database if it has not been loaded yet.
+     * @param dbHandler database handler, only used on first call
+     * @return current registry
+     */
+    public static PathLossModelRegistry getInstance(IndoorTrackerDatabaseHandler dbHandler) {
+        PathLossModelRegistry registry = sInstance;
+        if (registry == null) {
+            synchronized (PathLossModelRegistry.class) {
+                registry = sInstance;
+                if (registry == null) {
+                    registry = dbHandler.loadPathLossModelsDB();
+                    sInstance = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Publishes a registry which was not loaded from database (e.g. test fixtures).
+     * @param registry new registry, null to drop current one, so it is loaded on next use
+     */
+    static void publish(PathLossModelRegistry registry) {
+        synchronized (PathLossModelRegistry.class) {
+            sInstance = registry;
+        }
+    }
+
+    /**
+     * Replaces the model of an AP. Nothing is done if registry has not been loaded yet, since it
+     * will be loaded from database (already holding new coefficients) on first use.
+     * @param idBssid AP id
+     * @param model new pathloss model
+     */
+    public static void updateModel(int idBssid, PathLossModel model) {
+        synchronized (PathLossModelRegistry.class) {
+            PathLossModelRegistry registry = sInstance;
+            if (registry == null)
+                return;
+            Map<Integer, PathLossModel> modelsById = new HashMap<Integer, PathLossModel>();
+            for (int slot = 0; slot < registry.mIds.length; slot++)
+                modelsById.put(registry.mIds[slot], registry.mModels[slot]);
+            modelsById.put(idBssid, model);
+            sInstance = new PathLossModelRegistry(modelsById);
+        }
+    }
+
+    /**
+     * @param idBssid AP id
+     * @param defaultModel model returned if the AP has no model
+     * @return pathloss model of the AP
+     */
+    public PathLossModel getModel(int idBssid, PathLossModel defaultModel) {
+        int slot = idBssid < 0 ? -1 : mIndex.get(idBssid, -1);
+        return slot >= 0 ? mModels[slot] : defaultModel;
+    }
+
+    /**
+     * Gets the model used for APs without their own model.
+     * @param idBssidApSelected AP selected by the user
+     * @return pathloss model of the AP selected, or a model with null coefficients if it has none
+     */
+    public PathLossModel getDefaultModel(int idBssidApSelected) {
+        return getModel(idBssidApSelected, NO_MODEL);
+    }
+
+    public boolean hasModel(int idBssid) {
+        return idBssid >= 0 && mIndex.containsKey(idBssid);
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.android.lsindoortracker;
+
+import android.graphics.Point;
+
+/**
+ * Result of a fix, as given by LSAlgorithm.locate. Failures are reported by status instead of
+ * exceptions, so positioning threads never die on degenerate data.
+ *
+ * status tells how the selected approach went. When it failed, the fallback chain of
+ * LSAlgorithm may still have given a position, and approach tells which step it was.
+ *
+ * Results are handed from the positioning thread to the UI one, so they are pooled as Android
+ * Messages are: obtain() takes one from the pool and recycle() gives it back once its reader is
+ * done with it, hence steady-state fixes allocate none.
+ */
+public class PositionResult {
+    /* Status of the selected approach */
+    public static final int STATUS_OK = 0;
+    /** Less than the APs needed by the approach were acquired */
+    public static final int STATUS_NOT_ENOUGH_APS = 1;
+    /** Anchors are (nearly) collinear, detected from their cached geometry before solving */
+    public static final int STATUS_DEGENERATE_GEOMETRY = 2;
+    /** LS system is nearly singular */
+    public static final int STATUS_SINGULAR_SYSTEM = 3;
+    /** Variance matrix of weighted approaches is ill-conditioned */
+    public static final int STATUS_ILL_CONDITIONED_WEIGHTS = 4;
+    /** Engine could not be used (e.g. floor plan or radio map not available) */
+    public static final int STATUS_ENGINE_UNAVAILABLE = 5;
+    /** Another fix of the same LSAlgorithm was running, this one was skipped */
+    public static final int STATUS_BUSY = 6;
+    /** Tracking engine lost the user: every hypothesis became impossible */
+    public static final int STATUS_TRACK_LOST = 7;
+    /** Iterative engine hit its iteration or time budget before converging */
+    public static final int STATUS_NOT_CONVERGED = 8;
+    /**
+     * Robust mode left fewer inliers than the approach needs. The position is the best RANSAC
+     * model (LSAlgorithm.ROBUST_SUBSET) instead of a fallback chain step
+     */
+    public static final int STATUS_TOO_FEW_INLIERS = 9;
+
+    public int status = STATUS_OK;
+    /** Approach which gave the position (posAlgSelected or a fallback step), -1 if none */
+    public int approach = -1;
+    public double x, y;
+    /** Number of APs acquired (after filtering) */
+    public int numAnchors;
+
+    /* Pool of recycled results, linked through mNext */
+    private static final int MAX_POOL_SIZE = 4;
+    private static final Object sPoolSync = new Object();
+    private static PositionResult sPool;
+    private static int sPoolSize = 0;
+    private PositionResult mNext;
+
+    /** @return a result from the pool, or a new one if it is empty. Fields are reset */
+    public static PositionResult obtain() {
+        synchronized (sPoolSync) {
+            PositionResult result = sPool;
+            if (result != null) {
+                sPool = result.mNext;
+                result.mNext = null;
+                sPoolSize--;
+                result.reset();
+                return result;
+            }
+        }
+        return new PositionResult();
+    }
+
+    /**
+     * Gives the result back to the pool. It must not be used afterwards.
+     */
+    public void recycle() {
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /** Clears every field, as a new result */
+    public void reset() {
+        status = STATUS_OK;
+        approach = -1;
+        x = 0;
+        y = 0;
+        numAnchors = 0;
+    }
+
+    public boolean hasPosition() {
+        return approach >= 0;
+    }
+
+    /** @return true if the position was given by a fallback step instead of the approach */
+    public boolean isFallback() {
+        return hasPosition() && status != STATUS_OK;
+    }
+
+    /**
+     * @return position, with the same convention as LSAlgorithm.getUserPosition:
+     *         Point(-10, numAnchors) if there is no position
+     */
+    public Point toPoint() {
+        return toPoint(new Point());
+    }
+
+    /**
+     * Same as toPoint, without allocating.
+     * @param point output, overwritten
+     * @return point
+     */
+    public Point toPoint(Point point) {
+        if (!hasPosition())
+            point.set(-10, numAnchors);
+        else
+            point.set((int) x, (int) y);
+        return point;
+    }
+
+    public static String getStatusName(int status) {
+        switch (status) {
+            case STATUS_OK:
+                return "OK";
+            case STATUS_NOT_ENOUGH_APS:
+                return "Not enough APs";
+            case STATUS_DEGENERATE_GEOMETRY:
+                return "Degenerate AP geometry";
+            case STATUS_SINGULAR_SYSTEM:
+                return "Nearly singular matrix";
+            case STATUS_ILL_CONDITIONED_WEIGHTS:
+                return "Ill-conditioned variance matrix";
+            case STATUS_ENGINE_UNAVAILABLE:
+                return "Engine unavailable";
+            case STATUS_BUSY:
+                return "Busy";
+            case STATUS_TRACK_LOST:
+                return "Track lost";
+            case STATUS_NOT_CONVERGED:
+                return "Not converged";
+            case STATUS_TOO_FEW_INLIERS:
+                return "Too few inliers";
+            default:
+                return "Unknown";
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.android.lsindoortracker;
+
+import java.util.Map;
+
+/**
+ * Radio map of the fingerprinting approach: surveyed reference points, each one with its
+ * position and the RSS vector heard there. Vectors have one column per AP of bssids table, APs
+ * which were not heard at a point hold MISSING_RSS.
+ *
+ *  RSS vectors are stored row-major in a single float array (numPoints x numColumns), so the
+ *  index (see FingerprintPositioning) reads them without any indirection.
+ *
+ *  Objects are immutable once built, see IndoorTrackerDatabaseHandler.loadRadioMapDB.
+ */
+public class RadioMap {
+    /** RSS given to APs which are not heard (dBm) */
+    public static final float MISSING_RSS = -100;
+
+    public final int numPoints;
+    public final int numColumns;
+    /** Position of each reference point */
+    public final double[] posX, posY;
+    /** RSS vector of each reference point, row-major */
+    public final float[] rss;
+    private final Map<String, Integer> mColumns;
+
+    /**
+     * @param posX x coordinate of each reference point
+     * @param posY y coordinate of each reference point
+     * @param rss RSS vectors, row-major, numPoints x numColumns
+     * @param columns column of each AP BSSID (without last digit)
+     */
+    public RadioMap(double[] posX, double[] posY, float[] rss, Map<String, Integer> columns) {
+        if (posX.length != posY.length)
+            throw new IllegalArgumentException("posX and posY must have the same length");
+        numPoints = posX.length;
+        numColumns = numPoints == 0 ? 0 : rss.length / numPoints;
+        if (rss.length != numPoints * numColumns)
+            throw new IllegalArgumentException("rss must have numPoints x numColumns values");
+        this.posX = posX;
+        this.posY = posY;
+        this.rss = rss;
+        mColumns = columns;
+    }
+
+    /**
+     * @param bssid AP BSSID (without last digit)
+     * @return column of the AP in RSS vectors, -1 if it is not in the radio map
+     */
+    public int getColumn(String bssid) {
+        Integer column = mColumns.get(bssid);
+        return column == null || column >= numColumns ? -1 : column;
+    }
+}
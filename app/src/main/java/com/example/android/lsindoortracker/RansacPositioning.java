@@ -0,0 +1,280 @@
+package com.example.android.lsindoortracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * RANSAC outlier rejection over anchor subsets. A single NLOS anchor can throw a LS fix far
+ * away, so positions are first estimated from minimal subsets of 3 anchors (circular approach,
+ * 2 unknowns):
+ *
+ *      A = [(x2-x1) (y2-y1);      b = 1/2 * [r1^2 - r2^2 + d2_1;
+ *           (x3-x1) (y3-y1)]                 r1^2 - r3^2 + d3_1]
+ *
+ *      x = A^-1 * b = [x-x1; y-y1]
+ *
+ *  and every anchor votes for the subset position if its range residual is small enough:
+ *
+ *      | ||(x, y) - (xi, yi)|| - ri | <= max(MIN_INLIER_THRESHOLD, INLIER_THRESHOLD_RATIO * ri)
+ *
+ *  The subset with the largest consensus (ties broken by lowest residual) is the best model, and
+ *  its voters are the inlier set. LSAlgorithm then applies the selected approach to the inliers
+ *  only.
+ *
+ *  With up to 15 anchors there are at most 455 subsets, so all of them are evaluated (no random
+ *  sampling). They are split across a worker pool; workers stop as soon as any of them finds a
+ *  subset whose consensus reaches CONSENSUS_RATIO of the anchors, or when the time budget is
+ *  over, so the robust mode stays well inside the scan interval.
+ *
+ *  NOTE: an instance must be used only by one thread at a time (LSAlgorithm owns one per
+ *  instance). shutdown() must be called when it is not needed anymore.
+ */
+public class RansacPositioning {
+    /** Anchors of each minimal subset */
+    public static final int SUBSET_SIZE = 3;
+    /** Minimum residual accepted for an inlier (meters) */
+    public static final double MIN_INLIER_THRESHOLD = 3.0;
+    /** Residual accepted for an inlier, relative to the estimated distance */
+    public static final double INLIER_THRESHOLD_RATIO = 0.3;
+    /** Search stops once a model is supported by this ratio of the anchors */
+    public static final double CONSENSUS_RATIO = 0.8;
+    public static final long DEFAULT_TIME_BUDGET_NANOS = 100000000; // 100 ms
+    /** Maximum number of anchors, inlier sets are stored as bit masks */
+    public static final int MAX_ANCHORS = 63;
+
+    private static final int SUBSETS_PER_TASK = 16;
+
+    private final int mNumThreads;
+    private final ExecutorService mExecutor;
+    private long mTimeBudgetNanos = DEFAULT_TIME_BUDGET_NANOS;
+
+    /* Subsets of 3 anchors (i < j < k) of the last number of anchors used */
+    private int mSubsetsNumAnchors = -1;
+    private int[] mSubsets;
+    private int mNumSubsets;
+
+    private Worker[] mWorkers;
+    private List<Callable<Void>> mTasks;
+
+    /* Fix being estimated, read by the workers */
+    private double[] mApX, mApY, mDist;
+    private int mNumAnchors;
+    private int mConsensusTarget;
+    private long mDeadline;
+    private volatile boolean mIsConsensusReached;
+
+    /** Result of a robust fix */
+    public static class Result {
+        /** Position estimated by the best subset */
+        public double x, y;
+        /** Anchors which support the best model, bit i set if anchor i is an inlier */
+        public long inlierMask;
+        public int numInliers;
+        /** RMS range residual of the inliers (meters) */
+        public double residual;
+        public int subsetsEvaluated;
+        /** True if the search stopped because consensus threshold was reached */
+        public boolean isConsensusReached;
+        /** False if every subset was degenerate, no model was found */
+        public boolean isValid;
+
+        public boolean isInlier(int anchor) {
+            return (inlierMask & (1L << anchor)) != 0;
+        }
+    }
+
+    public RansacPositioning() {
+        mNumThreads = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(mNumThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RansacPositioning");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mWorkers = new Worker[mNumThreads];
+        mTasks = new ArrayList<Callable<Void>>(mNumThreads);
+        for (int w = 0; w < mNumThreads; w++) {
+            final Worker worker = new Worker(w);
+            mWorkers[w] = worker;
+            mTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    worker.run();
+                    return null;
+                }
+            });
+        }
+    }
+
+    public void setTimeBudgetNanos(long timeBudgetNanos) {
+        this.mTimeBudgetNanos = timeBudgetNanos;
+    }
+
+    /** Stops worker threads. The object can not be used afterwards */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Finds the anchor subset model with the largest consensus.
+     *
+     * @param apX AP x coordinates
+     * @param apY AP y coordinates
+     * @param dist estimated distances to every AP
+     * @param numAnchors number of anchors (at least 3, at most MAX_ANCHORS)
+     * @param result output, overwritten
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void estimate(double[] apX, double[] apY, double[] dist, int numAnchors,
+                         Result result) throws InterruptedException {
+        if (numAnchors < SUBSET_SIZE || numAnchors > MAX_ANCHORS)
+            throw new IllegalArgumentException("Number of anchors must be between "
+                    + SUBSET_SIZE + " and " + MAX_ANCHORS);
+        prepareSubsets(numAnchors);
+        mApX = apX;
+        mApY = apY;
+        mDist = dist;
+        mNumAnchors = numAnchors;
+        mConsensusTarget = (int) Math.ceil(CONSENSUS_RATIO * numAnchors);
+        mDeadline = System.nanoTime() + mTimeBudgetNanos;
+        mIsConsensusReached = false;
+
+        for (Future<Void> future : mExecutor.invokeAll(mTasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /* Merges best model of each worker */
+        Worker best = null;
+        int subsetsEvaluated = 0;
+        for (Worker worker : mWorkers) {
+            subsetsEvaluated += worker.mEvaluated;
+            if (worker.mBestInliers > 0 && (best == null
+                    || worker.mBestInliers > best.mBestInliers
+                    || (worker.mBestInliers == best.mBestInliers
+                    && worker.mBestResidual < best.mBestResidual)))
+                best = worker;
+        }
+        result.subsetsEvaluated = subsetsEvaluated;
+        result.isConsensusReached = mIsConsensusReached;
+        result.isValid = best != null;
+        if (best != null) {
+            result.x = best.mBestX;
+            result.y = best.mBestY;
+            result.inlierMask = best.mBestMask;
+            result.numInliers = best.mBestInliers;
+            result.residual = Math.sqrt(best.mBestResidual / best.mBestInliers);
+        } else {
+            result.inlierMask = 0;
+            result.numInliers = 0;
+            result.residual = Double.NaN;
+        }
+        mApX = mApY = mDist = null;
+    }
+
+    /**
+     * Enumerates every subset of 3 anchors. Subsets are kept while the number of anchors does not
+     * change, so they are only enumerated again when it does.
+     */
+    private void prepareSubsets(int numAnchors) {
+        if (numAnchors == mSubsetsNumAnchors)
+            return;
+        mNumSubsets = numAnchors * (numAnchors - 1) * (numAnchors - 2) / 6;
+        mSubsets = new int[SUBSET_SIZE * mNumSubsets];
+        int s = 0;
+        for (int i = 0; i < numAnchors; i++)
+            for (int j = i + 1; j < numAnchors; j++)
+                for (int k = j + 1; k < numAnchors; k++) {
+                    mSubsets[s++] = i;
+                    mSubsets[s++] = j;
+                    mSubsets[s++] = k;
+                }
+        mSubsetsNumAnchors = numAnchors;
+    }
+
+    /**
+     * Evaluates blocks of SUBSETS_PER_TASK subsets, interleaved with the other workers, and keeps
+     * its own best model.
+     */
+    private class Worker {
+        private final int mIndex;
+        private int mEvaluated;
+        private int mBestInliers;
+        private long mBestMask;
+        private double mBestResidual;
+        private double mBestX, mBestY;
+
+        Worker(int index) {
+            mIndex = index;
+        }
+
+        void run() {
+            mEvaluated = 0;
+            mBestInliers = 0;
+            mBestMask = 0;
+            mBestResidual = Double.POSITIVE_INFINITY;
+            int stride = SUBSETS_PER_TASK * mNumThreads;
+            for (int block = mIndex * SUBSETS_PER_TASK; block < mNumSubsets; block += stride) {
+                if (mIsConsensusReached || System.nanoTime() > mDeadline)
+                    return;
+                int end = Math.min(mNumSubsets, block + SUBSETS_PER_TASK);
+                for (int s = block; s < end; s++) {
+                    evaluate(mSubsets[3 * s], mSubsets[3 * s + 1], mSubsets[3 * s + 2]);
+                    mEvaluated++;
+                }
+                if (mBestInliers >= mConsensusTarget)
+                    mIsConsensusReached = true;
+            }
+        }
+
+        private void evaluate(int i, int j, int k) {
+            double x1 = mApX[i], y1 = mApY[i];
+            double a00 = mApX[j] - x1, a01 = mApY[j] - y1;
+            double a10 = mApX[k] - x1, a11 = mApY[k] - y1;
+            double det = a00 * a11 - a01 * a10;
+            // Collinear anchors do not define a position
+            if (Math.abs(det) < 1e-9 * (a00 * a00 + a01 * a01 + a10 * a10 + a11 * a11))
+                return;
+            double r1Sq = mDist[i] * mDist[i];
+            double b0 = 0.5 * (r1Sq - mDist[j] * mDist[j] + a00 * a00 + a01 * a01);
+            double b1 = 0.5 * (r1Sq - mDist[k] * mDist[k] + a10 * a10 + a11 * a11);
+            double x = x1 + (b0 * a11 - b1 * a01) / det;
+            double y = y1 + (a00 * b1 - a10 * b0) / det;
+
+            int inliers = 0;
+            long mask = 0;
+            double residual = 0;
+            for (int a = 0; a < mNumAnchors; a++) {
+                double dx = x - mApX[a];
+                double dy = y - mApY[a];
+                double error = Math.sqrt(dx * dx + dy * dy) - mDist[a];
+                double threshold = Math.max(MIN_INLIER_THRESHOLD,
+                        INLIER_THRESHOLD_RATIO * mDist[a]);
+                if (Math.abs(error) <= threshold) {
+                    inliers++;
+                    mask |= 1L << a;
+                    residual += error * error;
+                }
+            }
+            if (inliers > mBestInliers
+                    || (inliers == mBestInliers && residual < mBestResidual)) {
+                mBestInliers = inliers;
+                mBestMask = mask;
+                mBestResidual = residual;
+                mBestX = x;
+                mBestY = y;
+            }
+        }
+    }
+}
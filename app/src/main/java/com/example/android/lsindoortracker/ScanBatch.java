@@ -0,0 +1,44 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Many WiFi scans stored in structure-of-arrays layout, used by BatchPositioning to replay
+ * recorded scans without ScanResult objects:
+ *
+ *      scanOffsets = [0, n0, n0+n1, ...]    entries of scan s: [scanOffsets[s], scanOffsets[s+1])
+ *      apIds       = [id_bssid of each entry]
+ *      levels      = [RSS of each entry]
+ *      timestamps  = [time of each scan (ms)]
+ *
+ *  AP ids are the ones of bssids table, so BSSID to id translation is done once when the scans
+ *  are recorded or imported, not each time they are replayed.
+ */
+public class ScanBatch {
+    public final int numScans;
+    public final int[] scanOffsets;
+    public final int[] apIds;
+    public final int[] levels;
+    public final long[] timestamps;
+
+    /**
+     * @param scanOffsets start of each scan inside apIds/levels, plus total entries at the end
+     * @param apIds AP id (bssids table) of each entry
+     * @param levels RSS of each entry
+     * @param timestamps time of each scan (ms)
+     */
+    public ScanBatch(int[] scanOffsets, int[] apIds, int[] levels, long[] timestamps) {
+        if (scanOffsets.length != timestamps.length + 1)
+            throw new IllegalArgumentException("scanOffsets must have one element per scan plus"
+                    + " one");
+        if (apIds.length != levels.length || scanOffsets[timestamps.length] > apIds.length)
+            throw new IllegalArgumentException("apIds and levels do not match scanOffsets");
+        this.numScans = timestamps.length;
+        this.scanOffsets = scanOffsets;
+        this.apIds = apIds;
+        this.levels = levels;
+        this.timestamps = timestamps;
+    }
+
+    public int getScanSize(int scan) {
+        return scanOffsets[scan + 1] - scanOffsets[scan];
+    }
+}
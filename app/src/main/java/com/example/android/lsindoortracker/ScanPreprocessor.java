@@ -0,0 +1,168 @@
+package com.example.android.lsindoortracker;
+
+import android.graphics.Point;
+import android.net.wifi.ScanResult;
+
+import java.util.List;
+
+/**
+ * Preprocessing of a WiFi scan before positioning, fused into a single pass over the results:
+ *
+ *  -Known APs: each BSSID is parsed into its AP key (see BssidKey) and looked up in the hash
+ *   index of an APRegistry snapshot, instead of comparing it with every row of bssids table.
+ *  -Duplicates: TUT WLAN network has 4 SSIDs (BSSIDs) for each AP, so each AP is kept once, with
+ *   its strongest RSS. Per-AP slots are stamped with the scan number, hence they need no
+ *   clearing between scans.
+ *  -Strongest APs: the K strongest APs heard are kept in a bounded min-heap, O(D log K) for D
+ *   APs heard, instead of sorting the whole list.
+ *
+ *  Scan results are never modified: APs are referred by their slot in the snapshot, whose
+ *  common BSSID and position are given by getBssid and getPosition.
+ *
+ *  NOTE: the snapshot is immutable, but scan buffers are not, hence an instance must be used by
+ *  one thread at a time (LSAlgorithm owns one, rebuilt when APRegistry publishes a new snapshot).
+ */
+public class ScanPreprocessor {
+    private final APRegistry mRegistry;
+
+    /* Scan being processed: strongest RSS of each slot (valid if its stamp is current), slots
+    heard in scan order and K strongest ones */
+    private final int[] mRSS;
+    private final int[] mStamp;
+    private int mCurrentStamp = 0;
+    private final int[] mHeard;
+    private int mNumHeard;
+    private final int[] mStrongest;
+    private int mNumStrongest;
+
+    /** @param registry snapshot of the known APs */
+    public ScanPreprocessor(APRegistry registry) {
+        mRegistry = registry;
+        int numAPs = registry.size();
+        mRSS = new int[numAPs];
+        mStamp = new int[numAPs];
+        mHeard = new int[numAPs];
+        mStrongest = new int[numAPs];
+    }
+
+    /** @return snapshot of the known APs */
+    public APRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    /** @return number of known APs in the snapshot */
+    public int getNumAPs() {
+        return mRegistry.size();
+    }
+
+    /**
+     * Processes a scan: known APs heard, without duplicates, and the maxStrongest strongest ones.
+     * @param results WiFi scan results list, not modified
+     * @param maxStrongest maximum number of strongest APs kept, 0 if they are not needed
+     * @return number of known APs heard
+     */
+    public int process(List<ScanResult> results, int maxStrongest) {
+        int stamp = ++mCurrentStamp;
+        int numHeard = 0;
+        for (int i = 0; i < results.size(); i++) {
+            ScanResult result = results.get(i);
+            int ap = mRegistry.find(BssidKey.parseGroup(result.BSSID));
+            if (ap < 0)
+                continue;
+            if (mStamp[ap] != stamp) {
+                mStamp[ap] = stamp;
+                mRSS[ap] = result.level;
+                mHeard[numHeard++] = ap;
+            } else if (result.level > mRSS[ap]) {
+                mRSS[ap] = result.level;
+            }
+        }
+        mNumHeard = numHeard;
+
+        /* Min-heap of the K strongest APs, its root is the weakest one kept */
+        int k = Math.min(maxStrongest, numHeard);
+        int size = 0;
+        for (int h = 0; h < numHeard; h++) {
+            int ap = mHeard[h];
+            if (size < k) {
+                siftUp(size++, ap);
+            } else if (k > 0 && mRSS[ap] > mRSS[mStrongest[0]]) {
+                siftDown(0, ap, size);
+            }
+        }
+        /* Heap sort: extracting the weakest one each time leaves them in descending order */
+        for (int last = size - 1; last > 0; last--) {
+            int weakest = mStrongest[0];
+            siftDown(0, mStrongest[last], last);
+            mStrongest[last] = weakest;
+        }
+        mNumStrongest = size;
+        return numHeard;
+    }
+
+    private void siftUp(int i, int ap) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (mRSS[mStrongest[parent]] <= mRSS[ap])
+                break;
+            mStrongest[i] = mStrongest[parent];
+            i = parent;
+        }
+        mStrongest[i] = ap;
+    }
+
+    private void siftDown(int i, int ap, int size) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && mRSS[mStrongest[child + 1]] < mRSS[mStrongest[child]])
+                child++;
+            if (mRSS[mStrongest[child]] >= mRSS[ap])
+                break;
+            mStrongest[i] = mStrongest[child];
+            i = child;
+        }
+        mStrongest[i] = ap;
+    }
+
+    /** @return number of known APs heard in the last scan processed */
+    public int getNumHeard() {
+        return mNumHeard;
+    }
+
+    /** @return slot of the i-th known AP heard, in scan order */
+    public int getHeard(int i) {
+        return mHeard[i];
+    }
+
+    /** @return number of strongest APs kept from the last scan processed */
+    public int getNumStrongest() {
+        return mNumStrongest;
+    }
+
+    /** @return slot of the i-th strongest AP, in descending RSS order */
+    public int getStrongest(int i) {
+        return mStrongest[i];
+    }
+
+    /** @return AP id (bssids table) of an AP slot */
+    public int getId(int ap) {
+        return mRegistry.getId(ap);
+    }
+
+    /** @return common BSSID (without last digit) of an AP slot */
+    public String getBssid(int ap) {
+        return mRegistry.getBssid(ap);
+    }
+
+    /** @return position of an AP slot. It must not be modified */
+    public Point getPosition(int ap) {
+        return mRegistry.getPosition(ap);
+    }
+
+    /** @return strongest RSS of an AP slot in the last scan processed, if it was heard */
+    public int getRSS(int ap) {
+        return mRSS[ap];
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Pathloss measurements of measurements table in columnar form: one primitive array per column,
+ * aligned row by row, so the RSS and distance of a sample always belong to the same row.
+ *
+ *  Rows are sorted by AP id, and then by insertion order, so the samples of each AP are a
+ *  contiguous segment [getStart(ap), getEnd(ap)), and the models of every AP can be fitted from
+ *  a single fetch (see IndoorTrackerDatabaseHandler.loadSurveyDataDB).
+ *
+ *  Objects are immutable once built. Arrays may be longer than size, only the first size items
+ *  are samples.
+ */
+public class SurveyData {
+    public final int size;
+    /** AP id, RSS (dBm), distance (meters) and time (ms, 0 if unknown) of each sample */
+    public final int[] idBssid, rss, distance;
+    public final long[] timestamp;
+    public final int numAPs;
+    /* Id and first row of each AP segment, mApStart[numAPs] = size */
+    private final int[] mApIds;
+    private final int[] mApStart;
+
+    /**
+     * @param idBssid AP id of each sample, in ascending order
+     * @param rss RSS of each sample
+     * @param distance distance of each sample
+     * @param timestamp time of each sample
+     * @param size number of samples, first size items of the arrays
+     */
+    public SurveyData(int[] idBssid, int[] rss, int[] distance, long[] timestamp, int size) {
+        if (rss.length < size || distance.length < size || timestamp.length < size
+                || idBssid.length < size)
+            throw new IllegalArgumentException("Arrays must hold size samples");
+        this.size = size;
+        this.idBssid = idBssid;
+        this.rss = rss;
+        this.distance = distance;
+        this.timestamp = timestamp;
+
+        int segments = 0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && idBssid[i] < idBssid[i - 1])
+                throw new IllegalArgumentException("Samples must be sorted by AP id");
+            if (i == 0 || idBssid[i] != idBssid[i - 1])
+                segments++;
+        }
+        numAPs = segments;
+        mApIds = new int[numAPs];
+        mApStart = new int[numAPs + 1];
+        int ap = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || idBssid[i] != idBssid[i - 1]) {
+                mApIds[ap] = idBssid[i];
+                mApStart[ap++] = i;
+            }
+        }
+        mApStart[numAPs] = size;
+    }
+
+    /** @return AP id of a segment, 0 <= ap < numAPs */
+    public int getApId(int ap) {
+        return mApIds[ap];
+    }
+
+    /** @return first row of the samples of a segment */
+    public int getStart(int ap) {
+        return mApStart[ap];
+    }
+
+    /** @return row after the last sample of a segment */
+    public int getEnd(int ap) {
+        return mApStart[ap + 1];
+    }
+
+    /**
+     * @param id AP id
+     * @return segment of the AP, -1 if it has no samples
+     */
+    public int find(int id) {
+        int low = 0, high = numAPs - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mApIds[mid] < id)
+                low = mid + 1;
+            else if (mApIds[mid] > id)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+}
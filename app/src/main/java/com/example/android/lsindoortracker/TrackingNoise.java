@@ -0,0 +1,45 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Noise model shared by the tracking engines (ParticleFilter and GridFilter), so both track
+ * the user with the same assumptions:
+ *
+ *  -Motion: user moves as a random walk whose deviation grows with time since last fix,
+ *
+ *          sigma_step = min(MAX_STEP_STD, max(MIN_STEP_STD, WALK_SPEED_STD * dt))
+ *
+ *  -Measurement: error of an estimated distance grows with the distance,
+ *
+ *          sigma_i = max(MIN_RANGE_STD, RANGE_STD_RATIO * ri)
+ */
+public final class TrackingNoise {
+    /** Deviation of user speed between fixes (m/s) */
+    public static final double WALK_SPEED_STD = 1.0;
+    /** Minimum deviation of user moves (meters) */
+    public static final double MIN_STEP_STD = 0.5;
+    /** Moves are bounded, so a long gap between fixes does not scatter the track (meters) */
+    public static final double MAX_STEP_STD = 10.0;
+    /** Deviation of estimated distances, relative to the distance */
+    public static final double RANGE_STD_RATIO = 0.3;
+    /** Minimum deviation of estimated distances (meters) */
+    public static final double MIN_RANGE_STD = 1.0;
+
+    private TrackingNoise() {
+    }
+
+    /**
+     * @param dt time since last fix (seconds)
+     * @return deviation of user move since last fix (meters)
+     */
+    public static double getStepStd(double dt) {
+        return Math.min(MAX_STEP_STD, Math.max(MIN_STEP_STD, WALK_SPEED_STD * dt));
+    }
+
+    /**
+     * @param distance estimated distance (meters)
+     * @return deviation of the estimated distance (meters)
+     */
+    public static double getRangeStd(double distance) {
+        return Math.max(MIN_RANGE_STD, RANGE_STD_RATIO * distance);
+    }
+}
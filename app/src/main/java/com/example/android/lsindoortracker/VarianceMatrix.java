@@ -0,0 +1,93 @@
+package com.example.android.lsindoortracker;
+
+/**
+ * Structured inverse of the variance matrix S of the weighted approaches:
+ *
+ *      S = [Var(r1²)+Var(r2²) Var(r1²) ... Var(r1²);
+ *           Var(r1²) Var(r1²)+Var(r3²) ... Var(r1²);
+ *           ...
+ *           Var(r1²) Var(r1²) ... Var(r1²)+Var(rN²)]
+ *
+ *      Var(ri²) = ri^4
+ *
+ *  S is a diagonal matrix plus a rank-one term, S = D + v*11', with D = diag(Var(r2²) ...
+ *  Var(rN²)) and v = Var(r1²). Sherman-Morrison formula gives its inverse analytically:
+ *
+ *      S^-1 = D^-1 - g * u*u'      u = D^-1*1      g = v / (1 + v*sum(ui))
+ *
+ *  so S^-1*A does not need S^-1 at all:
+ *
+ *      (S^-1*A)i = ui * (Ai - g * sum(uk*Ak))
+ *
+ *  which only takes O(N) operations instead of the O(N³) of a general inversion.
+ *
+ *  Since S is symmetric positive definite, its eigenvalues lie in [min(Di), max(Di) + (N-1)*v],
+ *  which bounds its condition number with no extra cost. Ill-conditioned weights (e.g. an
+ *  estimated distance close to zero) are rejected instead of silently producing garbage.
+ */
+public class VarianceMatrix {
+    /** Maximum condition number accepted for S */
+    public static final double MAX_CONDITION = 1e12;
+
+    /**
+     * Computes A' = S^-1*A and b' = S^-1*b. Outputs may be the same arrays as inputs.
+     * Ill-conditioned weights are reported instead of thrown, so it can be used on the
+     * positioning hot path.
+     *
+     * @param dist estimated distances to every AP, AP1 first
+     * @param rows number of rows of A and b (number of anchors - 1)
+     * @param a matrix A, row-major
+     * @param cols number of columns of A (unknowns), at most 3
+     * @param stride distance between two rows of A in the array (at least cols)
+     * @param b vector b
+     * @param aOut matrix A', row-major, same stride as A. Modified.
+     * @param bOut vector b'. Modified.
+     * @return false if S is ill-conditioned (outputs are not written)
+     */
+    public static boolean tryApplyInverse(double[] dist, int rows, double[] a, int cols,
+                                          int stride, double[] b, double[] aOut,
+                                          double[] bOut) {
+        double v = pow4(dist[0]);
+
+        /* sum(ui), sum(ui*Ai) and sum(ui*bi), bounding the condition number of S on the way */
+        double minD = Double.POSITIVE_INFINITY, maxD = 0;
+        double sumU = 0, sumUB = 0;
+        double sum0 = 0, sum1 = 0, sum2 = 0;
+        for (int i = 0; i < rows; i++) {
+            double di = pow4(dist[i + 1]);
+            minD = Math.min(minD, di);
+            maxD = Math.max(maxD, di);
+            if (di == 0)
+                break;
+            double ui = 1.0 / di;
+            sumU += ui;
+            sumUB += ui * b[i];
+            sum0 += ui * a[i * stride];
+            if (cols > 1)
+                sum1 += ui * a[i * stride + 1];
+            if (cols > 2)
+                sum2 += ui * a[i * stride + 2];
+        }
+        if (!(minD > 0) || (maxD + rows * v) / minD > MAX_CONDITION)
+            return false;
+
+        double g = v / (1 + v * sumU);
+        double gSumUB = g * sumUB;
+        double gSum0 = g * sum0, gSum1 = g * sum1, gSum2 = g * sum2;
+        for (int i = 0; i < rows; i++) {
+            double ui = 1.0 / pow4(dist[i + 1]);
+            aOut[i * stride] = ui * (a[i * stride] - gSum0);
+            if (cols > 1)
+                aOut[i * stride + 1] = ui * (a[i * stride + 1] - gSum1);
+            if (cols > 2)
+                aOut[i * stride + 2] = ui * (a[i * stride + 2] - gSum2);
+            bOut[i] = ui * (b[i] - gSumUB);
+        }
+        return true;
+    }
+
+    private static double pow4(double value) {
+        double square = value * value;
+        return square * square;
+    }
+}